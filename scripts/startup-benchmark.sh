@@ -0,0 +1,79 @@
+#!/usr/bin/env bash
+# Compares the startup of the archiver CLI on the JVM, on the JVM with an AppCDS archive and as a native image.
+# Every variant prints its version (startup only) and compresses then decompresses a small tree (a short job as run
+# from cron), RUNS times each; the min, median and mean wall clock times are printed in milliseconds.
+#
+# Build both first:  ./gradlew shadowJar nativeImage
+# Usage:             scripts/startup-benchmark.sh [runs]
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+RUNS=${1:-${RUNS:-20}}
+JAR=${JAR:-$(ls build/libs/archiver-*-all.jar 2>/dev/null | head -1)}
+NATIVE=${NATIVE:-build/native-image/archiver}
+JAVA=${JAVA:-java}
+
+if [ -z "$JAR" ] || [ ! -f "$JAR" ]; then
+    echo "No shaded jar under build/libs, run ./gradlew shadowJar first" >&2
+    exit 1
+fi
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+mkdir -p "$WORK/source"
+for i in $(seq 1 20); do
+    head -c 16384 /dev/urandom | base64 > "$WORK/source/file$i.txt"
+done
+
+# wall clock milliseconds of a command, its output is discarded
+elapsed() {
+    local start end
+    start=$(date +%s%N)
+    "$@" > /dev/null 2>&1
+    end=$(date +%s%N)
+    echo $(( (end - start) / 1000000 ))
+}
+
+# prints min, median and mean of the given milliseconds
+summary() {
+    printf '%s\n' "$@" | sort -n | awk '{ t[NR] = $1; sum += $1 }
+        END { printf "min %5d  median %5d  mean %7.1f ms\n", t[1], t[int((NR + 1) / 2)], sum / NR }'
+}
+
+# runs the variant given as a command prefix: startup, then a small compress and decompress job
+measure() {
+    local name=$1
+    shift
+    local version=() job=()
+    "$@" --version > /dev/null 2>&1 || { echo "$name: does not run, skipped"; return; }
+    for ((i = 0; i < RUNS; i++)); do
+        version+=("$(elapsed "$@" --version)")
+        rm -rf "$WORK/archive" "$WORK/restored"
+        mkdir -p "$WORK/archive" "$WORK/restored"
+        local compress decompress
+        compress=$(elapsed "$@" compress "$WORK/source" "$WORK/archive" 1)
+        decompress=$(elapsed "$@" decompress "$WORK/archive" "$WORK/restored")
+        job+=("$(( compress + decompress ))")
+    done
+    printf '%-10s startup          %s' "$name" "$(summary "${version[@]}")"
+    echo
+    printf '%-10s compress+extract %s' "$name" "$(summary "${job[@]}")"
+    echo
+}
+
+echo "$RUNS runs of each variant, $(du -sh "$WORK/source" | cut -f1) of source files"
+measure jvm "$JAVA" -jar "$JAR"
+
+# class data sharing archive of the classes loaded by a run, dumped once
+mkdir -p "$WORK/dump"
+"$JAVA" -XX:ArchiveClassesAtExit="$WORK/archiver.jsa" -jar "$JAR" compress "$WORK/source" "$WORK/dump" 1 \
+    > /dev/null 2>&1 || true
+if [ -f "$WORK/archiver.jsa" ]; then
+    measure jvm-cds "$JAVA" -XX:SharedArchiveFile="$WORK/archiver.jsa" -Xshare:auto -jar "$JAR"
+fi
+
+if [ -x "$NATIVE" ]; then
+    measure native "$NATIVE"
+else
+    echo "native: no image at $NATIVE, run ./gradlew nativeImage with GRAALVM_HOME set"
+fi
@@ -0,0 +1,174 @@
+package com.agoda.benchmark;
+
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.ChunkPlan;
+import com.agoda.utils.BinPacker;
+import com.agoda.utils.FileUtils;
+import com.agoda.utils.FileUtils.FileVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planning of the chunks without touching the disk: entries of a synthetic tree are bin packed, streamed through the
+ * packer as a walk would, split into slices and stored in a {@link ChunkPlan}, and part names are parsed back.
+ * Each operation handles {@code files} entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkPlanningBenchmark {
+
+    private static final long CAPACITY = 64L * 1024 * 1024;
+    private static final int FILES_PER_DIRECTORY = 256;
+
+    @Param({"TINY", "HUGE", "MIXED"})
+    Fixtures.Distribution distribution;
+
+    @Param({"100000"})
+    int files;
+
+    private Path root;
+    private List<ChunkEntry> entries;
+    private List<BasicFileAttributes> attributes;
+    private String[] partNames;
+
+    @Setup(Level.Trial)
+    public void createEntries() {
+        Random random = new Random(42);
+        root = Path.of("/bench");
+        entries = new ArrayList<>(files);
+        attributes = new ArrayList<>(files);
+        partNames = new String[files];
+        for (int i = 0; i < files; i++) {
+            Path path = root.resolve("dir" + i / FILES_PER_DIRECTORY).resolve("file" + i + ".dat");
+            long size = size(random);
+            entries.add(ChunkEntry.ofFile(path, root.relativize(path).toString(), size, 0));
+            attributes.add(new Attributes(size));
+            partNames[i] = i % 2 == 0 ? "file" + i + "_part_" + i % 10 + ".dat" : "file" + i + ".dat";
+        }
+    }
+
+    private long size(Random random) {
+        boolean huge = distribution == Fixtures.Distribution.HUGE
+                || distribution == Fixtures.Distribution.MIXED && random.nextInt(100) == 0;
+        return huge ? 256L * 1024 * 1024 + random.nextInt(1024 * 1024 * 1024) : 1024 + random.nextInt(7 * 1024);
+    }
+
+    @Benchmark
+    public List<List<ChunkEntry>> pack() {
+        List<ChunkEntry> packable = new ArrayList<>(entries.size());
+        for (ChunkEntry entry : entries) {
+            if (entry.getLength() <= CAPACITY) {
+                packable.add(entry);
+            }
+        }
+        return BinPacker.pack(packable, CAPACITY);
+    }
+
+    @Benchmark
+    public List<List<ChunkEntry>> walkAndSplit(Blackhole blackhole) throws IOException {
+        // huge files are split into slices by the visitor, then everything goes through the streaming packer
+        FileVisitor visitor = new FileVisitor(root, CAPACITY, (file, attrs) -> true, blackhole::consume);
+        for (int i = 0; i < entries.size(); i++) {
+            visitor.visitFile(entries.get(i).getPath(), attributes.get(i));
+        }
+        return visitor.getChunks();
+    }
+
+    @Benchmark
+    public ChunkPlan plan() {
+        ChunkPlan plan = new ChunkPlan();
+        for (ChunkEntry entry : entries) {
+            plan.add(entry);
+        }
+        return plan;
+    }
+
+    @Benchmark
+    public void findBaseNameFromPart(Blackhole blackhole) {
+        for (String name : partNames) {
+            Path path = Path.of(name);
+            blackhole.consume(FileUtils.findBaseNameFromPart(path));
+            blackhole.consume(FileUtils.findPartNumber(path));
+        }
+    }
+
+    /**
+     * Attributes of a regular file that does not exist, only its size is read while walking
+     */
+    private static class Attributes implements BasicFileAttributes {
+        private final long size;
+
+        private Attributes(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(0);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.fromMillis(0);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return FileTime.fromMillis(0);
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.agoda.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.agoda.utils.FileUtils.deleteFolder;
+
+/**
+ * Generates the source trees the benchmarks run against. Every tree holds about {@link #TREE_SIZE} bytes, generated
+ * from a fixed seed so runs compare the same data.
+ */
+final class Fixtures {
+
+    static final long TREE_SIZE = 64L * 1024 * 1024;
+    private static final long SEED = 42;
+    private static final int FILES_PER_DIRECTORY = 256;
+    private static final String[] WORDS = {"archive", "chunk", "deflate", "manifest", "booking", "hotel", "agoda",
+            "price", "room", "night", "guest", "review", "city", "2020-11-01", "true", "false", "{", "}", "\"id\":"};
+
+    /**
+     * How the bytes of a tree are spread over its files
+     */
+    enum Distribution {
+        /**
+         * Many files of 1-8KB, where the per-entry costs dominate
+         */
+        TINY,
+        /**
+         * A few files of 16MB, split into slices and deflated in parallel blocks
+         */
+        HUGE,
+        /**
+         * Half of the bytes in tiny files, half in huge ones
+         */
+        MIXED
+    }
+
+    /**
+     * What the files hold
+     */
+    enum Compressibility {
+        /**
+         * Text made of a small vocabulary, deflates to a fraction of its size
+         */
+        TEXT,
+        /**
+         * Random bytes, stored by the compression policy
+         */
+        RANDOM
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param distribution    sizes of the files
+     * @param compressibility content of the files
+     * @return a new temporary directory holding the tree
+     * @throws IOException if the tree can not be written
+     */
+    static Path createTree(Distribution distribution, Compressibility compressibility) throws IOException {
+        Path root = Files.createTempDirectory("archiver-bench-" + distribution.name().toLowerCase() + "-");
+        Random random = new Random(SEED);
+        long tiny = distribution == Distribution.TINY ? TREE_SIZE
+                : distribution == Distribution.MIXED ? TREE_SIZE / 2 : 0;
+        int index = 0;
+        for (long written = 0; written < tiny; index++) {
+            int size = 1024 + random.nextInt(7 * 1024);
+            writeFile(file(root, index), size, compressibility, random);
+            written += size;
+        }
+        long huge = TREE_SIZE - tiny;
+        for (long written = 0; written < huge; index++) {
+            long size = Math.min(16L * 1024 * 1024, huge - written);
+            writeFile(file(root, index), size, compressibility, random);
+            written += size;
+        }
+        return root;
+    }
+
+    /**
+     * @param root tree created by {@link #createTree}
+     * @throws IOException if the tree can not be deleted
+     */
+    static void deleteTree(Path root) throws IOException {
+        if (root != null && Files.exists(root)) {
+            deleteFolder(root);
+        }
+    }
+
+    private static Path file(Path root, int index) throws IOException {
+        Path directory = root.resolve("dir" + index / FILES_PER_DIRECTORY);
+        Files.createDirectories(directory);
+        return directory.resolve("file" + index + ".dat");
+    }
+
+    private static void writeFile(Path file, long size, Compressibility compressibility, Random random)
+            throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; ) {
+                int length = (int) Math.min(buffer.length, size - written);
+                fill(buffer, length, compressibility, random);
+                outputStream.write(buffer, 0, length);
+                written += length;
+            }
+        }
+    }
+
+    private static void fill(byte[] buffer, int length, Compressibility compressibility, Random random) {
+        if (compressibility == Compressibility.RANDOM) {
+            random.nextBytes(buffer);
+            return;
+        }
+        int position = 0;
+        while (position < length) {
+            byte[] word = (WORDS[random.nextInt(WORDS.length)] + (random.nextInt(8) == 0 ? "\n" : " "))
+                    .getBytes(StandardCharsets.US_ASCII);
+            int count = Math.min(word.length, length - position);
+            System.arraycopy(word, 0, buffer, position, count);
+            position += count;
+        }
+    }
+}
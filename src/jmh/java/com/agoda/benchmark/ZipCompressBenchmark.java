@@ -0,0 +1,92 @@
+package com.agoda.benchmark;
+
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.strategy.mode.ZipStrategy;
+import com.agoda.utils.FileUtils.FileVisitor;
+import com.agoda.utils.ParallelFileWalker;
+import com.agoda.zip.ParallelZipWriter;
+import com.agoda.zip.ZipRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression of a generated tree: the zip writer alone over an already planned chunk (what
+ * {@code ZipStrategy.writeToZip} runs for every part), and the whole {@link ZipStrategy#compress} with its walk,
+ * planning and manifest. Each operation compresses {@link Fixtures#TREE_SIZE} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipCompressBenchmark {
+
+    @Param({"TINY", "HUGE", "MIXED"})
+    Fixtures.Distribution distribution;
+
+    @Param({"TEXT", "RANDOM"})
+    Fixtures.Compressibility compressibility;
+
+    @Param({"1", "4"})
+    int workers;
+
+    private Path source;
+    private Path destination;
+    private List<ChunkEntry> entries;
+    private CompressionOptions options;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        source = Fixtures.createTree(distribution, compressibility);
+        destination = Files.createTempDirectory("archiver-bench-zip-");
+        options = new CompressionOptions().setWorkers(workers);
+        FileVisitor visitor = new FileVisitor(source, 0);
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            ParallelFileWalker.walk(source, visitor, scheduler.getWorkers());
+        }
+        entries = new ArrayList<>();
+        visitor.getChunks().forEach(entries::addAll);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        Fixtures.deleteTree(source);
+        Fixtures.deleteTree(destination);
+    }
+
+    @Benchmark
+    public List<ZipRecord> writeToZip() throws IOException {
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options);
+             ParallelZipWriter zipWriter = new ParallelZipWriter(destination.resolve("chunk.zip"), scheduler,
+                     options)) {
+            zipWriter.write(entries);
+            return zipWriter.getRecords();
+        }
+    }
+
+    @Benchmark
+    public void compress() throws IOException {
+        new ZipStrategy(options).compress(source, destination, Long.MAX_VALUE);
+    }
+}
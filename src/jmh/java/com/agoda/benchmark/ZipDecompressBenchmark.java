@@ -0,0 +1,73 @@
+package com.agoda.benchmark;
+
+import com.agoda.model.CompressionOptions;
+import com.agoda.strategy.mode.ZipStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompression of a generated tree, compressed once per trial into parts of {@code maxFileSize} MB. The files are
+ * truncated and rewritten by every operation, so the destination is reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipDecompressBenchmark {
+
+    @Param({"TINY", "HUGE", "MIXED"})
+    Fixtures.Distribution distribution;
+
+    @Param({"TEXT", "RANDOM"})
+    Fixtures.Compressibility compressibility;
+
+    @Param({"1", "4"})
+    int workers;
+
+    @Param({"16"})
+    long maxFileSize;
+
+    private Path source;
+    private Path archive;
+    private Path destination;
+    private ZipStrategy strategy;
+
+    @Setup(Level.Trial)
+    public void compressTree() throws IOException {
+        source = Fixtures.createTree(distribution, compressibility);
+        archive = Files.createTempDirectory("archiver-bench-zip-");
+        destination = Files.createTempDirectory("archiver-bench-out-");
+        strategy = new ZipStrategy(new CompressionOptions().setWorkers(workers));
+        strategy.compress(source, archive, maxFileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTrees() throws IOException {
+        Fixtures.deleteTree(source);
+        Fixtures.deleteTree(archive);
+        Fixtures.deleteTree(destination);
+    }
+
+    @Benchmark
+    public void decompress() throws IOException {
+        strategy.decompress(archive, destination);
+    }
+}
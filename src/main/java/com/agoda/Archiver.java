@@ -2,22 +2,32 @@ package com.agoda;
 
 import com.agoda.commands.CompressCommand;
 import com.agoda.commands.DecompressCommand;
+import com.agoda.commands.ExtractCommand;
+import com.agoda.commands.ListCommand;
+import com.agoda.commands.ServeCommand;
+import com.agoda.commands.VerifyCommand;
 import io.micronaut.configuration.picocli.PicocliRunner;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
+import java.util.Arrays;
+
 /**
  * Entry point of the application
  */
 @Command(name = "archiver", description = "Archiver that compresses files/folders",
-        mixinStandardHelpOptions = true, subcommands = {CompressCommand.class, DecompressCommand.class})
+        mixinStandardHelpOptions = true, subcommands = {CompressCommand.class, DecompressCommand.class,
+        ExtractCommand.class, ListCommand.class, VerifyCommand.class, ServeCommand.class})
 public class Archiver implements Runnable {
 
     @Option(names = {"-t", "--test"}, description = "Print test Message")
     boolean verbose;
 
     public static void main(String[] args) throws Exception {
-        PicocliRunner.run(Archiver.class, args);
+        if (args.length > 0 && args[0].equals("compress")) {
+            CompressCommand.redirectLogs(Arrays.copyOfRange(args, 1, args.length));
+        }
+        System.exit(PicocliRunner.execute(Archiver.class, args));
     }
 
     public void run() {
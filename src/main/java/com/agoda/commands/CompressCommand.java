@@ -1,14 +1,31 @@
 package com.agoda.commands;
 
+import com.agoda.constants.CompressionPolicy;
 import com.agoda.constants.CompressionType;
+import com.agoda.metrics.JobMeterBinder;
+import com.agoda.model.CompressionOptions;
 import com.agoda.service.ArchiveService;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micronaut.configuration.picocli.PicocliRunner;
+import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 
+import static com.agoda.constants.Constants.STREAM;
+
 /**
  * Provides subcommands for compress option
  */
@@ -19,24 +36,110 @@ public class CompressCommand implements Runnable {
 
     @Parameters(index = "0", description = "Source folder to look for files to compress")
     Path source;
-    @Parameters(index = "1", description = "Destination folder to output the compressed files")
+    @Parameters(index = "1", description = "Destination folder to output the compressed files, `-` to write a " +
+            "single archive to stdout")
     Path destination;
     @Parameters(index = "2", description = "Max file size of the compressed file")
     long maxFileSize;
     @Parameters(index = "3", description = "Compression mode",
             defaultValue = CompressionType.ZIP)
     String mode;
+    @Option(names = {"-b", "--base"}, description = "Folder of a previous archive (or its manifest), only the " +
+            "files changed since are compressed")
+    Path base;
+    @Option(names = {"-m", "--mmap"}, description = "Memory map the source files instead of reading them into " +
+            "the heap")
+    boolean memoryMapped;
+    @Option(names = {"-p", "--policy"}, description = "Speed/ratio policy picking the level of every entry, " +
+            "one of ${COMPLETION-CANDIDATES}", defaultValue = "BALANCED")
+    CompressionPolicy policy;
+    @Option(names = {"-w", "--workers"}, description = "Number of threads deflating, all processors by default")
+    Integer workers;
+    @Option(names = {"--readers"}, description = "Number of threads reading source files",
+            defaultValue = "" + CompressionOptions.DEFAULT_READERS)
+    int readers;
+    @Option(names = {"--in-flight"}, description = "Max MB read from the sources and not yet written")
+    Long inFlight;
+    @Option(names = {"--virtual-threads"}, description = "Read the sources on virtual threads (JDK 21+), for trees " +
+            "of many small files")
+    boolean virtualThreads;
+    @Option(names = {"-r", "--resume"}, description = "Continue an interrupted run from its journal in the " +
+            "destination, keeping the parts it completed")
+    boolean resume;
+    @Option(names = {"--metrics"}, description = "Write a JSON summary of the stages, queues and archives of the " +
+            "run to the given file")
+    Path metricsFile;
+    @Option(names = {"--progress"}, description = "Seconds between two progress lines with the throughput and " +
+            "the time left, 0 to not log them", defaultValue = "10")
+    long progressInterval;
+    @Option(names = {"--progress-file"}, description = "File replaced with the progress of the run as JSON while " +
+            "it runs")
+    Path progressFile;
+
+    @Spec
+    CommandSpec spec;
+
+    @Inject
+    @Nullable
+    MeterRegistry meterRegistry;
 
     public static void main(String[] args) throws Exception {
+        redirectLogs(args);
         PicocliRunner.run(CompressCommand.class, args);
     }
 
+    /**
+     * Sends the logs to stderr when the archive is written to stdout. Called before the application context starts,
+     * as it logs while starting up.
+     *
+     * @param args arguments of the compress command
+     */
+    public static void redirectLogs(String[] args) {
+        CompressCommand command = new CompressCommand();
+        try {
+            new CommandLine(command).parseArgs(args);
+        } catch (ParameterException e) {
+            // reported when the command runs
+            return;
+        }
+        if (command.destination != null && STREAM.equals(command.destination.toString())) {
+            System.setOut(System.err);
+        }
+    }
+
     public void run() {
+        if (STREAM.equals(destination.toString()) && CompressionType.DEDUP.equalsIgnoreCase(mode)) {
+            throw new ParameterException(spec.commandLine(), "The " + CompressionType.DEDUP + " mode cannot " +
+                    "write to stdout, give a destination folder");
+        }
 
         ArchiveService archiveService = new ArchiveService();
         archiveService.selectCompressionType(mode);
+        CompressionOptions options = archiveService.getOptions().setMemoryMapped(memoryMapped).setPolicy(policy)
+                .setReaders(readers).setVirtualThreads(virtualThreads).setResume(resume)
+                .setProgressInterval(progressInterval).setProgressFile(progressFile);
+        if (workers != null) {
+            options.setWorkers(workers);
+        }
+        if (inFlight != null) {
+            options.setInFlightBytes(inFlight * 1024L * 1024L);
+        }
+        if (meterRegistry != null) {
+            new JobMeterBinder(archiveService.getMetrics()).bindTo(meterRegistry);
+        }
         try {
-            archiveService.compress(source, destination, maxFileSize);
+            if (STREAM.equals(destination.toString())) {
+                // the archive owns stdout, the logs go to stderr
+                OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+                System.setOut(System.err);
+                archiveService.compress(source, outputStream);
+                outputStream.flush();
+            } else {
+                archiveService.compress(source, destination, maxFileSize, base);
+            }
+            if (metricsFile != null) {
+                archiveService.getMetrics().writeSummary(metricsFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,13 +1,24 @@
 package com.agoda.commands;
 
 import com.agoda.constants.CompressionType;
+import com.agoda.metrics.JobMeterBinder;
 import com.agoda.service.ArchiveService;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micronaut.configuration.picocli.PicocliRunner;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
 
+import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.agoda.constants.Constants.STREAM;
 
 /**
  * Provides subcommands for decompress option
@@ -18,23 +29,65 @@ import java.nio.file.Path;
 public class DecompressCommand implements Runnable {
 
 
-    @CommandLine.Parameters(index = "0", description = "Source folder to look for files to decompress")
+    @CommandLine.Parameters(index = "0", description = "Source folder to look for files to decompress, `-` to " +
+            "read a single archive from stdin")
     Path source;
     @CommandLine.Parameters(index = "1", description = "Destination folder to output the decompressed files")
     Path destination;
     @CommandLine.Parameters(index = "2", description = "Compression mode",
             defaultValue = CompressionType.ZIP)
     String mode;
+    @CommandLine.Option(names = {"-i", "--incremental"}, description = "Folder of an incremental archive to " +
+            "apply on top of the source archive, can be repeated and is applied in the given order")
+    List<Path> increments = new ArrayList<>();
+    @CommandLine.Option(names = {"-r", "--resume"}, description = "Continue an interrupted run from its journal " +
+            "in the destination, skipping the entries it extracted")
+    boolean resume;
+    @CommandLine.Option(names = {"--metrics"}, description = "Write a JSON summary of the stages of the run to " +
+            "the given file")
+    Path metricsFile;
+    @CommandLine.Option(names = {"--progress"}, description = "Seconds between two progress lines with the " +
+            "throughput and the time left, 0 to not log them", defaultValue = "10")
+    long progressInterval;
+    @CommandLine.Option(names = {"--progress-file"}, description = "File replaced with the progress of the run as " +
+            "JSON while it runs")
+    Path progressFile;
+
+    @Spec
+    CommandSpec spec;
+
+    @Inject
+    @Nullable
+    MeterRegistry meterRegistry;
 
     public static void main(String[] args) throws Exception {
         PicocliRunner.run(DecompressCommand.class, args);
     }
 
     public void run() {
+        if (STREAM.equals(source.toString()) && CompressionType.DEDUP.equalsIgnoreCase(mode)) {
+            throw new ParameterException(spec.commandLine(), "The " + CompressionType.DEDUP + " mode cannot " +
+                    "read from stdin, give a source folder");
+        }
         ArchiveService archiveService = new ArchiveService();
         archiveService.selectCompressionType(mode);
+        archiveService.getOptions().setResume(resume).setProgressInterval(progressInterval)
+                .setProgressFile(progressFile);
+        if (meterRegistry != null) {
+            new JobMeterBinder(archiveService.getMetrics()).bindTo(meterRegistry);
+        }
         try {
-            archiveService.decompress(source, destination);
+            if (STREAM.equals(source.toString())) {
+                archiveService.decompress(System.in, destination);
+                for (Path increment : increments) {
+                    archiveService.decompress(increment, destination);
+                }
+            } else {
+                archiveService.decompress(source, destination, increments);
+            }
+            if (metricsFile != null) {
+                archiveService.getMetrics().writeSummary(metricsFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
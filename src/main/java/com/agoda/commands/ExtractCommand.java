@@ -0,0 +1,44 @@
+package com.agoda.commands;
+
+import com.agoda.constants.CompressionType;
+import com.agoda.service.ArchiveService;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Parameters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Provides subcommands for extract option
+ */
+@Command(name = "extract", description = "Extracts the files matching the given pattern from the " +
+        "archive in the source directory to the destination directory",
+        mixinStandardHelpOptions = true)
+public class ExtractCommand implements Runnable {
+
+    @Parameters(index = "0", description = "Source folder to look for the archive")
+    Path source;
+    @Parameters(index = "1", description = "Glob pattern of the files to extract, e.g. 'logs/**.log'")
+    String pattern;
+    @Parameters(index = "2", description = "Destination folder to output the extracted files",
+            defaultValue = ".")
+    Path destination;
+    @Parameters(index = "3", description = "Compression mode",
+            defaultValue = CompressionType.ZIP)
+    String mode;
+
+    public static void main(String[] args) throws Exception {
+        PicocliRunner.run(ExtractCommand.class, args);
+    }
+
+    public void run() {
+        ArchiveService archiveService = new ArchiveService();
+        archiveService.selectCompressionType(mode);
+        try {
+            archiveService.extract(source, destination, pattern);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.agoda.commands;
+
+import com.agoda.constants.CompressionType;
+import com.agoda.model.Manifest;
+import com.agoda.model.ManifestEntry;
+import com.agoda.service.ArchiveService;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Parameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Provides subcommands for list option
+ */
+@Command(name = "list", description = "Lists the files stored in the archive in the source directory",
+        mixinStandardHelpOptions = true)
+public class ListCommand implements Runnable {
+
+    @Parameters(index = "0", description = "Source folder to look for the archive")
+    Path source;
+    @Parameters(index = "1", description = "Compression mode",
+            defaultValue = CompressionType.ZIP)
+    String mode;
+
+    public static void main(String[] args) throws Exception {
+        PicocliRunner.run(ListCommand.class, args);
+    }
+
+    public void run() {
+        ArchiveService archiveService = new ArchiveService();
+        archiveService.selectCompressionType(mode);
+        try {
+            Manifest manifest = archiveService.list(source);
+            for (ManifestEntry entry : manifest.getEntries()) {
+                if (entry.getState() == ManifestEntry.State.DELETED) {
+                    System.out.printf("%15s  %8s  %5s  %s (deleted)%n", "-", "-", "-", entry.getName());
+                } else if (entry.isDirectory()) {
+                    System.out.printf("%15s  %8s  %5s  %s%n", "-", "-", "-", entry.getName() + File.separator);
+                } else if (entry.getState() == ManifestEntry.State.UNCHANGED) {
+                    System.out.printf("%15d  %08x  %5s  %s (unchanged)%n", entry.getSize(), entry.getCrc(), "-",
+                            entry.getName());
+                } else {
+                    System.out.printf("%15d  %08x  %5d  %s%n", entry.getSize(), entry.getCrc(),
+                            entry.getPieces().size(), entry.getName());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.agoda.commands;
+
+import com.agoda.constants.CompressionPolicy;
+import com.agoda.model.CompressionOptions;
+import com.agoda.service.ArchiveServer;
+import com.agoda.service.JobQueue;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+
+import static com.agoda.service.ArchiveService.logger;
+
+/**
+ * Provides subcommands for serve option
+ */
+@Command(name = "serve", description = "Runs as a local daemon taking compress and decompress jobs over HTTP, " +
+        "see `/jobs`",
+        mixinStandardHelpOptions = true)
+public class ServeCommand implements Callable<Integer> {
+
+    @Option(names = {"--port"}, description = "Port to listen on", defaultValue = "8720")
+    int port;
+    @Option(names = {"--bind"}, description = "Address to listen on, only local clients by default",
+            defaultValue = "127.0.0.1")
+    String bind;
+    @Option(names = {"-j", "--jobs"}, description = "Number of jobs running at once", defaultValue = "2")
+    int jobs;
+    @Option(names = {"--queue"}, description = "Max number of jobs waiting", defaultValue = "1000")
+    int queue;
+    @Option(names = {"-m", "--mmap"}, description = "Memory map the source files instead of reading them into " +
+            "the heap")
+    boolean memoryMapped;
+    @Option(names = {"-p", "--policy"}, description = "Speed/ratio policy picking the level of every entry, " +
+            "one of ${COMPLETION-CANDIDATES}", defaultValue = "BALANCED")
+    CompressionPolicy policy;
+    @Option(names = {"-w", "--workers"}, description = "Number of threads deflating, shared by all jobs, all " +
+            "processors by default")
+    Integer workers;
+    @Option(names = {"--readers"}, description = "Number of threads reading source files, shared by all jobs",
+            defaultValue = "" + CompressionOptions.DEFAULT_READERS)
+    int readers;
+    @Option(names = {"--in-flight"}, description = "Max MB read from the sources and not yet written, over all jobs")
+    Long inFlight;
+    @Option(names = {"--virtual-threads"}, description = "Read the sources on virtual threads (JDK 21+)")
+    boolean virtualThreads;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(PicocliRunner.execute(ServeCommand.class, args));
+    }
+
+    public Integer call() {
+        CompressionOptions options = new CompressionOptions().setMemoryMapped(memoryMapped).setPolicy(policy)
+                .setReaders(readers).setVirtualThreads(virtualThreads);
+        if (workers != null) {
+            options.setWorkers(workers);
+        }
+        if (inFlight != null) {
+            options.setInFlightBytes(inFlight * 1024L * 1024L);
+        }
+        JobQueue jobQueue = new JobQueue(options, jobs, queue);
+        ArchiveServer server;
+        try {
+            server = new ArchiveServer(new InetSocketAddress(bind, port), jobQueue);
+        } catch (IOException e) {
+            logger.error("Could not serve on {}:{}: {}", bind, port, e.getMessage());
+            jobQueue.close();
+            return 1;
+        }
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close, "archiver-shutdown"));
+            server.start();
+            server.await();
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.agoda.commands;
+
+import com.agoda.constants.CompressionType;
+import com.agoda.model.Verification;
+import com.agoda.service.ArchiveService;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+/**
+ * Provides subcommands for verify option
+ */
+@Command(name = "verify", description = "Verifies the archive in the source directory without extracting it, " +
+        "exits with 1 if it is damaged",
+        mixinStandardHelpOptions = true)
+public class VerifyCommand implements Callable<Integer> {
+
+    @Parameters(index = "0", description = "Source folder to look for the archive")
+    Path source;
+    @Parameters(index = "1", description = "Compression mode",
+            defaultValue = CompressionType.ZIP)
+    String mode;
+    @Option(names = {"-w", "--workers"}, description = "Number of threads checking entries, all processors by " +
+            "default")
+    Integer workers;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(PicocliRunner.execute(VerifyCommand.class, args));
+    }
+
+    public Integer call() {
+        ArchiveService archiveService = new ArchiveService();
+        archiveService.selectCompressionType(mode);
+        if (workers != null) {
+            archiveService.getOptions().setWorkers(workers);
+        }
+        try {
+            Verification verification = archiveService.verify(source);
+            for (String error : verification.getErrors()) {
+                System.out.println(error);
+            }
+            System.out.printf("%d entries, %d bytes checked, %s%n", verification.getEntries(),
+                    verification.getBytes(), verification.isValid() ? "OK" : verification.getErrors().size()
+                            + " problems");
+            return verification.isValid() ? 0 : 1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+}
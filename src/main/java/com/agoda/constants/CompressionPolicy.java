@@ -0,0 +1,50 @@
+package com.agoda.constants;
+
+import java.util.zip.Deflater;
+
+/**
+ * Speed/ratio trade-off used to pick the compression level of every entry from a trial deflate of its first bytes.
+ * Entries which barely shrink in the trial are stored as they are.
+ */
+public enum CompressionPolicy {
+    /**
+     * Fastest level, stores anything that does not shrink by at least 10%
+     */
+    FAST(0.9, 0.9, Deflater.BEST_SPEED),
+    /**
+     * Fastest level for weakly compressible entries, default level otherwise, stores what shrinks by less than 5%
+     */
+    BALANCED(0.95, 0.6, Deflater.DEFAULT_COMPRESSION),
+    /**
+     * Best level for everything but entries which shrink by less than 2%
+     */
+    BEST(0.98, 0.98, Deflater.BEST_COMPRESSION);
+
+    private final double storeRatio;
+    private final double fastRatio;
+    private final int level;
+
+    CompressionPolicy(double storeRatio, double fastRatio, int level) {
+        this.storeRatio = storeRatio;
+        this.fastRatio = fastRatio;
+        this.level = level;
+    }
+
+    /**
+     * @return level used when there is not enough data to sample
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param ratio compressed to original size of the trial deflate at the fastest level
+     * @return compression level of the entry, {@link Deflater#NO_COMPRESSION} to store it
+     */
+    public int levelFor(double ratio) {
+        if (ratio >= storeRatio) {
+            return Deflater.NO_COMPRESSION;
+        }
+        return ratio >= fastRatio ? Deflater.BEST_SPEED : level;
+    }
+}
@@ -3,6 +3,8 @@ package com.agoda.constants;
 public final class CompressionType {
     public static final String ZIP = "ZIP";
     public static final String RAR = "RAR";
+    public static final String DEDUP = "DEDUP";
+    public static final String TGZ = "TGZ";
 
     private CompressionType() {
     }
@@ -3,6 +3,12 @@ package com.agoda.constants;
 public class Constants {
 
     public static final String ZIP_EXTENSION = ".zip";
-    public static final String TEMP_FOLDER_PREFIX = "archiver-";
+    public static final String TAR_GZ_EXTENSION = ".tar.gz";
+    public static final String MANIFEST_EXTENSION = ".manifest";
+    public static final String HIDDEN_FILE_PREFIX = ".";
     public static final String FILE_PART_SUFFIX = "_part_";
+    public static final String PACK_SUFFIX = "_pack_";
+    public static final String RECIPES_EXTENSION = ".recipes";
+    public static final String JOURNAL_EXTENSION = ".journal";
+    public static final String STREAM = "-";
 }
@@ -0,0 +1,56 @@
+package com.agoda.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the metrics of a job through Micrometer: for every stage a timer of its operations and busy time and a
+ * counter of its bytes, the depth of the queues and the compression ratio. The meters read the job as they are
+ * published, so registries pushing on a schedule report the job while it runs.
+ */
+public class JobMeterBinder implements MeterBinder {
+
+    private final JobMetrics metrics;
+
+    public JobMeterBinder(JobMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Stage stage : Stage.values()) {
+            String name = stage.name().toLowerCase(Locale.ROOT);
+            FunctionTimer.builder("archiver.stage", metrics, job -> job.getCount(stage),
+                    job -> job.getNanos(stage), TimeUnit.NANOSECONDS)
+                    .tag("stage", name)
+                    .description("Operations of the stage and the time the threads spent in them")
+                    .register(registry);
+            FunctionCounter.builder("archiver.stage.bytes", metrics, job -> job.getBytes(stage))
+                    .tag("stage", name)
+                    .baseUnit("bytes")
+                    .description("Bytes handled by the stage")
+                    .register(registry);
+        }
+        Gauge.builder("archiver.queue.depth", metrics, job -> job.getBlocks().get())
+                .tag("queue", "blocks")
+                .description("Blocks read or compressed ahead of the one written")
+                .register(registry);
+        Gauge.builder("archiver.queue.depth", metrics, job -> job.getParts().get())
+                .tag("queue", "parts")
+                .description("Archives being written")
+                .register(registry);
+        Gauge.builder("archiver.in.flight", metrics, job -> job.getInFlight().get())
+                .baseUnit("bytes")
+                .description("Bytes read from the sources and not written yet")
+                .register(registry);
+        Gauge.builder("archiver.compression.ratio", metrics, JobMetrics::getCompressionRatio)
+                .description("Bytes written to the archives per byte compressed")
+                .register(registry);
+    }
+}
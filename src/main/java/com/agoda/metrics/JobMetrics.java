@@ -0,0 +1,394 @@
+package com.agoda.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.agoda.utils.Utils.quote;
+
+/**
+ * Instrumentation of an archive job: what every {@link Stage} handled and how long the threads spent in it, the
+ * depth of the queues between the stages and the timing of every archive written. Thread safe, it is updated from the
+ * walking, reading, deflating and writing threads.
+ * Every operation is also recorded as a flight recorder event, see {@link StageEvent} and {@link PartEvent}. At the
+ * end of the job the metrics are logged and can be written as a JSON summary, see {@link #toJson()}; while the job
+ * runs they can be exported through Micrometer, see {@link JobMeterBinder}.
+ */
+public class JobMetrics {
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LongAdder[] counts = adders();
+    private final LongAdder[] bytes = adders();
+    private final LongAdder[] nanos = adders();
+    private final Depth blocks = new Depth();
+    private final Depth parts = new Depth();
+    private final Depth inFlight = new Depth();
+    private final List<PartTiming> partTimings = Collections.synchronizedList(new ArrayList<>());
+    private final Progress progress = new Progress();
+    private volatile String operation = "idle";
+    private volatile Instant startTime = Instant.now();
+    private volatile long started = System.nanoTime();
+    private volatile long finished;
+
+    /**
+     * Starts a job, the metrics of the previous one are cleared
+     *
+     * @param operation name of the job, e.g. compress
+     */
+    public void begin(String operation) {
+        for (int i = 0; i < STAGES.length; i++) {
+            counts[i].reset();
+            bytes[i].reset();
+            nanos[i].reset();
+        }
+        blocks.reset();
+        parts.reset();
+        inFlight.reset();
+        partTimings.clear();
+        progress.reset();
+        this.operation = operation;
+        this.startTime = Instant.now();
+        this.started = System.nanoTime();
+        this.finished = 0;
+    }
+
+    /**
+     * Ends the job, its rates are computed up to now
+     */
+    public void finish() {
+        finished = System.nanoTime();
+    }
+
+    /**
+     * @param stage stage of the operation about to start
+     * @return timing of the operation, to stop once done
+     */
+    public Timing start(Stage stage) {
+        return new Timing(stage);
+    }
+
+    /**
+     * Counts operations timed by the caller, no event is recorded
+     *
+     * @param stage stage of the operations
+     * @param count operations done
+     * @param bytes bytes handled
+     * @param nanos time spent
+     */
+    public void add(Stage stage, long count, long bytes, long nanos) {
+        int index = stage.ordinal();
+        this.counts[index].add(count);
+        this.bytes[index].add(bytes);
+        this.nanos[index].add(nanos);
+    }
+
+    /**
+     * @param archive archive about to be written
+     * @return timing of the archive, to finish once it is closed
+     */
+    public PartTiming startPart(Path archive) {
+        parts.add(1);
+        return new PartTiming(archive);
+    }
+
+    /**
+     * @return work done against the work planned, see {@link ProgressReporter}
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return blocks read or compressed ahead of the one written, over all archives
+     */
+    public Depth getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return archives being written
+     */
+    public Depth getParts() {
+        return parts;
+    }
+
+    /**
+     * @return bytes read from the sources and not written yet
+     */
+    public Depth getInFlight() {
+        return inFlight;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount(Stage stage) {
+        return counts[stage.ordinal()].sum();
+    }
+
+    public long getBytes(Stage stage) {
+        return bytes[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage the stage
+     * @return time spent in the stage summed over all threads
+     */
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @return time since the job began, until it finished
+     */
+    public long getElapsedNanos() {
+        long end = finished;
+        return (end == 0 ? System.nanoTime() : end) - started;
+    }
+
+    /**
+     * @return bytes written to the archives per byte compressed, NaN when nothing was compressed
+     */
+    public double getCompressionRatio() {
+        long compressed = getBytes(Stage.DEFLATE);
+        return compressed == 0 ? Double.NaN : (double) getBytes(Stage.WRITE) / compressed;
+    }
+
+    /**
+     * @return timings of the archives written so far, in the order they were finished
+     */
+    public List<PartTiming> getPartTimings() {
+        synchronized (partTimings) {
+            return new ArrayList<>(partTimings);
+        }
+    }
+
+    /**
+     * Summary of the job: for every stage its counts, its rates over the elapsed time and how many threads were busy
+     * in it on average, the maximum depth of the queues, the compression ratio and the timing of every archive.
+     *
+     * @return JSON object of the metrics
+     */
+    public String toJson() {
+        double seconds = getElapsedNanos() / 1e9;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"operation\": ").append(quote(operation)).append(",\n");
+        json.append("  \"started\": ").append(quote(startTime.toString())).append(",\n");
+        json.append("  \"elapsedMillis\": ").append(getElapsedNanos() / 1_000_000).append(",\n");
+        json.append("  \"compressionRatio\": ").append(number(getCompressionRatio())).append(",\n");
+        json.append("  \"stages\": {");
+        for (int i = 0; i < STAGES.length; i++) {
+            Stage stage = STAGES[i];
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(stage.name().toLowerCase(Locale.ROOT))).append(": {")
+                    .append("\"count\": ").append(getCount(stage))
+                    .append(", \"bytes\": ").append(getBytes(stage))
+                    .append(", \"busyMillis\": ").append(getNanos(stage) / 1_000_000)
+                    .append(", \"countPerSecond\": ").append(number(getCount(stage) / seconds))
+                    .append(", \"bytesPerSecond\": ").append(number(getBytes(stage) / seconds))
+                    .append(", \"busyThreads\": ").append(number(getNanos(stage) / 1e9 / seconds))
+                    .append("}");
+        }
+        json.append("\n  },\n");
+        json.append("  \"queues\": {")
+                .append("\"blocks\": ").append(blocks.getMax())
+                .append(", \"parts\": ").append(parts.getMax())
+                .append(", \"inFlightBytes\": ").append(inFlight.getMax())
+                .append("},\n");
+        json.append("  \"parts\": [");
+        List<PartTiming> timings = getPartTimings();
+        for (int i = 0; i < timings.size(); i++) {
+            PartTiming part = timings.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"archive\": ").append(quote(part.getArchive().toString()))
+                    .append(", \"entries\": ").append(part.getEntries())
+                    .append(", \"bytes\": ").append(part.getBytes())
+                    .append(", \"archiveBytes\": ").append(part.getArchiveBytes())
+                    .append(", \"millis\": ").append(part.getNanos() / 1_000_000)
+                    .append("}");
+        }
+        json.append(timings.isEmpty() ? "]\n" : "\n  ]\n");
+        return json.append("}\n").toString();
+    }
+
+    /**
+     * @param file path the JSON summary is written to, see {@link #toJson()}
+     * @throws IOException if the file can not be written
+     */
+    public void writeSummary(Path file) throws IOException {
+        Files.write(file, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return one line summary of the job, for the logs
+     */
+    @Override
+    public String toString() {
+        Stage entries = getCount(Stage.WRITE) > 0 ? Stage.WRITE : Stage.INFLATE;
+        Stage data = getBytes(Stage.DEFLATE) > 0 ? Stage.DEFLATE : Stage.INFLATE;
+        double seconds = getElapsedNanos() / 1e9;
+        double megabytes = getBytes(data) / (1024.0 * 1024.0);
+        String ratio = Double.isNaN(getCompressionRatio()) ? ""
+                : String.format(Locale.ROOT, ", ratio %.3f", getCompressionRatio());
+        return String.format(Locale.ROOT, "%s: %d entries, %.1fMB in %.2fs (%.1fMB/s, %.0f entries/s)%s",
+                operation, getCount(entries), megabytes, seconds, megabytes / seconds,
+                getCount(entries) / seconds, ratio);
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[STAGES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Timing of one operation of a stage, recorded in the metrics and as a {@link StageEvent} when stopped
+     */
+    public final class Timing {
+        private final Stage stage;
+        private final long start = System.nanoTime();
+        private final StageEvent event = new StageEvent();
+        private long excluded;
+
+        private Timing(Stage stage) {
+            this.stage = stage;
+            event.begin();
+        }
+
+        /**
+         * @param nanos time of the operation spent in another stage, which counts it on its own
+         * @return this timing
+         */
+        public Timing exclude(long nanos) {
+            excluded += nanos;
+            return this;
+        }
+
+        /**
+         * @param name  entry, file or archive the operation worked on
+         * @param count operations done
+         * @param bytes bytes handled
+         */
+        public void stop(String name, long count, long bytes) {
+            add(stage, count, bytes, System.nanoTime() - start - excluded);
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.name();
+                event.name = name;
+                event.count = count;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Timing of an archive written by the job, recorded as a {@link PartEvent} when finished
+     */
+    public final class PartTiming {
+        private final Path archive;
+        private final long start = System.nanoTime();
+        private final PartEvent event = new PartEvent();
+        private long entries;
+        private long bytes;
+        private long archiveBytes;
+        private long nanos;
+
+        private PartTiming(Path archive) {
+            this.archive = archive;
+            event.begin();
+        }
+
+        /**
+         * @param entries      entries written into the archive
+         * @param bytes        bytes of the entries before compression
+         * @param archiveBytes size of the archive
+         */
+        public void finish(long entries, long bytes, long archiveBytes) {
+            this.nanos = System.nanoTime() - start;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.archiveBytes = archiveBytes;
+            parts.add(-1);
+            partTimings.add(this);
+            event.end();
+            if (event.shouldCommit()) {
+                event.archive = archive.toString();
+                event.entries = entries;
+                event.bytes = bytes;
+                event.archiveBytes = archiveBytes;
+                event.commit();
+            }
+        }
+
+        public Path getArchive() {
+            return archive;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getArchiveBytes() {
+            return archiveBytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Current and maximum depth of a queue between two stages
+     */
+    public static final class Depth {
+        private final AtomicLong current = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param delta items queued, negative when dequeued
+         */
+        public void add(long delta) {
+            long depth = current.addAndGet(delta);
+            if (delta > 0) {
+                max.accumulateAndGet(depth, Math::max);
+            }
+        }
+
+        public long get() {
+            return current.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        private void reset() {
+            current.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.agoda.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of an archive written by a job, from its first block read until it is closed
+ */
+@Name("com.agoda.archiver.Part")
+@Label("Archiver Part")
+@Category("Archiver")
+@Description("An archive written by an archive job")
+@StackTrace(false)
+class PartEvent extends Event {
+
+    @Label("Archive")
+    String archive;
+
+    @Label("Entries")
+    long entries;
+
+    @Label("Bytes")
+    @Description("Bytes of the entries before compression")
+    @DataAmount
+    long bytes;
+
+    @Label("Archive Bytes")
+    @DataAmount
+    long archiveBytes;
+}
@@ -0,0 +1,82 @@
+package com.agoda.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Work done by a job against the work planned. The plan grows while the source is walked, or is known up front from
+ * the index of the archives, and is complete once nothing more will be added. Lock free, the counters are fed from
+ * the walking and writing threads, see {@link ProgressReporter}.
+ */
+public class Progress {
+
+    private final LongAdder plannedEntries = new LongAdder();
+    private final LongAdder plannedBytes = new LongAdder();
+    private final LongAdder doneEntries = new LongAdder();
+    private final LongAdder doneBytes = new LongAdder();
+    private volatile boolean planComplete;
+
+    void reset() {
+        plannedEntries.reset();
+        plannedBytes.reset();
+        doneEntries.reset();
+        doneBytes.reset();
+        planComplete = false;
+    }
+
+    /**
+     * @param entries entries added to the plan
+     * @param bytes   bytes of the entries
+     */
+    public void plan(long entries, long bytes) {
+        plannedEntries.add(entries);
+        plannedBytes.add(bytes);
+    }
+
+    /**
+     * Marks the plan complete, the totals are final
+     */
+    public void planComplete() {
+        planComplete = true;
+    }
+
+    /**
+     * @param entries entries finished
+     * @param bytes   bytes written or extracted, before compression
+     */
+    public void done(long entries, long bytes) {
+        doneEntries.add(entries);
+        doneBytes.add(bytes);
+    }
+
+    public long getPlannedEntries() {
+        return plannedEntries.sum();
+    }
+
+    public long getPlannedBytes() {
+        return plannedBytes.sum();
+    }
+
+    public long getDoneEntries() {
+        return doneEntries.sum();
+    }
+
+    public long getDoneBytes() {
+        return doneBytes.sum();
+    }
+
+    public boolean isPlanComplete() {
+        return planComplete;
+    }
+
+    /**
+     * @return share of the planned bytes done, of the planned entries when there are no bytes, NaN without a plan
+     */
+    public double getFraction() {
+        long bytes = getPlannedBytes();
+        if (bytes > 0) {
+            return Math.min(1.0, (double) getDoneBytes() / bytes);
+        }
+        long entries = getPlannedEntries();
+        return entries > 0 ? Math.min(1.0, (double) getDoneEntries() / entries) : Double.NaN;
+    }
+}
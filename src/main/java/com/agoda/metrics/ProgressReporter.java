@@ -0,0 +1,174 @@
+package com.agoda.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.utils.Utils.quote;
+
+/**
+ * Reports the {@link Progress} of a job on a timer: logs a line with the throughput and the estimated time left, and
+ * replaces a JSON progress file that scripts can poll. The throughput is smoothed over the recent intervals, so the
+ * estimate follows a job that slows down on a tree of small files.
+ * The counters are only read when reporting, the job itself never waits on the reporter.
+ */
+public class ProgressReporter {
+
+    public static final long DEFAULT_FILE_INTERVAL_SECONDS = 5;
+    // weight of the last interval in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    private final JobMetrics metrics;
+    private final boolean log;
+    private final Path file;
+    private final ScheduledExecutorService timer;
+    private long lastBytes;
+    private long lastNanos;
+    private double rate = Double.NaN;
+
+    /**
+     * @param metrics  metrics of the job, holding its progress
+     * @param interval seconds between two reports, 0 to not log
+     * @param file     progress file replaced at every report, null for none
+     */
+    private ProgressReporter(JobMetrics metrics, long interval, Path file) {
+        this.metrics = metrics;
+        this.log = interval > 0;
+        this.file = file;
+        this.lastNanos = System.nanoTime();
+        if (!log && file == null) {
+            this.timer = null;
+            return;
+        }
+        long period = log ? interval : DEFAULT_FILE_INTERVAL_SECONDS;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "archiver-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> report("running"), period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param metrics  metrics of the job, holding its progress
+     * @param interval seconds between two log lines, 0 to not log
+     * @param file     progress file replaced every interval, or every {@link #DEFAULT_FILE_INTERVAL_SECONDS} when not
+     *                 logging, null for none
+     * @return a started reporter, doing nothing when there is nothing to report to
+     */
+    public static ProgressReporter start(JobMetrics metrics, long interval, Path file) {
+        return new ProgressReporter(metrics, interval, file);
+    }
+
+    /**
+     * Stops the timer and writes the last state of the job to the progress file
+     *
+     * @param state how the job ended, e.g. finished or failed
+     */
+    public void stop(String state) {
+        if (timer == null) {
+            return;
+        }
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            synchronized (this) {
+                writeFile(state, metrics.getProgress());
+            }
+        }
+    }
+
+    private synchronized void report(String state) {
+        Progress progress = metrics.getProgress();
+        long now = System.nanoTime();
+        long bytes = progress.getDoneBytes();
+        double recent = (bytes - lastBytes) * 1e9 / Math.max(1, now - lastNanos);
+        rate = Double.isNaN(rate) ? recent : SMOOTHING * recent + (1 - SMOOTHING) * rate;
+        lastBytes = bytes;
+        lastNanos = now;
+        if (log) {
+            logger.info("{}", describe(progress));
+        }
+        if (file != null) {
+            writeFile(state, progress);
+        }
+    }
+
+    /**
+     * @return seconds left at the current throughput, -1 while the plan is incomplete or nothing moves
+     */
+    private long getEta(Progress progress) {
+        long left = progress.getPlannedBytes() - progress.getDoneBytes();
+        if (!progress.isPlanComplete() || Double.isNaN(rate) || rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, left) / rate);
+    }
+
+    private String describe(Progress progress) {
+        StringBuilder line = new StringBuilder("Progress: ");
+        long eta = getEta(progress);
+        if (progress.isPlanComplete() && !Double.isNaN(progress.getFraction())) {
+            line.append(String.format(Locale.ROOT, "%.1f%% ", progress.getFraction() * 100));
+        }
+        line.append(megabytes(progress.getDoneBytes()));
+        if (progress.getPlannedBytes() > 0) {
+            line.append(progress.isPlanComplete() ? " of " : " of at least ")
+                    .append(megabytes(progress.getPlannedBytes()));
+        }
+        line.append(", ").append(progress.getDoneEntries());
+        if (progress.getPlannedEntries() > 0) {
+            line.append(" of ").append(progress.getPlannedEntries());
+        }
+        line.append(" entries, ").append(megabytes(Double.isNaN(rate) ? 0 : (long) rate)).append("/s");
+        if (eta >= 0) {
+            line.append(String.format(Locale.ROOT, ", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        } else if (progress.getPlannedEntries() > 0 && !progress.isPlanComplete()) {
+            line.append(", still walking");
+        }
+        return line.toString();
+    }
+
+    /**
+     * Replaces the progress file with the current state, through a temporary file so readers never see half of it
+     */
+    private void writeFile(String state, Progress progress) {
+        String json = "{\"operation\": " + quote(metrics.getOperation())
+                + ", \"state\": \"" + state + "\""
+                + ", \"updated\": \"" + Instant.now() + "\""
+                + ", \"elapsedSeconds\": " + metrics.getElapsedNanos() / 1_000_000_000L
+                + ", \"entriesDone\": " + progress.getDoneEntries()
+                + ", \"entriesPlanned\": " + progress.getPlannedEntries()
+                + ", \"bytesDone\": " + progress.getDoneBytes()
+                + ", \"bytesPlanned\": " + progress.getPlannedBytes()
+                + ", \"planComplete\": " + progress.isPlanComplete()
+                + ", \"fraction\": " + (Double.isNaN(progress.getFraction()) ? "null"
+                : String.format(Locale.ROOT, "%.4f", progress.getFraction()))
+                + ", \"bytesPerSecond\": " + (Double.isNaN(rate) ? 0 : (long) rate)
+                + ", \"etaSeconds\": " + (getEta(progress) < 0 ? "null" : getEta(progress))
+                + "}\n";
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, json.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write the progress file `{}`: {}", file, e.getMessage());
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
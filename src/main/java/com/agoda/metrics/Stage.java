@@ -0,0 +1,37 @@
+package com.agoda.metrics;
+
+/**
+ * Stages an archive job goes through. Every stage counts its operations, the bytes they handled and the time the
+ * threads spent in them, so a slow job shows whether it waits on the walk, the disks or the CPUs.
+ */
+public enum Stage {
+    /**
+     * Listing the source tree and planning the chunks, counts the entries listed and their bytes
+     */
+    WALK,
+    /**
+     * Planning the slices of the files larger than a part, counts the files split
+     */
+    SPLIT,
+    /**
+     * Reading source blocks into memory, counts the blocks read
+     */
+    READ,
+    /**
+     * Compressing blocks on the workers, counts the blocks and their uncompressed bytes
+     */
+    DEFLATE,
+    /**
+     * Appending compressed data to the archives, counts the entries finished and the bytes written
+     */
+    WRITE,
+    /**
+     * Decompressing entries, counts the entries and their uncompressed bytes
+     */
+    INFLATE,
+    /**
+     * Laying out the files in the destination: creating them and writing every piece at its offset, counts the
+     * pieces written and their bytes
+     */
+    REASSEMBLE
+}
@@ -0,0 +1,35 @@
+package com.agoda.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of one operation of a {@link Stage}, e.g. a block deflated or an entry inflated. Recorded
+ * with {@code -XX:StartFlightRecording}, the events are free when no recording is running.
+ */
+@Name("com.agoda.archiver.Stage")
+@Label("Archiver Stage")
+@Category("Archiver")
+@Description("One operation of a stage of an archive job")
+@StackTrace(false)
+class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Name")
+    @Description("Entry, file or archive the operation worked on")
+    String name;
+
+    @Label("Count")
+    long count;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
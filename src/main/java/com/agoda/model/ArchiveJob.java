@@ -0,0 +1,172 @@
+package com.agoda.model;
+
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Progress;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Locale;
+
+import static com.agoda.utils.Utils.quote;
+
+/**
+ * A compress or decompress job submitted to a long running archiver, with its state and metrics.
+ * Jobs are ordered by priority, the highest first, then in the order they were submitted.
+ */
+public class ArchiveJob implements Comparable<ArchiveJob> {
+
+    public static final String COMPRESS = "compress";
+    public static final String DECOMPRESS = "decompress";
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, FAILED, CANCELLED
+    }
+
+    private final long sequence;
+    private final String operation;
+    private final Path source;
+    private final Path destination;
+    private final long maxFileSize;
+    private final String mode;
+    private final int priority;
+    private final Instant submitted = Instant.now();
+    private final JobMetrics metrics = new JobMetrics();
+    private volatile State state = State.QUEUED;
+    private volatile Instant started;
+    private volatile Instant finished;
+    private volatile String error;
+
+    /**
+     * @param sequence    number of the job, in the order jobs are submitted
+     * @param operation   {@link #COMPRESS} or {@link #DECOMPRESS}
+     * @param source      path
+     * @param destination path
+     * @param maxFileSize the maxfilesize of the archives when compressing
+     * @param mode        compression mode
+     * @param priority    jobs of a higher priority run first
+     */
+    public ArchiveJob(long sequence, String operation, Path source, Path destination, long maxFileSize, String mode,
+                      int priority) {
+        this.sequence = sequence;
+        this.operation = operation;
+        this.source = source;
+        this.destination = destination;
+        this.maxFileSize = maxFileSize;
+        this.mode = mode;
+        this.priority = priority;
+    }
+
+    public String getId() {
+        return Long.toString(sequence);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public Path getDestination() {
+        return destination;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return why the job failed, null unless it did
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return metrics of the job, its progress while it runs
+     */
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return whether the job is over, however it ended
+     */
+    public boolean isDone() {
+        State current = state;
+        return current == State.FINISHED || current == State.FAILED || current == State.CANCELLED;
+    }
+
+    public void start() {
+        started = Instant.now();
+        state = State.RUNNING;
+    }
+
+    /**
+     * @param failure why the job failed, null if it succeeded
+     */
+    public void finish(Throwable failure) {
+        finished = Instant.now();
+        if (failure != null) {
+            error = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+        }
+        state = failure == null ? State.FINISHED : State.FAILED;
+    }
+
+    public void cancel() {
+        finished = Instant.now();
+        state = State.CANCELLED;
+    }
+
+    @Override
+    public int compareTo(ArchiveJob other) {
+        int byPriority = Integer.compare(other.priority, priority);
+        return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+
+    /**
+     * @param detailed whether to include the whole metrics of the job, see {@link JobMetrics#toJson()}
+     * @return JSON object of the job, its state and progress
+     */
+    public String toJson(boolean detailed) {
+        Progress progress = metrics.getProgress();
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"id\": ").append(quote(getId()))
+                .append(", \"operation\": ").append(quote(operation))
+                .append(", \"mode\": ").append(quote(mode))
+                .append(", \"source\": ").append(quote(source.toString()))
+                .append(", \"destination\": ").append(quote(destination.toString()))
+                .append(", \"priority\": ").append(priority)
+                .append(", \"state\": ").append(quote(state.name().toLowerCase(Locale.ROOT)))
+                .append(", \"submitted\": ").append(quote(submitted.toString()))
+                .append(", \"started\": ").append(started == null ? "null" : quote(started.toString()))
+                .append(", \"finished\": ").append(finished == null ? "null" : quote(finished.toString()))
+                .append(", \"error\": ").append(error == null ? "null" : quote(error));
+        if (started != null) {
+            json.append(", \"progress\": {")
+                    .append("\"entriesDone\": ").append(progress.getDoneEntries())
+                    .append(", \"entriesPlanned\": ").append(progress.getPlannedEntries())
+                    .append(", \"bytesDone\": ").append(progress.getDoneBytes())
+                    .append(", \"bytesPlanned\": ").append(progress.getPlannedBytes())
+                    .append(", \"planComplete\": ").append(progress.isPlanComplete())
+                    .append("}");
+        }
+        if (detailed && started != null) {
+            json.append(", \"metrics\": ").append(metrics.toJson().trim());
+        }
+        return json.append("}").toString();
+    }
+}
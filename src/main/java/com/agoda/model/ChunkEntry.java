@@ -0,0 +1,93 @@
+package com.agoda.model;
+
+import java.nio.file.Path;
+
+/**
+ * Describes a single entry of an archive chunk - a directory, a whole file or a slice of a file.
+ * Slices let a large file be split across archives without copying it into intermediate part files.
+ */
+public class ChunkEntry {
+
+    private final Path path;
+    private final String name;
+    private final long offset;
+    private final long length;
+    private final boolean directory;
+    private final long lastModified;
+
+    private ChunkEntry(Path path, String name, long offset, long length, boolean directory, long lastModified) {
+        this.path = path;
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+        this.directory = directory;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates an entry for a directory
+     *
+     * @param path path of the directory
+     * @param name name of the entry inside the archive
+     * @return directory entry
+     */
+    public static ChunkEntry ofDirectory(Path path, String name) {
+        return new ChunkEntry(path, name, 0, 0, true, -1);
+    }
+
+    /**
+     * Creates an entry covering the whole file
+     *
+     * @param path   path of the file
+     * @param name   name of the entry inside the archive
+     * @param length size of the file
+     * @param lastModified last modified time of the file in milliseconds
+     * @return file entry
+     */
+    public static ChunkEntry ofFile(Path path, String name, long length, long lastModified) {
+        return new ChunkEntry(path, name, 0, length, false, lastModified);
+    }
+
+    /**
+     * Creates an entry covering a byte range of the file
+     *
+     * @param path   path of the file
+     * @param name   name of the entry inside the archive (carries the part suffix)
+     * @param offset start of the range in the file
+     * @param length length of the range
+     * @param lastModified last modified time of the file in milliseconds
+     * @return slice entry
+     */
+    public static ChunkEntry ofSlice(Path path, String name, long offset, long length, long lastModified) {
+        return new ChunkEntry(path, name, offset, length, false, lastModified);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,169 @@
+package com.agoda.model;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact list of the entries of a chunk, for trees with far more files than fit in the heap as objects.
+ * The parent directories are interned once per chunk, the names are kept as UTF-8 bytes in a single array and the
+ * sizes and times in primitive arrays, so an entry costs a few dozen bytes instead of a {@link ChunkEntry} with its
+ * path and name objects. The entries are materialized again by {@link #get(int)}.
+ * Not thread safe.
+ */
+public class ChunkPlan extends AbstractList<ChunkEntry> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final List<Path> directories = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final Map<Path, Integer> directoryIndex = new HashMap<>();
+
+    private int[] directory = new int[INITIAL_CAPACITY];
+    private int[] name = new int[INITIAL_CAPACITY];
+    // start of the file name when it differs from the entry name (slices), -1 otherwise
+    private int[] fileName = new int[INITIAL_CAPACITY];
+    private long[] offset = new long[INITIAL_CAPACITY];
+    private long[] length = new long[INITIAL_CAPACITY];
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private final BitSet directoryEntry = new BitSet();
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesLength;
+    private int size;
+
+    public ChunkPlan() {
+    }
+
+    /**
+     * @param entries entries to copy
+     */
+    public ChunkPlan(List<ChunkEntry> entries) {
+        addAll(entries);
+    }
+
+    @Override
+    public boolean add(ChunkEntry entry) {
+        if (size == directory.length) {
+            grow();
+        }
+        Path path = entry.getPath();
+        Path parent = path.getParent();
+        String separator = path.getFileSystem().getSeparator();
+        String entryName = entry.getName();
+        int split = entryName.lastIndexOf(separator);
+        String segment = split < 0 ? entryName : entryName.substring(split + separator.length());
+        String source = path.getFileName().toString();
+
+        Integer index = directoryIndex.get(parent);
+        if (index == null) {
+            index = directories.size();
+            directories.add(parent);
+            prefixes.add(split < 0 ? "" : entryName.substring(0, split + separator.length()));
+            directoryIndex.put(parent, index);
+        }
+        directory[size] = index;
+        name[size] = append(segment);
+        fileName[size] = source.equals(segment) ? -1 : append(source);
+        offset[size] = entry.getOffset();
+        length[size] = entry.getLength();
+        lastModified[size] = entry.getLastModified();
+        directoryEntry.set(size, entry.isDirectory());
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public ChunkEntry get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        String segment = string(name[index]);
+        String source = fileName[index] < 0 ? segment : string(fileName[index]);
+        Path path = directories.get(directory[index]).resolve(source);
+        String entryName = prefixes.get(directory[index]) + segment;
+        if (directoryEntry.get(index)) {
+            return ChunkEntry.ofDirectory(path, entryName);
+        }
+        return ChunkEntry.ofSlice(path, entryName, offset[index], length[index], lastModified[index]);
+    }
+
+    /**
+     * @param index position of the entry
+     * @return bytes covered by the entry, without materializing it
+     */
+    public long getLength(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return length[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        directories.clear();
+        prefixes.clear();
+        directoryIndex.clear();
+        directoryEntry.clear();
+        namesLength = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Sorts by rebuilding the plan, the entries are materialized only while sorting
+     */
+    @Override
+    public void sort(Comparator<? super ChunkEntry> comparator) {
+        ChunkEntry[] entries = toArray(new ChunkEntry[0]);
+        Arrays.sort(entries, comparator);
+        clear();
+        for (ChunkEntry entry : entries) {
+            add(entry);
+        }
+    }
+
+    private int append(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int required = namesLength + Integer.BYTES + bytes.length;
+        if (required > names.length) {
+            names = Arrays.copyOf(names, Math.max(required, names.length * 2));
+        }
+        int start = namesLength;
+        names[start] = (byte) (bytes.length >>> 24);
+        names[start + 1] = (byte) (bytes.length >>> 16);
+        names[start + 2] = (byte) (bytes.length >>> 8);
+        names[start + 3] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, names, start + Integer.BYTES, bytes.length);
+        namesLength = required;
+        return start;
+    }
+
+    private String string(int start) {
+        int length = (names[start] & 0xFF) << 24 | (names[start + 1] & 0xFF) << 16
+                | (names[start + 2] & 0xFF) << 8 | (names[start + 3] & 0xFF);
+        return new String(names, start + Integer.BYTES, length, StandardCharsets.UTF_8);
+    }
+
+    private void grow() {
+        int capacity = directory.length * 2;
+        directory = Arrays.copyOf(directory, capacity);
+        name = Arrays.copyOf(name, capacity);
+        fileName = Arrays.copyOf(fileName, capacity);
+        offset = Arrays.copyOf(offset, capacity);
+        length = Arrays.copyOf(length, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+    }
+}
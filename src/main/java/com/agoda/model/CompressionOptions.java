@@ -0,0 +1,163 @@
+package com.agoda.model;
+
+import com.agoda.constants.CompressionPolicy;
+import com.agoda.metrics.JobMetrics;
+import com.agoda.strategy.CompressionScheduler;
+
+import java.nio.file.Path;
+
+import static com.agoda.utils.Utils.getMaxMemory;
+import static com.agoda.utils.Utils.getParallelism;
+
+/**
+ * Tuning options of the compression, shared by the service with the selected strategy
+ */
+public class CompressionOptions {
+
+    public static final int DEFAULT_READERS = 2;
+    public static final long DEFAULT_IN_FLIGHT_MB = 256;
+
+    private boolean memoryMapped;
+    private boolean virtualThreads;
+    private boolean resume;
+    private CompressionPolicy policy = CompressionPolicy.BALANCED;
+    private int workers = getParallelism();
+    private int readers = DEFAULT_READERS;
+    private long inFlightBytes = Math.min(DEFAULT_IN_FLIGHT_MB, getMaxMemory() / 4) * 1024L * 1024L;
+    private JobMetrics metrics = new JobMetrics();
+    private long progressInterval;
+    private Path progressFile;
+    private CompressionScheduler scheduler;
+
+    /**
+     * @return whether source files are memory mapped instead of read into the heap
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public CompressionOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * @return speed/ratio trade-off used to pick the level of every entry
+     */
+    public CompressionPolicy getPolicy() {
+        return policy;
+    }
+
+    public CompressionOptions setPolicy(CompressionPolicy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    /**
+     * @return number of threads deflating blocks
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    public CompressionOptions setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @return number of threads reading source files
+     */
+    public int getReaders() {
+        return readers;
+    }
+
+    public CompressionOptions setReaders(int readers) {
+        this.readers = readers;
+        return this;
+    }
+
+    /**
+     * @return maximum bytes read from the sources and not yet written to the archives
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public CompressionOptions setInFlightBytes(long inFlightBytes) {
+        this.inFlightBytes = inFlightBytes;
+        return this;
+    }
+
+    /**
+     * @return whether source files are read on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public CompressionOptions setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * @return whether a job continues from the journal of an interrupted run instead of starting over
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public CompressionOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * @return instrumentation of the current job, updated by the strategy and the pools it runs on
+     */
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CompressionOptions setMetrics(JobMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return seconds between two progress lines logged while a job runs, 0 to not log them
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    public CompressionOptions setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    /**
+     * @return file replaced with the progress of a job while it runs, null for none
+     */
+    public Path getProgressFile() {
+        return progressFile;
+    }
+
+    public CompressionOptions setProgressFile(Path progressFile) {
+        this.progressFile = progressFile;
+        return this;
+    }
+
+    /**
+     * @return scheduler shared by the jobs of a long running archiver, null for a job creating its own pools
+     */
+    public CompressionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public CompressionOptions setScheduler(CompressionScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+}
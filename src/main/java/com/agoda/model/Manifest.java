@@ -0,0 +1,360 @@
+package com.agoda.model;
+
+import com.agoda.utils.CrcUtils;
+import com.agoda.zip.ZipRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary index of an archive set, written next to the archives.
+ * Lists every original file with its size, CRC-32 and the pieces (archive part, offset, length, CRC) it is stored
+ * as, so an archive set can be listed without reading the archives.
+ * Incremental archives also record the files left unchanged since their base archive and the deleted ones.
+ */
+public class Manifest {
+
+    private static final int MAGIC = 0x4152434d;
+    private static final int VERSION = 2;
+    private static final int FLAG_DIRECTORY = 1;
+
+    private final List<ManifestEntry> entries;
+
+    public Manifest(List<ManifestEntry> entries) {
+        this.entries = entries;
+    }
+
+    public List<ManifestEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Writes the manifest to the given file
+     *
+     * @param path manifest file
+     * @throws IOException if writing fails
+     */
+    public void write(Path path) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            DataOutputStream body = writeHeader(outputStream);
+            body.writeInt(entries.size());
+            for (ManifestEntry entry : entries) {
+                writeEntry(body, entry, -1);
+            }
+            body.close();
+        }
+    }
+
+    /**
+     * Reads a manifest from the given file
+     *
+     * @param path manifest file
+     * @return the manifest
+     * @throws IOException if the file can not be read or is not a manifest
+     */
+    public static Manifest read(Path path) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            DataInputStream header = new DataInputStream(inputStream);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("`" + path + "` is not a manifest");
+            }
+            int version = header.readShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported manifest version " + version);
+            }
+            DataInputStream body = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(inputStream)));
+            int count = body.readInt();
+            List<ManifestEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(readEntry(body, version));
+            }
+            return new Manifest(entries);
+        }
+    }
+
+    private static DataOutputStream writeHeader(OutputStream outputStream) throws IOException {
+        DataOutputStream header = new DataOutputStream(outputStream);
+        header.writeInt(MAGIC);
+        header.writeShort(VERSION);
+        header.flush();
+        return new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(outputStream)));
+    }
+
+    /**
+     * @param renamed part number written as -1, see {@link Builder#unsplit(int)}; -1 to write the pieces as they are
+     */
+    private static void writeEntry(DataOutputStream body, ManifestEntry entry, int renamed) throws IOException {
+        body.writeUTF(entry.getName());
+        body.writeByte((entry.isDirectory() ? FLAG_DIRECTORY : 0) | entry.getState().ordinal() << 1);
+        body.writeLong(entry.getSize());
+        body.writeLong(entry.getLastModified());
+        body.writeInt((int) entry.getCrc());
+        body.writeInt(entry.getPieces().size());
+        for (ManifestEntry.Piece piece : entry.getPieces()) {
+            body.writeInt(piece.getArchive() == renamed ? -1 : piece.getArchive());
+            body.writeLong(piece.getOffset());
+            body.writeLong(piece.getLength());
+            body.writeInt((int) piece.getCrc());
+            body.writeLong(piece.getHeaderOffset());
+        }
+    }
+
+    private static ManifestEntry readEntry(DataInputStream body, int version) throws IOException {
+        String name = body.readUTF();
+        int flags = body.readByte();
+        boolean directory = (flags & FLAG_DIRECTORY) != 0;
+        ManifestEntry.State state = ManifestEntry.State.values()[flags >> 1];
+        long size = body.readLong();
+        long lastModified = version > 1 ? body.readLong() : -1;
+        long crc = Integer.toUnsignedLong(body.readInt());
+        int pieceCount = body.readInt();
+        List<ManifestEntry.Piece> pieces = new ArrayList<>(pieceCount);
+        for (int j = 0; j < pieceCount; j++) {
+            pieces.add(new ManifestEntry.Piece(body.readInt(), body.readLong(), body.readLong(),
+                    Integer.toUnsignedLong(body.readInt()), body.readLong()));
+        }
+        return new ManifestEntry(name, directory, size, lastModified, crc, state, pieces);
+    }
+
+    /**
+     * Collects the entries written by the archive writers, which may run concurrently, and groups the pieces of
+     * every original file.
+     * The entries are not held until the manifest is written: they are sorted and spilled to temporary run files
+     * every {@link #RUN_SIZE} entries, and the runs are merged into the manifest by {@link #write(Path)}. Only the
+     * pieces of the files split into slices are kept in memory until then, one per slice.
+     */
+    public static class Builder implements Closeable {
+
+        static final int RUN_SIZE = 64 * 1024;
+        // directories, then the archived files, then the entries carried from the base archive, each by name
+        private static final Comparator<ManifestEntry> ORDER = Comparator.comparingInt(Builder::rank)
+                .thenComparing(ManifestEntry::getName);
+
+        private final Path source;
+        private final List<ManifestEntry> pending = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        private final Map<String, List<ManifestEntry.Piece>> slices = new HashMap<>();
+        private final Map<String, Long> lastModified = new HashMap<>();
+        private int count;
+        private int unsplit = -1;
+
+        /**
+         * @param source directory the archived paths are relative to
+         */
+        public Builder(Path source) {
+            this.source = source;
+        }
+
+        /**
+         * Adds the entries of an archive
+         *
+         * @param archive part number of the archive, -1 if the set has a single archive
+         * @param entries entries written to the archive
+         * @param records records of the written entries, in the same order
+         * @throws IOException if the entries can not be spilled
+         */
+        public synchronized void add(int archive, List<ChunkEntry> entries, List<ZipRecord> records)
+                throws IOException {
+            for (int i = 0; i < entries.size(); i++) {
+                ZipRecord record = records.get(i);
+                add(archive, entries.get(i), record.getCrc(), record.getLocalHeaderOffset());
+            }
+        }
+
+        /**
+         * Adds a single entry of an archive
+         *
+         * @param archive      part number of the archive, -1 if the set has a single archive
+         * @param entry        entry written to the archive
+         * @param crc          CRC-32 of the entry
+         * @param headerOffset position of the local header of the entry in the archive
+         * @throws IOException if the entries can not be spilled
+         */
+        public synchronized void add(int archive, ChunkEntry entry, long crc, long headerOffset) throws IOException {
+            String name = source.relativize(entry.getPath()).toString();
+            if (entry.isDirectory()) {
+                spill(new ManifestEntry(name, true, 0, 0, Collections.emptyList()));
+                return;
+            }
+            ManifestEntry.Piece piece = new ManifestEntry.Piece(archive, entry.getOffset(), entry.getLength(), crc,
+                    headerOffset);
+            if (name.equals(entry.getName())) {
+                // a whole file, complete with its single piece
+                spill(new ManifestEntry(name, false, entry.getLength(), entry.getLastModified(), crc,
+                        ManifestEntry.State.ARCHIVED, Collections.singletonList(piece)));
+                return;
+            }
+            slices.computeIfAbsent(name, key -> new ArrayList<>()).add(piece);
+            lastModified.put(name, entry.getLastModified());
+        }
+
+        /**
+         * Adds an entry that is not stored in this archive set - unchanged or deleted since the base archive
+         *
+         * @param entry the entry, its state tells which
+         * @throws IOException if the entries can not be spilled
+         */
+        public synchronized void add(ManifestEntry entry) throws IOException {
+            spill(entry);
+        }
+
+        /**
+         * Records that the only archive of the set, written as the given part, was renamed to the name of an unsplit
+         * archive. Its pieces are written with archive -1.
+         *
+         * @param archive part number the archive was written as
+         */
+        public synchronized void unsplit(int archive) {
+            this.unsplit = archive;
+        }
+
+        /**
+         * Writes the manifest, merging the spilled runs by name, and removes the runs
+         *
+         * @param path manifest file
+         * @throws IOException if the runs can not be read or the manifest written
+         */
+        public synchronized void write(Path path) throws IOException {
+            for (Map.Entry<String, List<ManifestEntry.Piece>> file : slices.entrySet()) {
+                List<ManifestEntry.Piece> pieces = file.getValue();
+                pieces.sort(Comparator.comparingLong(ManifestEntry.Piece::getOffset));
+                long size = 0;
+                long crc = 0;
+                for (ManifestEntry.Piece piece : pieces) {
+                    crc = CrcUtils.combine(crc, piece.getCrc(), piece.getLength());
+                    size += piece.getLength();
+                }
+                spill(new ManifestEntry(file.getKey(), false, size, lastModified.get(file.getKey()), crc,
+                        ManifestEntry.State.ARCHIVED, pieces));
+            }
+            slices.clear();
+            lastModified.clear();
+            if (!pending.isEmpty()) {
+                spillRun();
+            }
+            PriorityQueue<Run> heads = new PriorityQueue<>(Comparator.comparing(run -> run.head, ORDER));
+            List<Run> open = new ArrayList<>();
+            try (OutputStream outputStream = Files.newOutputStream(path)) {
+                for (Path file : runs) {
+                    Run run = new Run(file);
+                    open.add(run);
+                    if (run.next()) {
+                        heads.add(run);
+                    }
+                }
+                DataOutputStream body = writeHeader(outputStream);
+                body.writeInt(count);
+                while (!heads.isEmpty()) {
+                    Run run = heads.poll();
+                    writeEntry(body, run.head, unsplit);
+                    if (run.next()) {
+                        heads.add(run);
+                    }
+                }
+                body.close();
+            } finally {
+                for (Run run : open) {
+                    run.close();
+                }
+                close();
+            }
+        }
+
+        /**
+         * Removes the spilled runs
+         *
+         * @throws IOException if a run can not be removed
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            pending.clear();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+
+        private void spill(ManifestEntry entry) throws IOException {
+            pending.add(entry);
+            count++;
+            if (pending.size() >= RUN_SIZE) {
+                spillRun();
+            }
+        }
+
+        private void spillRun() throws IOException {
+            pending.sort(ORDER);
+            Path run = Files.createTempFile("manifest-", ".run");
+            runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+                out.writeInt(pending.size());
+                for (ManifestEntry entry : pending) {
+                    writeEntry(out, entry, -1);
+                }
+            }
+            pending.clear();
+        }
+
+        private static int rank(ManifestEntry entry) {
+            if (entry.getState() != ManifestEntry.State.ARCHIVED) {
+                return 2;
+            }
+            return entry.isDirectory() ? 0 : 1;
+        }
+    }
+
+    /**
+     * A sorted run spilled by the builder, read back one entry at a time
+     */
+    private static class Run implements Closeable {
+        private final DataInputStream in;
+        private int remaining;
+        private ManifestEntry head;
+
+        private Run(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                this.remaining = in.readInt();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return whether the run had another entry, now its head
+         */
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            remaining--;
+            head = readEntry(in, VERSION);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
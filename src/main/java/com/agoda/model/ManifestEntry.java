@@ -0,0 +1,131 @@
+package com.agoda.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes an original file or directory of an archive set along with the pieces it is stored as
+ */
+public class ManifestEntry {
+
+    /**
+     * State of an entry in an incremental archive
+     */
+    public enum State {
+        /**
+         * Stored in the archives of this set
+         */
+        ARCHIVED,
+        /**
+         * Unchanged since the base archive, stored there
+         */
+        UNCHANGED,
+        /**
+         * Deleted since the base archive
+         */
+        DELETED
+    }
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long crc;
+    private final State state;
+    private final List<Piece> pieces;
+
+    public ManifestEntry(String name, boolean directory, long size, long crc, List<Piece> pieces) {
+        this(name, directory, size, -1, crc, State.ARCHIVED, pieces);
+    }
+
+    public ManifestEntry(String name, boolean directory, long size, long lastModified, long crc, State state,
+                         List<Piece> pieces) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.crc = crc;
+        this.state = state;
+        this.pieces = pieces;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return last modified time of the original file in milliseconds, -1 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return CRC-32 of the whole original file
+     */
+    public long getCrc() {
+        return crc;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public List<Piece> getPieces() {
+        return Collections.unmodifiableList(pieces);
+    }
+
+    /**
+     * A zip entry holding the whole file or a split part of it
+     */
+    public static class Piece {
+        private final int archive;
+        private final long offset;
+        private final long length;
+        private final long crc;
+        private final long headerOffset;
+
+        /**
+         * @param archive      part number of the archive holding the piece, -1 if the set has a single archive
+         * @param offset       position of the piece in the original file
+         * @param length       length of the piece
+         * @param crc          CRC-32 of the piece
+         * @param headerOffset position of the local header of the piece in its archive, -1 if unknown
+         */
+        public Piece(int archive, long offset, long length, long crc, long headerOffset) {
+            this.archive = archive;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.headerOffset = headerOffset;
+        }
+
+        public int getArchive() {
+            return archive;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+    }
+}
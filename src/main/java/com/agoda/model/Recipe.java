@@ -0,0 +1,88 @@
+package com.agoda.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how an original file or directory is rebuilt from the chunks of a deduplicating store
+ */
+public class Recipe {
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long crc;
+    private final List<ChunkRef> chunks;
+
+    public Recipe(String name, boolean directory, long size, long lastModified, long crc, List<ChunkRef> chunks) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.crc = crc;
+        this.chunks = chunks;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return CRC-32 of the whole original file
+     */
+    public long getCrc() {
+        return crc;
+    }
+
+    /**
+     * @return chunks making up the file, in order
+     */
+    public List<ChunkRef> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Reference to a chunk of the store
+     */
+    public static class ChunkRef {
+        private final String hash;
+        private final int pack;
+        private final int length;
+
+        /**
+         * @param hash   hex SHA-256 digest of the chunk, also its entry name in the pack
+         * @param pack   number of the pack holding the chunk
+         * @param length length of the chunk
+         */
+        public ChunkRef(String hash, int pack, int length) {
+            this.hash = hash;
+            this.pack = pack;
+            this.length = length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getPack() {
+            return pack;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
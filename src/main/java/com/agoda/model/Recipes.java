@@ -0,0 +1,118 @@
+package com.agoda.model;
+
+import com.agoda.utils.ContentDefinedChunker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The recipes of every file of a deduplicated archive, stored in a compact binary file next to the chunk packs
+ */
+public class Recipes {
+
+    private static final int MAGIC = 0x41524352;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final List<Recipe> recipes;
+
+    public Recipes(List<Recipe> recipes) {
+        this.recipes = recipes;
+    }
+
+    public List<Recipe> getRecipes() {
+        return Collections.unmodifiableList(recipes);
+    }
+
+    /**
+     * Writes the recipes to the given file
+     *
+     * @param path recipes file
+     * @throws IOException if writing fails
+     */
+    public void write(Path path) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            DataOutputStream header = new DataOutputStream(outputStream);
+            header.writeInt(MAGIC);
+            header.writeShort(VERSION);
+            header.flush();
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(outputStream)));
+            body.writeInt(recipes.size());
+            for (Recipe recipe : recipes) {
+                body.writeUTF(recipe.getName());
+                body.writeBoolean(recipe.isDirectory());
+                body.writeLong(recipe.getSize());
+                body.writeLong(recipe.getLastModified());
+                body.writeInt((int) recipe.getCrc());
+                body.writeInt(recipe.getChunks().size());
+                for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                    body.write(fromHex(chunk.getHash()));
+                    body.writeInt(chunk.getPack());
+                    body.writeInt(chunk.getLength());
+                }
+            }
+            body.close();
+        }
+    }
+
+    /**
+     * Reads the recipes from the given file
+     *
+     * @param path recipes file
+     * @return the recipes
+     * @throws IOException if the file can not be read or is not a recipes file
+     */
+    public static Recipes read(Path path) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            DataInputStream header = new DataInputStream(inputStream);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("`" + path + "` is not a recipes file");
+            }
+            int version = header.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported recipes version " + version);
+            }
+            DataInputStream body = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(inputStream)));
+            int count = body.readInt();
+            List<Recipe> recipes = new ArrayList<>(count);
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                String name = body.readUTF();
+                boolean directory = body.readBoolean();
+                long size = body.readLong();
+                long lastModified = body.readLong();
+                long crc = Integer.toUnsignedLong(body.readInt());
+                int chunkCount = body.readInt();
+                List<Recipe.ChunkRef> chunks = new ArrayList<>(chunkCount);
+                for (int j = 0; j < chunkCount; j++) {
+                    body.readFully(hash);
+                    chunks.add(new Recipe.ChunkRef(ContentDefinedChunker.toHex(hash), body.readInt(), body.readInt()));
+                }
+                recipes.add(new Recipe(name, directory, size, lastModified, crc, chunks));
+            }
+            return new Recipes(recipes);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,58 @@
+package com.agoda.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of verifying an archive set: what was checked and every problem found. Thread safe, the entries are
+ * checked concurrently.
+ */
+public class Verification {
+
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Counts an entry whose data was read back and checked
+     *
+     * @param size bytes of the entry once decompressed
+     */
+    public void checked(long size) {
+        entries.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * @param error description of a problem of the archive set
+     */
+    public void fail(String error) {
+        errors.add(error);
+    }
+
+    /**
+     * @return number of entries checked
+     */
+    public long getEntries() {
+        return entries.get();
+    }
+
+    /**
+     * @return decompressed bytes checked
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+}
@@ -0,0 +1,188 @@
+package com.agoda.service;
+
+import com.agoda.model.ArchiveJob;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.agoda.constants.CompressionType.ZIP;
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.utils.Utils.quote;
+
+/**
+ * HTTP API of a long running archiver, so small jobs run on a warm JVM instead of starting one each.
+ * <ul>
+ *     <li>{@code POST /jobs?operation=compress&source=..&destination=..&size=..} queues a job, the parameters can also
+ *     be sent as a form. {@code mode} defaults to zip, {@code priority} to 0, jobs of a higher priority run first.
+ *     Answers 202 with the job.</li>
+ *     <li>{@code GET /jobs} lists the jobs queued, running and over.</li>
+ *     <li>{@code GET /jobs/<id>} answers the state, progress and metrics of a job.</li>
+ *     <li>{@code DELETE /jobs/<id>} cancels a queued job, 409 if it already started.</li>
+ * </ul>
+ * The server binds to the loopback interface unless told otherwise, it runs jobs on any path it is given.
+ */
+public class ArchiveServer implements Closeable {
+
+    private static final String JOBS = "/jobs";
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final JobQueue queue;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * @param address address to listen on, port 0 for any free port
+     * @param queue   queue running the jobs, closed with the server
+     * @throws IOException if the address can not be bound
+     */
+    public ArchiveServer(InetSocketAddress address, JobQueue queue) throws IOException {
+        this.queue = queue;
+        this.server = HttpServer.create(address, 0);
+        this.handlers = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "archiver-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlers);
+        server.createContext(JOBS, this::handle);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving jobs on http://{}:{}{}", server.getAddress().getHostString(), getPort(), JOBS);
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Waits until the server is closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        closed.await();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String id = path.startsWith(JOBS + "/") && path.length() > JOBS.length() + 1
+                    ? path.substring(JOBS.length() + 1) : null;
+            String method = exchange.getRequestMethod();
+            if (id == null && "POST".equals(method)) {
+                submit(exchange);
+            } else if (id == null && "GET".equals(method)) {
+                List<ArchiveJob> jobs = queue.list();
+                StringBuilder json = new StringBuilder("[");
+                for (int i = 0; i < jobs.size(); i++) {
+                    json.append(i == 0 ? "\n  " : ",\n  ").append(jobs.get(i).toJson(false));
+                }
+                respond(exchange, 200, json.append(jobs.isEmpty() ? "]" : "\n]").toString());
+            } else if (id != null && queue.get(id) == null) {
+                respond(exchange, 404, error("Unknown job " + id));
+            } else if (id != null && "GET".equals(method)) {
+                respond(exchange, 200, queue.get(id).toJson(true));
+            } else if (id != null && "DELETE".equals(method)) {
+                ArchiveJob job = queue.get(id);
+                if (queue.cancel(job)) {
+                    respond(exchange, 200, job.toJson(false));
+                } else {
+                    respond(exchange, 409, error("Job " + id + " is " + job.getState()));
+                }
+            } else {
+                respond(exchange, 405, error("Method not allowed"));
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error handling {} {}: {}", exchange.getRequestMethod(), exchange.getRequestURI(),
+                    e.getMessage());
+            respond(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parse(exchange.getRequestURI().getRawQuery());
+        parameters.putAll(parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+        String operation = parameters.get("operation");
+        String source = parameters.get("source");
+        String destination = parameters.get("destination");
+        String size = parameters.get("size");
+        if (operation == null || source == null || destination == null
+                || (ArchiveJob.COMPRESS.equals(operation) && size == null)) {
+            respond(exchange, 400, error("operation, source, destination and the size of a compress are required"));
+            return;
+        }
+        ArchiveJob job;
+        try {
+            job = queue.submit(operation, Path.of(source), Path.of(destination),
+                    size == null ? 0 : Long.parseLong(size), parameters.getOrDefault("mode", ZIP),
+                    Integer.parseInt(parameters.getOrDefault("priority", "0")));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        } catch (IllegalStateException e) {
+            respond(exchange, 503, error(e.getMessage()));
+            return;
+        }
+        exchange.getResponseHeaders().add("Location", JOBS + "/" + job.getId());
+        respond(exchange, 202, job.toJson(false));
+    }
+
+    private static Map<String, String> parse(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isBlank()) {
+            return parameters;
+        }
+        for (String pair : query.trim().split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + quote(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    /**
+     * Stops taking requests, then stops the jobs
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+        queue.close();
+        closed.countDown();
+    }
+}
@@ -1,16 +1,29 @@
 package com.agoda.service;
 
-import com.agoda.constants.CompressionType;
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.ProgressReporter;
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.Verification;
 import com.agoda.strategy.ArchiveStrategyContext;
-import com.agoda.strategy.mode.RarStrategy;
-import com.agoda.strategy.mode.ZipStrategy;
+import com.agoda.strategy.ArchiveStrategyProvider;
+import com.agoda.utils.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
 
+import static com.agoda.constants.Constants.HIDDEN_FILE_PREFIX;
+import static com.agoda.constants.Constants.JOURNAL_EXTENSION;
 import static com.agoda.utils.FileUtils.IsValidPath;
 
 
@@ -21,7 +34,25 @@ public class ArchiveService {
     public static final Logger logger
             = LoggerFactory.getLogger(ArchiveService.class);
 
+    private static final ServiceLoader<ArchiveStrategyProvider> PROVIDERS =
+            ServiceLoader.load(ArchiveStrategyProvider.class);
+
     private ArchiveStrategyContext archiveStrategyContext;
+    private final CompressionOptions options = new CompressionOptions();
+
+    /**
+     * @return the compression options, shared with the selected strategy
+     */
+    public CompressionOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return metrics of the last compress or decompress job, see {@link JobMetrics}
+     */
+    public JobMetrics getMetrics() {
+        return options.getMetrics();
+    }
 
     /**
      * Compresses file(s) and folder(s) present in the source directory to the given destination directory.
@@ -32,22 +63,78 @@ public class ArchiveService {
      * @throws IOException errors during compression
      */
     public void compress(Path source, Path destination, long maxFileSize) throws IOException {
+        compress(source, destination, maxFileSize, null);
+    }
+
+    /**
+     * Compresses file(s) and folder(s) present in the source directory to the given destination directory.
+     * When a base is given only the files new or changed since that archive are compressed, deleted files are
+     * recorded in the manifest.
+     * @param source path
+     * @param destination path
+     * @param maxFileSize the maxfilesize (in bytes) of archive(if archive exceeds this limit , it splits it into parts)
+     * @param base directory of a previous archive or its manifest file, null to compress everything
+     * @throws IOException errors during compression
+     */
+    public void compress(Path source, Path destination, long maxFileSize, Path base) throws IOException {
         logger.info("Compressing files in directory `{}` to `{}`", source, destination);
         logger.info("Split size set to {}MB", maxFileSize);
+        ProgressReporter progress = begin("compress");
+        boolean finished = false;
         try {
             if (IsValidPath(source) && IsValidPath(destination)) {
-                archiveStrategyContext.compress(source, destination, maxFileSize);
+                if (base == null) {
+                    archiveStrategyContext.compress(source, destination, maxFileSize);
+                } else {
+                    logger.info("Compressing changes since `{}`", base);
+                    Manifest manifest = Files.isRegularFile(base) ? Manifest.read(base)
+                            : archiveStrategyContext.list(base);
+                    archiveStrategyContext.compress(source, destination, maxFileSize, manifest);
+                }
             } else {
                 throw new NotDirectoryException("Invalid path supplied");
             }
+            finished = true;
         } catch (NotDirectoryException e) {
             logger.error("Invalid path supplied: `{}` | `{}`", source, destination);
             throw e;
         } catch (IOException e) {
             logger.error("Error compressing:{}", e.getMessage());
             throw e;
+        } finally {
+            end(progress, finished);
+        }
+        logger.info("Finished compressing files, {}", options.getMetrics());
+    }
+
+    /**
+     * Compresses file(s) and folder(s) present in the source directory into a single archive written to the given
+     * stream, without staging it on disk. The stream is left open.
+     * @param source path
+     * @param outputStream stream the archive is written to
+     * @throws IOException errors during compression
+     */
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        logger.info("Compressing files in directory `{}` to a stream", source);
+        ProgressReporter progress = begin("compress");
+        boolean finished = false;
+        try {
+            if (IsValidPath(source)) {
+                archiveStrategyContext.compress(source, outputStream);
+            } else {
+                throw new NotDirectoryException("Invalid path supplied");
+            }
+            finished = true;
+        } catch (NotDirectoryException e) {
+            logger.error("Invalid path supplied: `{}`", source);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error compressing:{}", e.getMessage());
+            throw e;
+        } finally {
+            end(progress, finished);
         }
-        logger.info("Finished compressing files");
+        logger.info("Finished compressing files, {}", options.getMetrics());
     }
 
     /**
@@ -57,41 +144,218 @@ public class ArchiveService {
      * @throws IOException errors during decompression
      */
     public void decompress(Path source, Path destination) throws IOException {
+        decompress(source, destination, Collections.emptyList());
+    }
+
+    /**
+     *  Decompresses the archive(s) present in the source directory to the given destination directory, then replays
+     *  the incremental archives on top of it in the given order.
+     *  When resuming, the archives before the last one with a journal in the destination were already decompressed
+     *  and are skipped.
+     * @param source path
+     * @param destination path
+     * @param increments directories of the incremental archives taken against the source archive (or each other)
+     * @throws IOException errors during decompression
+     */
+    public void decompress(Path source, Path destination, List<Path> increments) throws IOException {
         logger.info("Decompressing files in directory `{}` to `{}`", source, destination);
+        ProgressReporter progress = begin("decompress");
+        boolean finished = false;
         try {
-            if (IsValidPath(source) && IsValidPath(destination)) {
-                archiveStrategyContext.decompress(source, destination);
+            if (IsValidPath(source) && IsValidPath(destination)
+                    && increments.stream().allMatch(FileUtils::IsValidPath)) {
+                List<Path> archives = new ArrayList<>();
+                archives.add(source);
+                archives.addAll(increments);
+                int first = options.isResume() ? lastJournaled(archives, destination) : 0;
+                for (int i = first; i < archives.size(); i++) {
+                    if (i > 0) {
+                        logger.info("Applying incremental archive `{}`", archives.get(i));
+                    }
+                    archiveStrategyContext.decompress(archives.get(i), destination);
+                }
             } else {
                 throw new NotDirectoryException("Invalid path supplied");
             }
+            finished = true;
         } catch (NotDirectoryException e) {
             logger.error("Invalid path supplied: `{}` | `{}`", source, destination);
             throw e;
         } catch (IOException e) {
             logger.error("Error compressing:{}", e.getMessage());
             throw e;
+        } finally {
+            end(progress, finished);
         }
-        logger.info("Finished decompressing files");
+        logger.info("Finished decompressing files, {}", options.getMetrics());
+    }
+
+    /**
+     * Starts the metrics of a job and reports its progress while it runs
+     *
+     * @param operation name of the job
+     * @return the reporter, to stop once the job ended
+     */
+    private ProgressReporter begin(String operation) {
+        JobMetrics metrics = options.getMetrics();
+        metrics.begin(operation);
+        return ProgressReporter.start(metrics, options.getProgressInterval(), options.getProgressFile());
+    }
+
+    private void end(ProgressReporter progress, boolean finished) {
+        options.getMetrics().finish();
+        progress.stop(finished ? "finished" : "failed");
     }
 
+    private static int lastJournaled(List<Path> archives, Path destination) {
+        for (int i = archives.size() - 1; i > 0; i--) {
+            Path journal = destination.resolve(HIDDEN_FILE_PREFIX + archives.get(i).getFileName() + JOURNAL_EXTENSION);
+            if (Files.exists(journal)) {
+                logger.info("Skipping {} archives decompressed before `{}`", i, archives.get(i));
+                return i;
+            }
+        }
+        return 0;
+    }
 
     /**
-     * Sets the compression type for the service
-     * @param mode zip| rar| any
+     *  Decompresses an archive read from the given stream to the given destination directory.
+     * @param inputStream stream of the archive
+     * @param destination path
+     * @throws IOException errors during decompression
+     */
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        logger.info("Decompressing a stream to `{}`", destination);
+        ProgressReporter progress = begin("decompress");
+        boolean finished = false;
+        try {
+            if (IsValidPath(destination)) {
+                archiveStrategyContext.decompress(inputStream, destination);
+            } else {
+                throw new NotDirectoryException("Invalid path supplied");
+            }
+            finished = true;
+        } catch (NotDirectoryException e) {
+            logger.error("Invalid path supplied: `{}`", destination);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error decompressing:{}", e.getMessage());
+            throw e;
+        } finally {
+            end(progress, finished);
+        }
+        logger.info("Finished decompressing files, {}", options.getMetrics());
+    }
+
+    /**
+     * Extracts the files matching the given glob from the archive(s) present in the source directory to the given
+     * destination directory, without decompressing the rest of the archive.
+     * @param source path
+     * @param destination path
+     * @param pattern glob matched against the path of the files inside the archive
+     * @throws IOException errors during extraction
+     */
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        logger.info("Extracting `{}` from directory `{}` to `{}`", pattern, source, destination);
+        try {
+            if (IsValidPath(source) && IsValidPath(destination)) {
+                archiveStrategyContext.extract(source, destination, pattern);
+            } else {
+                throw new NotDirectoryException("Invalid path supplied");
+            }
+        } catch (NotDirectoryException e) {
+            logger.error("Invalid path supplied: `{}` | `{}`", source, destination);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error extracting:{}", e.getMessage());
+            throw e;
+        }
+        logger.info("Finished extracting files");
+    }
+
+    /**
+     * Lists the contents of the archive present in the source directory without decompressing it.
+     * @param source path
+     * @return manifest of the archive
+     * @throws IOException errors while reading the archive
+     */
+    public Manifest list(Path source) throws IOException {
+        logger.info("Listing archive in directory `{}`", source);
+        try {
+            if (IsValidPath(source)) {
+                return archiveStrategyContext.list(source);
+            } else {
+                throw new NotDirectoryException("Invalid path supplied");
+            }
+        } catch (NotDirectoryException e) {
+            logger.error("Invalid path supplied: `{}`", source);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error listing:{}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the archive present in the source directory without writing anything: every entry is decompressed in
+     * memory and its CRC-32 compared, and files split into parts are checked as a whole against the manifest.
+     * @param source path
+     * @return what was checked and the problems found
+     * @throws IOException errors while reading the archive
+     */
+    public Verification verify(Path source) throws IOException {
+        logger.info("Verifying archive in directory `{}`", source);
+        try {
+            if (IsValidPath(source)) {
+                Verification verification = archiveStrategyContext.verify(source);
+                logger.info("Verified {} entries, {} bytes, {} problems", verification.getEntries(),
+                        verification.getBytes(), verification.getErrors().size());
+                return verification;
+            } else {
+                throw new NotDirectoryException("Invalid path supplied");
+            }
+        } catch (NotDirectoryException e) {
+            logger.error("Invalid path supplied: `{}`", source);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error verifying:{}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the compression type for the service. The strategy comes from the {@link ArchiveStrategyProvider}
+     * registered for the mode.
+     * @param mode zip| tgz| rar| dedup| any registered mode
      * @throws UnsupportedOperationException if the mode doesnt exist
      */
     public void selectCompressionType(String mode) throws UnsupportedOperationException {
         logger.info("Setting Archive Strategy:{}", mode);
-        if (mode.equalsIgnoreCase(CompressionType.ZIP)) {
-            archiveStrategyContext = new ArchiveStrategyContext();
-            archiveStrategyContext.setArchiveStrategy(new ZipStrategy());
-            return;
-        } else if (mode.equalsIgnoreCase(CompressionType.RAR)) {
-            archiveStrategyContext = new ArchiveStrategyContext();
-            archiveStrategyContext.setArchiveStrategy(new RarStrategy());
-            return;
+        ArchiveStrategyProvider provider = findProvider(mode);
+        if (provider == null) {
+            logger.info("Unsupported Archive Strategy:`{}`", mode);
+            throw new UnsupportedOperationException("Mode not found!");
+        }
+        archiveStrategyContext = new ArchiveStrategyContext();
+        archiveStrategyContext.setArchiveStrategy(provider.create(options));
+    }
+
+    /**
+     * @param mode compression mode
+     * @return whether a strategy is provided for the mode
+     */
+    public static boolean supports(String mode) {
+        return findProvider(mode) != null;
+    }
+
+    private static ArchiveStrategyProvider findProvider(String mode) {
+        synchronized (PROVIDERS) {
+            for (ArchiveStrategyProvider provider : PROVIDERS) {
+                if (provider.getName().equalsIgnoreCase(mode)) {
+                    return provider;
+                }
+            }
         }
-        logger.info("Unsupported Archive Strategy:`{}`", mode);
-        throw new UnsupportedOperationException("Mode not found!");
+        return null;
     }
 }
@@ -0,0 +1,199 @@
+package com.agoda.service;
+
+import com.agoda.model.ArchiveJob;
+import com.agoda.model.CompressionOptions;
+import com.agoda.strategy.CompressionScheduler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.agoda.service.ArchiveService.logger;
+
+/**
+ * Runs the jobs of a long running archiver, see {@link ArchiveServer}. Jobs wait in a queue ordered by priority and
+ * a fixed number of them run at once. All jobs share one {@link CompressionScheduler}, so the deflate workers, the
+ * readers, the in-flight budget and the buffers are bounded over the whole daemon rather than per job, while each
+ * job keeps its own metrics.
+ */
+public class JobQueue implements Closeable {
+
+    // jobs over kept for their status, the oldest are forgotten first
+    static final int RETAINED = 1000;
+
+    private final CompressionOptions defaults;
+    private final CompressionScheduler scheduler;
+    private final ThreadPoolExecutor runners;
+    private final int capacity;
+    private final int concurrency;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, ArchiveJob> jobs = new LinkedHashMap<>();
+    private final Deque<String> done = new ArrayDeque<>();
+
+    /**
+     * @param defaults    options of every job: policy, how the sources are read and the sizes of the shared pools
+     * @param concurrency number of jobs running at once
+     * @param capacity    maximum number of jobs waiting
+     */
+    public JobQueue(CompressionOptions defaults, int concurrency, int capacity) {
+        this.defaults = defaults;
+        this.scheduler = CompressionScheduler.of(defaults);
+        this.capacity = capacity;
+        this.concurrency = concurrency;
+        AtomicInteger count = new AtomicInteger();
+        this.runners = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "archiver-job-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // every job goes through the queue, so the first ones are ordered as well
+        runners.prestartAllCoreThreads();
+        logger.info("Running {} jobs at once on {} workers", concurrency, scheduler.getWorkerCount());
+    }
+
+    /**
+     * @param operation   {@link ArchiveJob#COMPRESS} or {@link ArchiveJob#DECOMPRESS}
+     * @param source      path
+     * @param destination path
+     * @param maxFileSize the maxfilesize of the archives when compressing
+     * @param mode        compression mode
+     * @param priority    jobs of a higher priority run first
+     * @return the queued job
+     * @throws IllegalArgumentException if the operation or the mode is not supported
+     * @throws IllegalStateException    if the queue is full
+     */
+    public ArchiveJob submit(String operation, Path source, Path destination, long maxFileSize, String mode,
+                             int priority) {
+        if (!ArchiveJob.COMPRESS.equals(operation) && !ArchiveJob.DECOMPRESS.equals(operation)) {
+            throw new IllegalArgumentException("Unsupported operation: " + operation);
+        }
+        if (!ArchiveService.supports(mode)) {
+            throw new IllegalArgumentException("Mode not found: " + mode);
+        }
+        if (runners.getQueue().size() >= capacity) {
+            throw new IllegalStateException("Queue is full");
+        }
+        ArchiveJob job = new ArchiveJob(sequence.incrementAndGet(), operation, source, destination, maxFileSize,
+                mode, priority);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+        }
+        logger.info("Queued {} job {} of `{}` to `{}`", operation, job.getId(), source, destination);
+        runners.execute(new Run(job));
+        return job;
+    }
+
+    /**
+     * @param id id of the job
+     * @return the job, null if unknown or forgotten
+     */
+    public ArchiveJob get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * @return jobs queued, running and the last ones over, in the order they were submitted
+     */
+    public List<ArchiveJob> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * Removes a job from the queue, a running job is left to finish
+     *
+     * @param job job to cancel
+     * @return whether the job was still waiting and is cancelled
+     */
+    public boolean cancel(ArchiveJob job) {
+        if (!runners.getQueue().removeIf(run -> ((Run) run).job == job)) {
+            return false;
+        }
+        job.cancel();
+        retire(job);
+        logger.info("Cancelled job {}", job.getId());
+        return true;
+    }
+
+    private void run(ArchiveJob job) {
+        job.start();
+        logger.info("Running {} job {}", job.getOperation(), job.getId());
+        ArchiveService archiveService = new ArchiveService();
+        // every stage runs on the shared pools, the share of the workers only bounds the parts a job queues
+        archiveService.getOptions().setPolicy(defaults.getPolicy()).setMemoryMapped(defaults.isMemoryMapped())
+                .setWorkers(Math.max(1, defaults.getWorkers() / concurrency))
+                .setScheduler(scheduler).setMetrics(job.getMetrics());
+        try {
+            archiveService.selectCompressionType(job.getMode());
+            if (ArchiveJob.COMPRESS.equals(job.getOperation())) {
+                archiveService.compress(job.getSource(), job.getDestination(), job.getMaxFileSize());
+            } else {
+                archiveService.decompress(job.getSource(), job.getDestination());
+            }
+            job.finish(null);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Job {} failed: {}", job.getId(), e.getMessage());
+            job.finish(e);
+        }
+        retire(job);
+    }
+
+    private void retire(ArchiveJob job) {
+        synchronized (jobs) {
+            done.addLast(job.getId());
+            while (done.size() > RETAINED) {
+                jobs.remove(done.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Stops the jobs running and drops the queued ones
+     */
+    @Override
+    public void close() {
+        runners.shutdownNow();
+        try {
+            runners.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.close();
+    }
+
+    /**
+     * Task of the runners, ordered as its job
+     */
+    private final class Run implements Runnable, Comparable<Run> {
+        private final ArchiveJob job;
+
+        private Run(ArchiveJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            JobQueue.this.run(job);
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return job.compareTo(other.job);
+        }
+    }
+}
@@ -1,11 +1,28 @@
 package com.agoda.strategy;
 
+import com.agoda.model.Manifest;
+import com.agoda.model.Verification;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 
 public interface ArchiveStrategy {
 
     void compress(Path source, Path destination, long maxFileSize) throws IOException;
 
+    void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException;
+
+    void compress(Path source, OutputStream outputStream) throws IOException;
+
     void decompress(Path source, Path destination) throws IOException;
+
+    void decompress(InputStream inputStream, Path destination) throws IOException;
+
+    void extract(Path source, Path destination, String pattern) throws IOException;
+
+    Manifest list(Path source) throws IOException;
+
+    Verification verify(Path source) throws IOException;
 }
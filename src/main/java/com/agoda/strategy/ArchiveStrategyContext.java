@@ -1,6 +1,11 @@
 package com.agoda.strategy;
 
+import com.agoda.model.Manifest;
+import com.agoda.model.Verification;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 
 public class ArchiveStrategyContext {
@@ -14,7 +19,31 @@ public class ArchiveStrategyContext {
         archiveStrategy.compress(source, destination, maxFileSize);
     }
 
+    public void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException {
+        archiveStrategy.compress(source, destination, maxFileSize, base);
+    }
+
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        archiveStrategy.compress(source, outputStream);
+    }
+
     public void decompress(Path source, Path destination) throws IOException {
         archiveStrategy.decompress(source, destination);
     }
+
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        archiveStrategy.decompress(inputStream, destination);
+    }
+
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        archiveStrategy.extract(source, destination, pattern);
+    }
+
+    public Manifest list(Path source) throws IOException {
+        return archiveStrategy.list(source);
+    }
+
+    public Verification verify(Path source) throws IOException {
+        return archiveStrategy.verify(source);
+    }
 }
@@ -0,0 +1,22 @@
+package com.agoda.strategy;
+
+import com.agoda.model.CompressionOptions;
+
+/**
+ * Creates the strategy of an archive format. Providers are found with {@link java.util.ServiceLoader}, listed in
+ * {@code META-INF/services/com.agoda.strategy.ArchiveStrategyProvider}, so a new format is added by registering its
+ * provider without touching the service. Implementations need a public no-arg constructor.
+ */
+public interface ArchiveStrategyProvider {
+
+    /**
+     * @return name of the mode selecting the strategy, matched ignoring case
+     */
+    String getName();
+
+    /**
+     * @param options compression options of the service, shared with the strategy
+     * @return a new strategy
+     */
+    ArchiveStrategy create(CompressionOptions options);
+}
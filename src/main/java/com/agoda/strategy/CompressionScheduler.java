@@ -0,0 +1,256 @@
+package com.agoda.strategy;
+
+import com.agoda.metrics.JobMetrics;
+import com.agoda.model.CompressionOptions;
+import com.agoda.utils.BufferPool;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.utils.Utils.newVirtualThreadExecutor;
+
+/**
+ * Dedicated thread pools of a single archiver run, so several archivers on one box do not share the common pool.
+ * Work goes through three stages: readers load source blocks, the work-stealing workers deflate them and the writers
+ * append them to their archives. The bytes read but not yet written are bounded, so a slow disk throttles the readers
+ * instead of filling the heap.
+ * Readers can run on virtual threads, so trees of many small files overlap the latency of their opens and reads while
+ * a few platform threads deflate.
+ * A long running archiver shares one scheduler between its jobs, each job working on a view of it with its own
+ * metrics, see {@link #forJob(JobMetrics)}.
+ */
+public class CompressionScheduler implements Closeable {
+
+    // the budget is counted in kilobytes to fit a semaphore
+    private static final int PERMIT_SIZE = 1024;
+    // blocks a writer keeps in flight when reading on virtual threads, the budget still bounds their bytes
+    static final int VIRTUAL_READ_AHEAD = 256;
+
+    private final ForkJoinPool workers;
+    private final ExecutorService readers;
+    private final ExecutorService writers;
+    private final int workerCount;
+    private final int readAhead;
+    private final int budgetPermits;
+    private final Semaphore budget;
+    private final JobMetrics metrics;
+    private final Map<Integer, BufferPool> buffers;
+    // views of a shared scheduler leave its pools running when closed
+    private final boolean owner;
+
+    /**
+     * @param workers       number of threads deflating blocks
+     * @param readers       number of threads reading source files
+     * @param writers       number of archives written at the same time
+     * @param inFlightBytes maximum bytes read from the sources and not yet written to the archives
+     */
+    public CompressionScheduler(int workers, int readers, int writers, long inFlightBytes) {
+        this(workers, Executors.newFixedThreadPool(readers, named("archiver-reader-")), workers * 2, writers,
+                inFlightBytes, new JobMetrics());
+        logger.debug("Reading on {} threads", readers);
+    }
+
+    /**
+     * @param workers       number of threads deflating blocks
+     * @param readers       pool reading source files
+     * @param readAhead     number of blocks a writer keeps in flight
+     * @param writers       number of archives written at the same time
+     * @param inFlightBytes maximum bytes read from the sources and not yet written to the archives
+     * @param metrics       metrics of the job, counting the bytes in flight
+     */
+    private CompressionScheduler(int workers, ExecutorService readers, int readAhead, int writers,
+                                 long inFlightBytes, JobMetrics metrics) {
+        this.workerCount = workers;
+        this.readAhead = Math.max(2, readAhead);
+        this.workers = new ForkJoinPool(workers, new WorkerFactory(), null, true);
+        this.readers = readers;
+        this.writers = Executors.newFixedThreadPool(writers, named("archiver-writer-"));
+        this.budgetPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, inFlightBytes / PERMIT_SIZE));
+        this.budget = new Semaphore(budgetPermits);
+        this.metrics = metrics;
+        this.buffers = new ConcurrentHashMap<>();
+        this.owner = true;
+        logger.debug("Scheduler with {} workers, {} writers and {}KB in flight", workers, writers, budgetPermits);
+    }
+
+    private CompressionScheduler(CompressionScheduler shared, JobMetrics metrics) {
+        this.workerCount = shared.workerCount;
+        this.readAhead = shared.readAhead;
+        this.workers = shared.workers;
+        this.readers = shared.readers;
+        this.writers = shared.writers;
+        this.budgetPermits = shared.budgetPermits;
+        this.budget = shared.budget;
+        this.buffers = shared.buffers;
+        this.metrics = metrics;
+        this.owner = false;
+    }
+
+    /**
+     * @param options options holding the sizes of the pools and the metrics of the job, or a shared scheduler
+     * @return scheduler sized by the options, or a view of the shared scheduler for the job
+     */
+    public static CompressionScheduler of(CompressionOptions options) {
+        if (options.getScheduler() != null) {
+            return options.getScheduler().forJob(options.getMetrics());
+        }
+        if (options.isVirtualThreads()) {
+            ExecutorService virtualThreads = newVirtualThreadExecutor();
+            if (virtualThreads != null) {
+                return new CompressionScheduler(options.getWorkers(), virtualThreads, VIRTUAL_READ_AHEAD,
+                        options.getWorkers(), options.getInFlightBytes(), options.getMetrics());
+            }
+            // the read-ahead of virtual threads would start as many platform threads, the readers stay bounded
+            logger.warn("Virtual threads not available on this JVM, reading on {} threads", options.getReaders());
+        } else {
+            logger.debug("Reading on {} threads", options.getReaders());
+        }
+        return new CompressionScheduler(options.getWorkers(),
+                Executors.newFixedThreadPool(options.getReaders(), named("archiver-reader-")),
+                options.getWorkers() * 2, options.getWorkers(), options.getInFlightBytes(), options.getMetrics());
+    }
+
+    /**
+     * @param metrics metrics of the job
+     * @return view of the pools, the in-flight budget and the buffers for one job, counting the bytes it has in
+     * flight in its own metrics. Closing it leaves the pools running.
+     */
+    public CompressionScheduler forJob(JobMetrics metrics) {
+        return new CompressionScheduler(this, metrics);
+    }
+
+    /**
+     * @return work-stealing pool for CPU bound stages, it also walks the sources and runs the extraction and
+     * verification of archives
+     */
+    public ForkJoinPool getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return pool for reading source files
+     */
+    public ExecutorService getReaders() {
+        return readers;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * @return number of blocks a writer may have read or deflated ahead of the one it writes
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return metrics of the job the pools run
+     */
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Buffers handed between the stages are recycled over every archive of the scheduler, and over every job sharing
+     * it. The pool keeps at most the buffers the writers can have in flight at once, within the in-flight budget.
+     *
+     * @param bufferSize size of the buffers
+     * @return pool of the buffers of the given size
+     */
+    public BufferPool getBuffers(int bufferSize) {
+        return buffers.computeIfAbsent(bufferSize, size -> new BufferPool(size,
+                (int) Math.max(1, Math.min(readAhead * workerCount, (long) budgetPermits * PERMIT_SIZE / size))));
+    }
+
+    /**
+     * Queues the given task on the writer threads
+     *
+     * @param task task writing one archive
+     * @param <T>  result of the task
+     * @return future of the task
+     */
+    public <T> Future<T> write(Callable<T> task) {
+        return writers.submit(task);
+    }
+
+    /**
+     * Reserves bytes of the in-flight budget, waiting until enough is written. A request larger than the whole
+     * budget reserves the whole budget.
+     *
+     * @param bytes bytes about to be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        budget.acquire(permits(bytes));
+        metrics.getInFlight().add(bytes);
+    }
+
+    /**
+     * @param bytes bytes about to be read
+     * @return whether the bytes could be reserved without waiting
+     */
+    public boolean tryAcquire(long bytes) {
+        if (!budget.tryAcquire(permits(bytes))) {
+            return false;
+        }
+        metrics.getInFlight().add(bytes);
+        return true;
+    }
+
+    /**
+     * Returns bytes reserved by {@link #acquire(long)} or {@link #tryAcquire(long)} once they are written
+     *
+     * @param bytes bytes written
+     */
+    public void release(long bytes) {
+        metrics.getInFlight().add(-bytes);
+        budget.release(permits(bytes));
+    }
+
+    private int permits(long bytes) {
+        return (int) Math.min(budgetPermits, (bytes + PERMIT_SIZE - 1) / PERMIT_SIZE);
+    }
+
+    @Override
+    public void close() {
+        if (!owner) {
+            return;
+        }
+        writers.shutdownNow();
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static ThreadFactory named(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("archiver-worker-" + count.incrementAndGet());
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.agoda.strategy.mode;
+
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.Verification;
+import com.agoda.model.ManifestEntry;
+import com.agoda.model.Recipe;
+import com.agoda.model.Recipes;
+import com.agoda.strategy.ArchiveStrategy;
+import com.agoda.strategy.ArchiveStrategyProvider;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.ContentDefinedChunker;
+import com.agoda.utils.ContentDefinedChunker.Chunk;
+import com.agoda.utils.ContentDefinedChunker.ChunkedFile;
+import com.agoda.zip.ParallelZipWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.agoda.constants.CompressionType.DEDUP;
+import static com.agoda.constants.Constants.*;
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.utils.FileUtils.resolveWithin;
+import static com.agoda.utils.Utils.cancel;
+import static com.agoda.utils.Utils.getMaxMemory;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Provides archiving operations for a deduplicating chunk store.
+ * Files are cut into content defined chunks, every unique chunk is stored once in zip packs named after its
+ * SHA-256 digest, and each file is described by a recipe listing its chunks in order.
+ * The store holds a single snapshot of every source: the recipes of its last run. Chunks no other file of that run
+ * refers to are pruned from the packs once the new recipes are written.
+ */
+public class DedupStrategy implements ArchiveStrategy {
+
+    private static final Pattern PACK_PATTERN = Pattern.compile("(.*)" + PACK_SUFFIX + "([0-9]+)\\" + ZIP_EXTENSION);
+    /**
+     * Packs holding less than this share of chunks still referenced are rewritten, their live chunks stored again
+     */
+    private static final double MIN_LIVE_SHARE = 0.5;
+
+    private final CompressionOptions options;
+
+    public DedupStrategy() {
+        this(new CompressionOptions());
+    }
+
+    public DedupStrategy(CompressionOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Registers the chunk store for the {@code DEDUP} mode
+     */
+    public static class Provider implements ArchiveStrategyProvider {
+        @Override
+        public String getName() {
+            return DEDUP;
+        }
+
+        @Override
+        public ArchiveStrategy create(CompressionOptions options) {
+            return new DedupStrategy(options);
+        }
+    }
+
+    /**
+     * Compresses the files & folders inside source directory into the chunk store in the destination directory.
+     * Files are chunked in parallel, chunks already stored in the packs of the destination (by an earlier run or
+     * another file of this one) are only referenced. New chunks are appended to new packs, rolling over to the next
+     * pack once maxFileSize or maxAllowed JVM memory whichever is minimum is reached.
+     * The recipes of the files are written next to the packs as a hidden file, replacing those of the earlier run.
+     * Then the packs of the earlier runs are pruned: packs none of the recipes refer to are deleted, packs with less
+     * than half of their chunks referenced are replaced, their live chunks being stored again from the source.
+     * @param source path
+     * @param destination path of the chunk store
+     * @param maxFileSize threshold for packs
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize) throws IOException {
+        maxFileSize = Math.min(maxFileSize, getMaxMemory()) * 1024L * 1024L;
+        String prefix = source.getFileName() + PACK_SUFFIX;
+        Map<String, Recipe.ChunkRef> stored = readStoredChunks(destination, prefix);
+        int nextPack = stored.values().stream().mapToInt(Recipe.ChunkRef::getPack).max().orElse(-1) + 1;
+
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(source)) {
+            paths = walk.filter(path -> !path.equals(source)).sorted().collect(Collectors.toList());
+        }
+
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            List<Future<ChunkedFile>> chunked = new ArrayList<>();
+            for (Path path : paths) {
+                chunked.add(Files.isDirectory(path) ? null
+                        : scheduler.getWorkers().submit(() -> ContentDefinedChunker.chunk(path)));
+            }
+
+            Map<String, Integer> live = new HashMap<>();
+            for (Future<ChunkedFile> future : chunked) {
+                if (future != null) {
+                    for (Chunk chunk : await(future).getChunks()) {
+                        live.put(chunk.getHash(), chunk.getLength());
+                    }
+                }
+            }
+            Set<Integer> replaced = findReplacedPacks(stored, live);
+            stored.values().removeIf(ref -> replaced.contains(ref.getPack()));
+
+            List<Recipe> recipes = new ArrayList<>();
+            List<List<ChunkEntry>> packs = new ArrayList<>();
+            List<ChunkEntry> pack = new ArrayList<>();
+            long packSize = 0;
+            long totalSize = 0;
+            long storedSize = 0;
+            for (int i = 0; i < paths.size(); i++) {
+                Path path = paths.get(i);
+                String name = source.relativize(path).toString();
+                if (chunked.get(i) == null) {
+                    recipes.add(new Recipe(name, true, 0, -1, 0, Collections.emptyList()));
+                    continue;
+                }
+                ChunkedFile file = await(chunked.get(i));
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                List<Recipe.ChunkRef> refs = new ArrayList<>();
+                for (Chunk chunk : file.getChunks()) {
+                    Recipe.ChunkRef ref = stored.get(chunk.getHash());
+                    if (ref == null) {
+                        if (packSize > 0 && packSize + chunk.getLength() > maxFileSize) {
+                            packs.add(pack);
+                            pack = new ArrayList<>();
+                            packSize = 0;
+                        }
+                        ref = new Recipe.ChunkRef(chunk.getHash(), nextPack + packs.size(), chunk.getLength());
+                        stored.put(chunk.getHash(), ref);
+                        pack.add(ChunkEntry.ofSlice(path, chunk.getHash(), chunk.getOffset(), chunk.getLength(),
+                                lastModified));
+                        packSize += chunk.getLength();
+                        storedSize += chunk.getLength();
+                    }
+                    refs.add(ref);
+                }
+                totalSize += file.getSize();
+                recipes.add(new Recipe(name, false, file.getSize(), lastModified, file.getCrc(), refs));
+            }
+            if (!pack.isEmpty()) {
+                packs.add(pack);
+            }
+
+            for (int i = 0; i < packs.size(); i++) {
+                Path packFile = destination.resolve(prefix + (nextPack + i) + ZIP_EXTENSION);
+                try (ParallelZipWriter zipWriter = new ParallelZipWriter(packFile, scheduler, options)) {
+                    zipWriter.write(packs.get(i));
+                }
+                logger.debug("Wrote pack `{}`", packFile);
+            }
+            new Recipes(recipes).write(destination.resolve(
+                    HIDDEN_FILE_PREFIX + source.getFileName() + RECIPES_EXTENSION));
+            logger.info("Stored {} of {} bytes as new chunks in {} pack(s)", storedSize, totalSize, packs.size());
+
+            Set<Integer> referenced = new HashSet<>();
+            for (Recipe recipe : recipes) {
+                for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                    referenced.add(chunk.getPack());
+                }
+            }
+            for (Map.Entry<Integer, Path> packFile : findPacks(destination, prefix).entrySet()) {
+                if (!referenced.contains(packFile.getKey())) {
+                    Files.delete(packFile.getValue());
+                    logger.debug("Pruned pack `{}`", packFile.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the packs of earlier runs mostly holding chunks the files of this run do not refer to
+     * @param stored location of every stored chunk by its digest
+     * @param live length of every chunk of this run by its digest
+     * @return numbers of the packs whose live chunks are stored again, so the packs can be deleted
+     */
+    private static Set<Integer> findReplacedPacks(Map<String, Recipe.ChunkRef> stored, Map<String, Integer> live) {
+        Map<Integer, long[]> sizes = new HashMap<>();
+        for (Recipe.ChunkRef ref : stored.values()) {
+            long[] size = sizes.computeIfAbsent(ref.getPack(), pack -> new long[2]);
+            size[0] += ref.getLength();
+            if (live.containsKey(ref.getHash())) {
+                size[1] += ref.getLength();
+            }
+        }
+        Set<Integer> replaced = new HashSet<>();
+        sizes.forEach((pack, size) -> {
+            if (size[1] > 0 && size[1] < size[0] * MIN_LIVE_SHARE) {
+                replaced.add(pack);
+            }
+        });
+        return replaced;
+    }
+
+    /**
+     * The chunk store only ever adds chunks it does not hold yet, so every run is already incremental against the
+     * packs in the destination and the base manifest is not needed.
+     * @param source path
+     * @param destination path of the chunk store
+     * @param maxFileSize threshold for packs
+     * @param base manifest of the previous archive, ignored
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException {
+        logger.info("Chunk store deduplicates against its packs, ignoring base manifest");
+        compress(source, destination, maxFileSize);
+    }
+
+    /**
+     * Not supported, the chunk store is a directory of packs and recipes
+     */
+    @Override
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        throw new UnsupportedOperationException("Streaming is not supported by the chunk store.");
+    }
+
+    /**
+     * Not supported, the chunk store is a directory of packs and recipes
+     */
+    @Override
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        throw new UnsupportedOperationException("Streaming is not supported by the chunk store.");
+    }
+
+    /**
+     * Rebuilds every file described by the recipes in the source directory from the chunks of its packs.
+     * The files are restored concurrently and their CRC-32 is checked against the recipe.
+     * @param source path of the chunk store
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void decompress(Path source, Path destination) throws IOException {
+        Path recipes = findRecipes(source);
+        restore(source, recipes, Recipes.read(recipes).getRecipes(), destination);
+    }
+
+    /**
+     * Rebuilds the files matching the given glob from the chunk store in the source directory.
+     * Only the packs holding chunks of the matching files are opened.
+     * @param source path of the chunk store
+     * @param destination path
+     * @param pattern glob matched against the original path of the files
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        Path recipes = findRecipes(source);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<Recipe> matching = Recipes.read(recipes).getRecipes().stream()
+                .filter(recipe -> matcher.matches(Path.of(recipe.getName())))
+                .collect(Collectors.toList());
+        if (matching.isEmpty()) {
+            logger.error("No entries matching `{}` in `{}`", pattern, source);
+            throw new IllegalArgumentException("No entries matching '" + pattern + "' in '" + source + "'");
+        }
+        restore(source, recipes, matching, destination);
+    }
+
+    /**
+     * Lists the files of the chunk store from its recipes, every chunk of a file is listed as a piece
+     * @param source path of the chunk store
+     * @return manifest of the archive
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Manifest list(Path source) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        for (Recipe recipe : Recipes.read(findRecipes(source)).getRecipes()) {
+            List<ManifestEntry.Piece> pieces = new ArrayList<>();
+            long offset = 0;
+            for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                pieces.add(new ManifestEntry.Piece(chunk.getPack(), offset, chunk.getLength(), 0, -1));
+                offset += chunk.getLength();
+            }
+            entries.add(new ManifestEntry(recipe.getName(), recipe.isDirectory(), recipe.getSize(),
+                    recipe.getLastModified(), recipe.getCrc(), ManifestEntry.State.ARCHIVED, pieces));
+        }
+        return new Manifest(entries);
+    }
+
+    /**
+     * Verifies the chunk store without writing anything: every file is rebuilt in memory from its chunks, on its own
+     * task, and its size and CRC-32 compared with its recipe
+     * @param source path of the chunk store
+     * @return what was checked and the problems found
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Verification verify(Path source) throws IOException {
+        Path recipesFile = findRecipes(source);
+        String fileName = recipesFile.getFileName().toString();
+        String prefix = fileName.substring(HIDDEN_FILE_PREFIX.length(), fileName.length() - RECIPES_EXTENSION.length())
+                + PACK_SUFFIX;
+        Map<Integer, Path> packs = findPacks(source, prefix);
+        Verification verification = new Verification();
+
+        Map<Integer, ZipFile> zipFiles = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            for (Map.Entry<Integer, Path> pack : packs.entrySet()) {
+                zipFiles.put(pack.getKey(), new ZipFile(pack.getValue().toFile()));
+            }
+            for (Recipe recipe : Recipes.read(recipesFile).getRecipes()) {
+                if (!recipe.isDirectory()) {
+                    futures.add(scheduler.getWorkers().submit(() -> verifyFile(recipe, zipFiles, verification)));
+                }
+            }
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        } finally {
+            cancel(futures);
+            for (ZipFile zipFile : zipFiles.values()) {
+                zipFile.close();
+            }
+        }
+        return verification;
+    }
+
+    /**
+     * Reads the chunks of a file in order and checks them against its recipe
+     * @param recipe the file to check
+     * @param zipFiles open packs by their number
+     * @param verification collects the problems
+     */
+    private static void verifyFile(Recipe recipe, Map<Integer, ZipFile> zipFiles, Verification verification) {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = BufferPool.ioBuffer();
+        try {
+            for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                ZipFile zipFile = zipFiles.get(chunk.getPack());
+                ZipEntry entry = zipFile == null ? null : zipFile.getEntry(chunk.getHash());
+                if (entry == null) {
+                    verification.fail("Chunk " + chunk.getHash() + " of `" + recipe.getName() + "` is missing");
+                    return;
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    int len;
+                    while ((len = inputStream.read(buffer)) > 0) {
+                        crc.update(buffer, 0, len);
+                        size += len;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            verification.fail("`" + recipe.getName() + "` can not be read: " + e.getMessage());
+            return;
+        }
+        if (size != recipe.getSize() || crc.getValue() != recipe.getCrc()) {
+            verification.fail("`" + recipe.getName() + "` does not match its recipe");
+        }
+        verification.checked(size);
+    }
+
+    /**
+     * Finds the recipes written next to the packs
+     * @param source path
+     * @return path of the recipes
+     * @throws IOException if execution fails
+     */
+    private static Path findRecipes(Path source) throws IOException {
+        return Files.list(source).sorted()
+                .filter(path -> path.toString().endsWith(RECIPES_EXTENSION))
+                .findFirst()
+                .orElseThrow(() -> {
+                    logger.error("Input directory `{}` has no recipes", source);
+                    return new IllegalArgumentException("Input directory '" + source + "' has no recipes");
+                });
+    }
+
+    /**
+     * Indexes the chunks held by the packs of the given prefix from their central directories
+     * @param directory path of the chunk store
+     * @param prefix file name of the packs up to their number
+     * @return location of every stored chunk by its digest
+     * @throws IOException if a pack can not be read
+     */
+    private static Map<String, Recipe.ChunkRef> readStoredChunks(Path directory, String prefix) throws IOException {
+        Map<String, Recipe.ChunkRef> stored = new HashMap<>();
+        for (Map.Entry<Integer, Path> pack : findPacks(directory, prefix).entrySet()) {
+            try (ZipFile zipFile = new ZipFile(pack.getValue().toFile())) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    stored.put(entry.getName(),
+                            new Recipe.ChunkRef(entry.getName(), pack.getKey(), (int) entry.getSize()));
+                }
+            }
+        }
+        logger.debug("Found {} stored chunks in `{}`", stored.size(), directory);
+        return stored;
+    }
+
+    private static Map<Integer, Path> findPacks(Path directory, String prefix) throws IOException {
+        Map<Integer, Path> packs = new HashMap<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) list::iterator) {
+                Matcher matcher = PACK_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches() && (matcher.group(1) + PACK_SUFFIX).equals(prefix)) {
+                    packs.put(Integer.parseInt(matcher.group(2)), path);
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Writes the directories and files of the given recipes into the destination directory.
+     * Every file is rebuilt by its own task, reading its chunks in order from the packs.
+     * @param source path of the chunk store
+     * @param recipesFile path of the recipes, the packs are named after it
+     * @param recipes recipes to restore
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    private void restore(Path source, Path recipesFile, List<Recipe> recipes, Path destination)
+            throws IOException {
+        String fileName = recipesFile.getFileName().toString();
+        String prefix = fileName.substring(HIDDEN_FILE_PREFIX.length(), fileName.length() - RECIPES_EXTENSION.length())
+                + PACK_SUFFIX;
+        Map<Integer, Path> packs = findPacks(source, prefix);
+
+        Path root = destination.toAbsolutePath().normalize();
+        Map<Integer, ZipFile> zipFiles = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            for (Recipe recipe : recipes) {
+                if (recipe.isDirectory()) {
+                    Files.createDirectories(resolveWithin(root, recipe.getName()));
+                    continue;
+                }
+                for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                    if (!zipFiles.containsKey(chunk.getPack())) {
+                        Path pack = packs.get(chunk.getPack());
+                        if (pack == null) {
+                            throw new IOException("Pack " + chunk.getPack() + " of `" + recipe.getName()
+                                    + "` is missing");
+                        }
+                        zipFiles.put(chunk.getPack(), new ZipFile(pack.toFile()));
+                    }
+                }
+            }
+
+            for (Recipe recipe : recipes) {
+                if (!recipe.isDirectory()) {
+                    Path outputFile = resolveWithin(root, recipe.getName());
+                    futures.add(scheduler.getWorkers().submit(() -> {
+                        restoreFile(recipe, zipFiles, outputFile);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        } finally {
+            cancel(futures);
+            for (ZipFile zipFile : zipFiles.values()) {
+                zipFile.close();
+            }
+        }
+    }
+
+    /**
+     * Concatenates the chunks of a file into the output file and checks its CRC-32
+     * @param recipe the file to restore
+     * @param zipFiles open packs by their number
+     * @param outputFile path of the original file
+     * @throws IOException if operation fails or the restored content does not match the recipe
+     */
+    private static void restoreFile(Recipe recipe, Map<Integer, ZipFile> zipFiles, Path outputFile)
+            throws IOException {
+        Files.createDirectories(outputFile.getParent());
+        CRC32 crc = new CRC32();
+        try (FileChannel outputChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            byte[] buffer = BufferPool.ioBuffer();
+            for (Recipe.ChunkRef chunk : recipe.getChunks()) {
+                ZipFile zipFile = zipFiles.get(chunk.getPack());
+                ZipEntry entry = zipFile.getEntry(chunk.getHash());
+                if (entry == null) {
+                    throw new IOException("Chunk " + chunk.getHash() + " of `" + recipe.getName() + "` is missing");
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    int len;
+                    while ((len = inputStream.read(buffer)) > 0) {
+                        crc.update(buffer, 0, len);
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, len);
+                        while (byteBuffer.hasRemaining()) {
+                            outputChannel.write(byteBuffer);
+                        }
+                    }
+                }
+            }
+        }
+        if (crc.getValue() != recipe.getCrc()) {
+            throw new IOException("CRC mismatch restoring `" + recipe.getName() + "`");
+        }
+        logger.debug("Restored `{}` from {} chunks", recipe.getName(), recipe.getChunks().size());
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing chunks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
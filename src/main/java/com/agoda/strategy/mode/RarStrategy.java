@@ -1,21 +1,75 @@
 package com.agoda.strategy.mode;
 
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.Verification;
 import com.agoda.strategy.ArchiveStrategy;
+import com.agoda.strategy.ArchiveStrategyProvider;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 
+import static com.agoda.constants.CompressionType.RAR;
+
 /**
  * Provides archiving operations for rar format
  */
 public class RarStrategy implements ArchiveStrategy {
+
+    /**
+     * Registers the rar format for the {@code RAR} mode
+     */
+    public static class Provider implements ArchiveStrategyProvider {
+        @Override
+        public String getName() {
+            return RAR;
+        }
+
+        @Override
+        public ArchiveStrategy create(CompressionOptions options) {
+            return new RarStrategy();
+        }
+    }
+
     @Override
     public void compress(Path source, Path destination, long maxFileSize) throws IOException {
         throw new UnsupportedOperationException("Compression type not supported yet.");
     }
 
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException {
+        throw new UnsupportedOperationException("Compression type not supported yet.");
+    }
+
+    @Override
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        throw new UnsupportedOperationException("Compression type not supported yet.");
+    }
+
     @Override
     public void decompress(Path source, Path destination) throws IOException {
         throw new UnsupportedOperationException("Decompression type not supported yet.");
     }
+
+    @Override
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        throw new UnsupportedOperationException("Decompression type not supported yet.");
+    }
+
+    @Override
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        throw new UnsupportedOperationException("Extraction type not supported yet.");
+    }
+
+    @Override
+    public Manifest list(Path source) throws IOException {
+        throw new UnsupportedOperationException("Listing type not supported yet.");
+    }
+
+    @Override
+    public Verification verify(Path source) throws IOException {
+        throw new UnsupportedOperationException("Verification type not supported yet.");
+    }
 }
@@ -0,0 +1,678 @@
+package com.agoda.strategy.mode;
+
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.ManifestEntry;
+import com.agoda.model.Verification;
+import com.agoda.strategy.ArchiveStrategy;
+import com.agoda.strategy.ArchiveStrategyProvider;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.tar.GzipMembersInputStream;
+import com.agoda.tar.ParallelTarGzipWriter;
+import com.agoda.tar.TarHeader;
+import com.agoda.tar.TarInputStream;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.ChangeDetector;
+import com.agoda.utils.CrcUtils;
+import com.agoda.utils.ParallelFileWalker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static com.agoda.constants.CompressionType.TGZ;
+import static com.agoda.constants.Constants.*;
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.utils.FileUtils.*;
+import static com.agoda.utils.Utils.acquire;
+import static com.agoda.utils.Utils.cancel;
+import static com.agoda.utils.Utils.getMaxMemory;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Provides archiving operations for gzip compressed tar archives.
+ * Every archive is a tar stream compressed as a sequence of GZIP members (see {@link ParallelTarGzipWriter}), so it
+ * is read by any tar and gunzip. Small files share the deflate window of their member instead of being compressed
+ * one by one as zip entries, which shrinks trees of many small files and saves the per-entry headers.
+ * Archives are split like zip ones: chunks of at most maxFileSize become `_part_N.tar.gz` archives and larger files
+ * are stored as slices, the manifest next to the archives records where every file and slice is.
+ */
+public class TgzStrategy implements ArchiveStrategy {
+
+    private static final Pattern PART_PATTERN = Pattern.compile(
+            "(.*)" + FILE_PART_SUFFIX + "([0-9]+)" + Pattern.quote(TAR_GZ_EXTENSION));
+    // sealed chunks waiting for a writer, the walk pauses beyond
+    private static final int QUEUED_PARTS_PER_WRITER = 2;
+    // entries handed to the writer of a stream at once
+    private static final long STREAM_BATCH_SIZE = 1024L * 1024L * 1024L;
+
+    private final CompressionOptions options;
+
+    public TgzStrategy() {
+        this(new CompressionOptions());
+    }
+
+    public TgzStrategy(CompressionOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Registers the tar.gz format for the {@code TGZ} mode
+     */
+    public static class Provider implements ArchiveStrategyProvider {
+        @Override
+        public String getName() {
+            return TGZ;
+        }
+
+        @Override
+        public ArchiveStrategy create(CompressionOptions options) {
+            return new TgzStrategy(options);
+        }
+    }
+
+    /**
+     * Compresses the files & folders inside source directory, see {@link #compress(Path, Path, long, Manifest)}
+     * @param source path
+     * @param destination path to put the archives
+     * @param maxFileSize threshold for chunks
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize) throws IOException {
+        compress(source, destination, maxFileSize, null);
+    }
+
+    /**
+     * Compresses the files & folders inside source directory into `source.tar.gz`, or `source_part_N.tar.gz`
+     * archives of at most maxFileSize or maxAllowed JVM memory whichever is minimum.
+     * As with zip, chunks are queued on the writers as soon as they are sealed during the walk, and the members of
+     * every archive are read and compressed in parallel. When a base manifest is given only the files which are new
+     * or changed since are archived.
+     * Interrupted runs are not journaled, the resume option compresses everything again.
+     * @param source path
+     * @param destination path to put the archives
+     * @param maxFileSize threshold for chunks
+     * @param base manifest of the previous archive, null to archive everything
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException {
+        if (options.isResume()) {
+            logger.info("Tar archives are not journaled, compressing everything");
+        }
+        maxFileSize = Math.min(maxFileSize, getMaxMemory()) * 1024L * 1024L;
+        String name = source.getFileName().toString();
+        Path single = destination.resolve(name + TAR_GZ_EXTENSION);
+
+        ChangeDetector changes = base == null ? null : new ChangeDetector(source, base);
+        FileFilter filter = changes == null ? (file, attrs) -> true : changes;
+        List<Part> parts = Collections.synchronizedList(new ArrayList<>());
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options);
+             Manifest.Builder manifest = new Manifest.Builder(source)) {
+            AtomicInteger partCount = new AtomicInteger();
+            // the walk waits while the writers are behind, every part goes to the manifest as soon as it is written
+            Semaphore queued = new Semaphore(QUEUED_PARTS_PER_WRITER * options.getWorkers());
+            Consumer<List<ChunkEntry>> submit = chunk -> {
+                acquire(queued);
+                int number = partCount.getAndIncrement();
+                Path archive = destination.resolve(name + FILE_PART_SUFFIX + number + TAR_GZ_EXTENSION);
+                parts.add(new Part(number, archive, scheduler.write(() -> {
+                    try {
+                        add(manifest, number, chunk, write(chunk, archive, scheduler));
+                        return null;
+                    } finally {
+                        queued.release();
+                    }
+                })));
+            };
+            FileVisitor visitor = new FileVisitor(source, maxFileSize, filter, submit)
+                    .metrics(options.getMetrics());
+            ParallelFileWalker.walk(source, visitor, scheduler.getWorkers());
+            List<List<ChunkEntry>> chunks = visitor.getChunks();
+            if (partCount.get() == 0 && chunks.size() <= 1) {
+                List<ChunkEntry> chunk = chunks.isEmpty() ? Collections.emptyList() : chunks.get(0);
+                add(manifest, -1, chunk, write(chunk, single, scheduler));
+            } else {
+                chunks.forEach(submit);
+                chunks.clear();
+                List<Part> written = new ArrayList<>(parts);
+                for (Part part : written) {
+                    await(part.future);
+                }
+                if (written.size() == 1) {
+                    // everything was sealed during the walk into a single part, named like an unsplit archive
+                    Files.move(written.get(0).archive, single, StandardCopyOption.REPLACE_EXISTING);
+                    manifest.unsplit(written.get(0).number);
+                }
+            }
+            if (changes != null) {
+                for (ManifestEntry entry : changes.getUnchanged()) {
+                    manifest.add(entry);
+                }
+                for (ManifestEntry entry : changes.getDeleted()) {
+                    manifest.add(entry);
+                }
+            }
+            manifest.write(destination.resolve(HIDDEN_FILE_PREFIX + name + MANIFEST_EXTENSION));
+        }
+    }
+
+    /**
+     * Compresses the files & folders inside source directory into a single tar.gz written to the given stream, which
+     * is left open. As with zip, batches of entries are compressed in parallel and written in order while the rest of
+     * the tree is still walked. Tar entries have no size limit, so no file is split, a file larger than a batch is a
+     * batch of its own. No manifest is written.
+     * @param source path
+     * @param outputStream stream the archive is written to
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        BlockingQueue<List<ChunkEntry>> batches = new LinkedBlockingQueue<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            Future<Void> writer = scheduler.write(() -> {
+                try (ParallelTarGzipWriter tarWriter = new ParallelTarGzipWriter(outputStream, scheduler, options)) {
+                    for (List<ChunkEntry> batch = batches.take(); !batch.isEmpty(); batch = batches.take()) {
+                        tarWriter.write(batch);
+                    }
+                }
+                return null;
+            });
+            try {
+                FileVisitor visitor = new FileVisitor(source, STREAM_BATCH_SIZE, (file, attrs) -> true, batches::add, 1)
+                        .keepWhole().metrics(options.getMetrics());
+                ParallelFileWalker.walk(source, visitor, scheduler.getWorkers());
+                visitor.getChunks().forEach(batches::add);
+            } finally {
+                batches.add(Collections.emptyList());
+            }
+            await(writer);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Decompresses the archive(s) present inside source directory.
+     * Every archive is read on its own thread. Slices of split files are written at their offset, taken from the
+     * manifest, so the archives can be processed in any order; without a manifest the archives are read one after
+     * the other and the slices appended.
+     * Files deleted since the base of an incremental archive are removed from the destination.
+     * @param source path
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void decompress(Path source, Path destination) throws IOException {
+        List<Path> archives = findArchives(source);
+        Path manifest = ZipStrategy.findManifest(source);
+        if (archives.isEmpty() && manifest == null) {
+            logger.error("Input directory `{}` is empty", source);
+            throw new IllegalArgumentException("Input directory '" + source + " is empty");
+        }
+        if (options.isResume()) {
+            logger.info("Tar archives are not journaled, decompressing everything");
+        }
+        Manifest read = manifest == null ? null : Manifest.read(manifest);
+        if (read != null) {
+            for (ManifestEntry entry : read.getEntries()) {
+                if (entry.getState() == ManifestEntry.State.ARCHIVED && !entry.isDirectory()) {
+                    options.getMetrics().getProgress().plan(entry.getPieces().size(), entry.getSize());
+                }
+            }
+            options.getMetrics().getProgress().planComplete();
+        }
+        restore(archives, destination, read, null);
+        if (read != null) {
+            ZipStrategy.applyDeletions(read, destination);
+        }
+    }
+
+    /**
+     * Decompresses a tar.gz read from the given stream, entry by entry as it arrives. Slices of split files are
+     * appended to their file in order.
+     * @param inputStream stream of the archive
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        TarInputStream tar = new TarInputStream(new GzipMembersInputStream(inputStream));
+        extract(tar, destination.toAbsolutePath().normalize(), null, null, options.getMetrics());
+    }
+
+    /**
+     * Extracts the files matching the given glob from the archive(s) present inside source directory.
+     * The archives are compressed streams, so every archive is read through but only the matching entries are
+     * written.
+     * @param source path
+     * @param destination path
+     * @param pattern glob matched against the original path of the files inside the archive
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        List<Path> archives = findArchives(source);
+        Path manifest = ZipStrategy.findManifest(source);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        int extracted = restore(archives, destination, manifest == null ? null : Manifest.read(manifest), matcher);
+        if (extracted == 0) {
+            logger.error("No entries matching `{}` in `{}`", pattern, source);
+            throw new IllegalArgumentException("No entries matching '" + pattern + "' in '" + source + "'");
+        }
+    }
+
+    /**
+     * Lists the contents of the archive present inside source directory.
+     * Only the manifest is read, archives written without one are read through to list their entries.
+     * @param source path
+     * @return manifest of the archive
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Manifest list(Path source) throws IOException {
+        Path manifest = ZipStrategy.findManifest(source);
+        if (manifest != null) {
+            return Manifest.read(manifest);
+        }
+        List<Path> archives = findArchives(source);
+        if (archives.isEmpty()) {
+            logger.error("Input directory `{}` is empty", source);
+            throw new IllegalArgumentException("Input directory '" + source + " is empty");
+        }
+        List<ManifestEntry> entries = new ArrayList<>();
+        for (Map.Entry<String, List<Stored>> file : scan(archives, null).entrySet()) {
+            List<Stored> slices = file.getValue();
+            if (slices.get(0).directory) {
+                entries.add(new ManifestEntry(file.getKey(), true, 0, 0, Collections.emptyList()));
+                continue;
+            }
+            List<ManifestEntry.Piece> pieces = new ArrayList<>();
+            long offset = 0;
+            long crc = 0;
+            for (Stored slice : slices) {
+                pieces.add(new ManifestEntry.Piece(slice.archive, offset, slice.size, slice.crc, -1));
+                crc = CrcUtils.combine(crc, slice.crc, slice.size);
+                offset += slice.size;
+            }
+            entries.add(new ManifestEntry(file.getKey(), false, offset, crc, pieces));
+        }
+        return new Manifest(entries);
+    }
+
+    /**
+     * Verifies the archive present inside source directory without writing anything.
+     * Every archive is read through on its own thread, which checks the CRC-32 of every GZIP member and the tar
+     * headers. The CRCs of the slices of every file are then combined and compared with the manifest, which must
+     * list exactly the files stored in the archives.
+     * @param source path
+     * @return what was checked and the problems found
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Verification verify(Path source) throws IOException {
+        List<Path> archives = findArchives(source);
+        Path manifest = ZipStrategy.findManifest(source);
+        if (archives.isEmpty() && manifest == null) {
+            logger.error("Input directory `{}` is empty", source);
+            throw new IllegalArgumentException("Input directory '" + source + " is empty");
+        }
+        Verification verification = new Verification();
+        Map<String, List<Stored>> stored = scan(archives, verification);
+        if (manifest == null) {
+            return verification;
+        }
+        Map<String, ManifestEntry> expected = new HashMap<>();
+        for (ManifestEntry entry : Manifest.read(manifest).getEntries()) {
+            if (!entry.isDirectory() && entry.getState() == ManifestEntry.State.ARCHIVED) {
+                expected.put(entry.getName(), entry);
+            }
+        }
+        for (Map.Entry<String, List<Stored>> file : stored.entrySet()) {
+            if (file.getValue().get(0).directory) {
+                continue;
+            }
+            long size = 0;
+            long crc = 0;
+            for (Stored slice : file.getValue()) {
+                crc = CrcUtils.combine(crc, slice.crc, slice.size);
+                size += slice.size;
+            }
+            ManifestEntry entry = expected.remove(file.getKey());
+            if (entry == null) {
+                verification.fail("`" + file.getKey() + "` is not in the manifest");
+            } else if (entry.getSize() != size || entry.getCrc() != crc) {
+                verification.fail("`" + file.getKey() + "` does not match the manifest, size " + size
+                        + " crc " + Long.toHexString(crc) + " instead of " + entry.getSize() + " "
+                        + Long.toHexString(entry.getCrc()));
+            }
+        }
+        for (String name : expected.keySet()) {
+            verification.fail("`" + name + "` is missing from the archives");
+        }
+        return verification;
+    }
+
+    /**
+     * Finds the archives of the set, the unsplit one or the parts in order
+     * @param source path
+     * @return paths of the archives
+     * @throws IOException if execution fails
+     */
+    private static List<Path> findArchives(Path source) throws IOException {
+        try (Stream<Path> list = Files.list(source)) {
+            return list.filter(path -> path.toString().endsWith(TAR_GZ_EXTENSION))
+                    .sorted((a, b) -> Integer.compare(partNumber(a), partNumber(b)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param archive path of an archive
+     * @return part number of the archive, -1 if it is not a part
+     */
+    private static int partNumber(Path archive) {
+        Matcher matcher = PART_PATTERN.matcher(archive.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(2)) : -1;
+    }
+
+    /**
+     * Writes the entries of the given archives into the destination directory. With a manifest the archives are
+     * read concurrently and split files are truncated up front, each slice is then written at its own offset.
+     * @param archives archives of the set
+     * @param destination path
+     * @param manifest manifest of the set, null to read the archives in order and append the slices
+     * @param matcher selects the files to write, null for all
+     * @return number of entries written
+     * @throws IOException if execution fails
+     */
+    private int restore(List<Path> archives, Path destination, Manifest manifest, PathMatcher matcher)
+            throws IOException {
+        Path root = destination.toAbsolutePath().normalize();
+        Map<String, List<Long>> offsets = manifest == null ? null : new HashMap<>();
+        if (manifest != null) {
+            for (ManifestEntry entry : manifest.getEntries()) {
+                if (entry.getPieces().size() < 2) {
+                    continue;
+                }
+                offsets.put(entry.getName(), entry.getPieces().stream()
+                        .map(ManifestEntry.Piece::getOffset).collect(Collectors.toList()));
+                if (matcher != null && !matcher.matches(Path.of(entry.getName()))) {
+                    continue;
+                }
+                Path outputFile = root.resolve(entry.getName());
+                Files.createDirectories(outputFile.getParent());
+                Files.newByteChannel(outputFile, CREATE, WRITE, TRUNCATE_EXISTING).close();
+            }
+        }
+        List<Future<Integer>> futures = new ArrayList<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            int extracted = 0;
+            for (Path archive : archives) {
+                Future<Integer> future = scheduler.getWorkers().submit(() -> {
+                    try (TarInputStream tar = new TarInputStream(new GzipMembersInputStream(
+                            Files.newInputStream(archive)))) {
+                        return extract(tar, root, offsets, matcher, options.getMetrics());
+                    }
+                });
+                if (manifest == null) {
+                    // slices are appended, the archives are read one after the other
+                    extracted += await(future);
+                } else {
+                    futures.add(future);
+                }
+            }
+            for (Future<Integer> future : futures) {
+                extracted += await(future);
+            }
+            return extracted;
+        } finally {
+            cancel(futures);
+        }
+    }
+
+    /**
+     * Writes the entries of a tar stream into the destination directory
+     * @param tar the tar stream
+     * @param root absolute path of the destination
+     * @param offsets offsets of the slices of every split file from the manifest, null without a manifest to append
+     *                the slices in the order they are read
+     * @param matcher selects the files to write, null for all
+     * @param metrics counts the time spent inflating and writing
+     * @return number of entries written
+     * @throws IOException if execution fails or an entry is outside of the destination
+     */
+    private static int extract(TarInputStream tar, Path root, Map<String, List<Long>> offsets, PathMatcher matcher,
+                               JobMetrics metrics) throws IOException {
+        byte[] buffer = BufferPool.ioBuffer();
+        int extracted = 0;
+        TarHeader header;
+        while ((header = tar.getNextEntry()) != null) {
+            Path name = Path.of(header.getName());
+            Path file = findBaseNameFromPart(name);
+            int slice = findPartNumber(name);
+            List<Long> sliceOffsets = offsets == null ? null : offsets.get(file.toString());
+            if (offsets != null && sliceOffsets == null) {
+                // not split, the name only looks like a slice
+                file = name;
+                slice = -1;
+            }
+            if (matcher != null && !matcher.matches(file)) {
+                continue;
+            }
+            Path target = root.resolve(file.toString()).normalize();
+            if (!target.startsWith(root)) {
+                throw new IOException("Entry `" + header.getName() + "` is outside of the destination");
+            }
+            extracted++;
+            if (header.isDirectory()) {
+                Files.createDirectories(target);
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            JobMetrics.Timing inflating = metrics.start(Stage.INFLATE);
+            long size = 0;
+            long writing = 0;
+            if (sliceOffsets != null && slice >= 0 && slice < sliceOffsets.size()) {
+                try (FileChannel channel = FileChannel.open(target, WRITE)) {
+                    long position = sliceOffsets.get(slice);
+                    int len;
+                    while ((len = tar.read(buffer)) > 0) {
+                        long start = System.nanoTime();
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, len);
+                        while (byteBuffer.hasRemaining()) {
+                            position += channel.write(byteBuffer, position);
+                        }
+                        writing += System.nanoTime() - start;
+                        size += len;
+                    }
+                }
+            } else {
+                OpenOption[] openOptions = slice > 0 ? new OpenOption[]{CREATE, WRITE, APPEND}
+                        : new OpenOption[]{CREATE, WRITE, TRUNCATE_EXISTING};
+                try (OutputStream outputStream = Files.newOutputStream(target, openOptions)) {
+                    int len;
+                    while ((len = tar.read(buffer)) > 0) {
+                        long start = System.nanoTime();
+                        outputStream.write(buffer, 0, len);
+                        writing += System.nanoTime() - start;
+                        size += len;
+                    }
+                }
+            }
+            metrics.add(Stage.REASSEMBLE, 1, size, writing);
+            inflating.exclude(writing).stop(header.getName(), 1, size);
+            metrics.getProgress().done(1, size);
+            logger.debug("Extracted `{}`", header.getName());
+        }
+        return extracted;
+    }
+
+    /**
+     * Reads every archive through on its own task and checksums its entries
+     * @param archives archives of the set
+     * @param verification collects the problems and counts the entries, null to fail on the first problem
+     * @return slices of every file and the directories, by their name, slices in order
+     * @throws IOException if an archive can not be read and there is no verification
+     */
+    private Map<String, List<Stored>> scan(List<Path> archives, Verification verification) throws IOException {
+        List<Future<List<Stored>>> futures = new ArrayList<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            for (Path archive : archives) {
+                futures.add(scheduler.getWorkers().submit(() -> scan(archive, verification)));
+            }
+            Map<String, TreeMap<Integer, Stored>> files = new TreeMap<>();
+            for (Future<List<Stored>> future : futures) {
+                for (Stored stored : await(future)) {
+                    files.computeIfAbsent(stored.name, key -> new TreeMap<>()).put(stored.slice, stored);
+                }
+            }
+            Map<String, List<Stored>> slices = new TreeMap<>();
+            files.forEach((name, stored) -> slices.put(name, new ArrayList<>(stored.values())));
+            return slices;
+        } finally {
+            cancel(futures);
+        }
+    }
+
+    private static List<Stored> scan(Path archive, Verification verification) throws IOException {
+        List<Stored> stored = new ArrayList<>();
+        int number = partNumber(archive);
+        byte[] buffer = BufferPool.ioBuffer();
+        try (TarInputStream tar = new TarInputStream(new GzipMembersInputStream(Files.newInputStream(archive)))) {
+            TarHeader header;
+            while ((header = tar.getNextEntry()) != null) {
+                Path name = Path.of(header.getName());
+                CRC32 crc = new CRC32();
+                long size = 0;
+                int len;
+                while ((len = tar.read(buffer)) > 0) {
+                    crc.update(buffer, 0, len);
+                    size += len;
+                }
+                stored.add(new Stored(findBaseNameFromPart(name).toString(), header.isDirectory(),
+                        Math.max(0, findPartNumber(name)), number, size, crc.getValue()));
+                if (verification != null && !header.isDirectory()) {
+                    verification.checked(size);
+                }
+            }
+        } catch (IOException e) {
+            if (verification == null) {
+                throw e;
+            }
+            verification.fail("`" + archive.getFileName() + "` can not be read: " + e.getMessage());
+        }
+        return stored;
+    }
+
+    /**
+     * Writes a chunk into its own archive
+     * @param contents entries of the files, file slices and folders
+     * @param archive path
+     * @param scheduler pools and in-flight budget of the run
+     * @return CRC-32 of every entry, in order
+     * @throws IOException if operation fails
+     */
+    private List<Long> write(List<ChunkEntry> contents, Path archive, CompressionScheduler scheduler)
+            throws IOException {
+        JobMetrics.PartTiming timing = options.getMetrics().startPart(archive);
+        List<Long> crcs;
+        try (ParallelTarGzipWriter writer = new ParallelTarGzipWriter(archive, scheduler, options)) {
+            writer.write(contents);
+            logger.debug("Wrote {} entries to `{}`", contents.size(), archive);
+            crcs = writer.getCrcs();
+        }
+        timing.finish(contents.size(), contents.stream().mapToLong(ChunkEntry::getLength).sum(),
+                Files.size(archive));
+        return crcs;
+    }
+
+    private static void add(Manifest.Builder manifest, int archive, List<ChunkEntry> entries, List<Long> crcs)
+            throws IOException {
+        for (int i = 0; i < entries.size(); i++) {
+            manifest.add(archive, entries.get(i), crcs.get(i), -1);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing archives", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * An archive queued on the writers
+     */
+    private static class Part {
+        private final int number;
+        private final Path archive;
+        private final Future<Void> future;
+
+        private Part(int number, Path archive, Future<Void> future) {
+            this.number = number;
+            this.archive = archive;
+            this.future = future;
+        }
+    }
+
+    /**
+     * An entry read back from an archive
+     */
+    private static class Stored {
+        private final String name;
+        private final boolean directory;
+        private final int slice;
+        private final int archive;
+        private final long size;
+        private final long crc;
+
+        private Stored(String name, boolean directory, int slice, int archive, long size, long crc) {
+            this.name = name;
+            this.directory = directory;
+            this.slice = slice;
+            this.archive = archive;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
@@ -1,74 +1,306 @@
 package com.agoda.strategy.mode;
 
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.ChunkPlan;
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.ManifestEntry;
+import com.agoda.model.Verification;
 import com.agoda.strategy.ArchiveStrategy;
+import com.agoda.strategy.ArchiveStrategyProvider;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.ChangeDetector;
+import com.agoda.utils.CrcUtils;
+import com.agoda.utils.Journal;
+import com.agoda.utils.ParallelFileWalker;
+import com.agoda.zip.ParallelZipWriter;
+import com.agoda.zip.ZipIndex;
+import com.agoda.zip.ZipIndex.IndexedFile;
+import com.agoda.zip.ZipIndex.Piece;
+import com.agoda.zip.ZipRecord;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
+import static com.agoda.constants.CompressionType.ZIP;
 import static com.agoda.constants.Constants.*;
 import static com.agoda.service.ArchiveService.logger;
 import static com.agoda.utils.FileUtils.*;
+import static com.agoda.utils.Utils.acquire;
+import static com.agoda.utils.Utils.cancel;
 import static com.agoda.utils.Utils.getMaxMemory;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * Provides archiving operations for zip format
  */
 public class ZipStrategy implements ArchiveStrategy {
 
+    // extracted entries committed to the journal together
+    private static final int JOURNAL_GROUP_SIZE = 256;
+    // entries handed to the writer of a stream at once, larger files are split into slices of this size
+    private static final long STREAM_BATCH_SIZE = 1024L * 1024L * 1024L;
+    // sealed chunks waiting for a writer, the walk pauses beyond
+    private static final int QUEUED_PARTS_PER_WRITER = 2;
+
+    private final CompressionOptions options;
+
+    public ZipStrategy() {
+        this(new CompressionOptions());
+    }
+
+    public ZipStrategy(CompressionOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Registers the zip format for the {@code ZIP} mode
+     */
+    public static class Provider implements ArchiveStrategyProvider {
+        @Override
+        public String getName() {
+            return ZIP;
+        }
+
+        @Override
+        public ArchiveStrategy create(CompressionOptions options) {
+            return new ZipStrategy(options);
+        }
+    }
 
     /**
      * Compresses the files & folders inside source directory
      * The files are split into chunks based on given maxFileSize or maxAllowed JVM memory whichever is minimum
      * The zip file produced is also split into chunks with a `part` suffix based on maxFileSize or maxAllowed JVM
      * memory whichever is minimum
-     * The chunks are processed using parallel streams.
+     * Files bigger than the threshold are streamed slice by slice into consecutive part archives, so every source
+     * byte is read once and no intermediate copy is written.
+     * The walk and the compression overlap: every chunk is queued on the writers of a dedicated
+     * {@link CompressionScheduler} as soon as it is sealed, while the rest of the tree is still being listed. The walk
+     * waits while a few chunks per writer are queued, and a chunk is dropped once its part is written and added to the
+     * manifest builder, which spills its entries to disk, so the memory held does not grow with the tree. The entries
+     * of each chunk are read and deflated in parallel blocks on its pools within its in-flight budget. With the memory
+     * mapped option the blocks are deflated straight from the page cache.
+     * A manifest listing every file and the parts it is stored in is written next to the archives as a hidden file.
      * @param source path
      * @param destination path to put compressed zip
      * @param maxFileSize threshold for chunks
      * @throws IOException if operation fails
      */
     public void compress(Path source, Path destination, long maxFileSize) throws IOException {
+        compress(source, destination, maxFileSize, null);
+    }
+
+    /**
+     * Compresses the files & folders inside source directory, see {@link #compress(Path, Path, long)}.
+     * When a base manifest is given only the files which are new or changed since are archived, the manifest records
+     * the unchanged files and tombstones for the deleted ones.
+     * @param source path
+     * @param destination path to put compressed zip
+     * @param maxFileSize threshold for chunks
+     * @param base manifest of the previous archive, null to archive everything
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, Path destination, long maxFileSize, Manifest base) throws IOException {
         maxFileSize = Math.min(maxFileSize, getMaxMemory()) * 1024L * 1024L;
         Path outputZip = destination.resolve(source.getFileName() + ZIP_EXTENSION);
 
-        Path tempDir = Files.createTempDirectory(TEMP_FOLDER_PREFIX).resolve(source.getFileName().toString());
-        List<List<Path>> chunks = getChunks(source, maxFileSize, tempDir);
-        if (chunks.size() == 1) {
-            writeToZip(chunks.get(0), outputZip, source, tempDir);
-        } else {
-            IntStream.range(0, chunks.size())
-                    .parallel()
-                    .forEach(index -> {
-                        try {
-                            Path zipFile = resolvePartFilePath(outputZip, "" + index);
-                            writeToZip(chunks.get(index), zipFile, source, tempDir);
-                        } catch (IOException e) {
-                            logger.error("Error zipping files:", e);
-                        }
-                    });
+        ChangeDetector changes = base == null ? null : new ChangeDetector(source, base);
+        FileFilter filter = changes == null ? (file, attrs) -> true : changes;
+        List<Part> parts = Collections.synchronizedList(new ArrayList<>());
+        Path journalFile = destination.resolve(HIDDEN_FILE_PREFIX + source.getFileName() + JOURNAL_EXTENSION);
+        try (Journal journal = Journal.open(journalFile, options.isResume(), 1);
+             CompressionScheduler scheduler = CompressionScheduler.of(options);
+             Manifest.Builder manifest = new Manifest.Builder(source)) {
+            List<JournaledPart> resumed = resume(journal, source, outputZip, maxFileSize);
+            Set<String> archived = new HashSet<>();
+            int firstPart = 0;
+            for (JournaledPart part : resumed) {
+                int number = findPartNumber(part.zipFile);
+                for (int i = 0; i < part.entries.size(); i++) {
+                    archived.add(part.entries.get(i).getName());
+                    manifest.add(number, part.entries.get(i), part.crcs[i], part.headerOffsets[i]);
+                }
+                firstPart = Math.max(firstPart, number + 1);
+            }
+            AtomicInteger partCount = new AtomicInteger(firstPart);
+            // the walk waits while the writers are behind, every part goes to the manifest as soon as it is written
+            // and its chunk and records are dropped then
+            Semaphore queued = new Semaphore(QUEUED_PARTS_PER_WRITER * options.getWorkers());
+            Consumer<List<ChunkEntry>> submit = chunk -> {
+                acquire(queued);
+                int number = partCount.getAndIncrement();
+                Path zipFile = resolvePartFilePath(outputZip, "" + number);
+                parts.add(new Part(number, zipFile, scheduler.write(() -> {
+                    try {
+                        manifest.add(number, chunk, writePart(source, chunk, zipFile, scheduler, journal));
+                        return null;
+                    } finally {
+                        queued.release();
+                    }
+                })));
+            };
+            List<List<ChunkEntry>> chunks = getChunks(source, maxFileSize, filter, archived, submit, scheduler);
+            if (resumed.isEmpty() && partCount.get() == 0 && chunks.size() == 1) {
+                manifest.add(-1, chunks.get(0), writePart(source, chunks.get(0), outputZip, scheduler, journal));
+            } else {
+                chunks.forEach(submit);
+                chunks.clear();
+            }
+            List<Part> written = new ArrayList<>(parts);
+            for (Part part : written) {
+                await(part.future);
+            }
+            if (resumed.isEmpty() && written.size() == 1) {
+                // everything was sealed during the walk into a single part, named like an unsplit archive
+                Files.move(written.get(0).zipFile, outputZip, StandardCopyOption.REPLACE_EXISTING);
+                manifest.unsplit(written.get(0).number);
+            }
+            if (changes != null) {
+                for (ManifestEntry entry : changes.getUnchanged()) {
+                    manifest.add(entry);
+                }
+                for (ManifestEntry entry : changes.getDeleted()) {
+                    manifest.add(entry);
+                }
+            }
+            manifest.write(destination.resolve(HIDDEN_FILE_PREFIX + source.getFileName() + MANIFEST_EXTENSION));
+            journal.delete();
         }
-        if (Files.notExists(tempDir))
-            return;
-        deleteFolder(tempDir);
-        Files.delete(tempDir.getParent());
     }
 
+    /**
+     * Compresses the files & folders inside source directory into a single zip written to the given stream, which
+     * is left open. The archive is written front to back with data descriptors, so it can be piped without being
+     * staged on disk. Batches of entries are written while the rest of the tree is still walked, files larger than
+     * a batch are stored as consecutive slices. No manifest is written.
+     * @param source path
+     * @param outputStream stream the archive is written to
+     * @throws IOException if operation fails
+     */
+    @Override
+    public void compress(Path source, OutputStream outputStream) throws IOException {
+        BlockingQueue<List<ChunkEntry>> batches = new LinkedBlockingQueue<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            Future<Void> writer = scheduler.write(() -> {
+                try (ParallelZipWriter zipWriter = new ParallelZipWriter(outputStream, scheduler, options)) {
+                    for (List<ChunkEntry> batch = batches.take(); !batch.isEmpty(); batch = batches.take()) {
+                        zipWriter.write(batch);
+                    }
+                }
+                return null;
+            });
+            try {
+                // a batch is written as soon as it is full, there are no parts to balance
+                FileVisitor visitor = new FileVisitor(source, STREAM_BATCH_SIZE, (file, attrs) -> true, batches::add, 1)
+                        .metrics(options.getMetrics());
+                ParallelFileWalker.walk(source, visitor, scheduler.getWorkers());
+                visitor.getChunks().forEach(batches::add);
+            } finally {
+                batches.add(Collections.emptyList());
+            }
+            await(writer);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Reads the parts completed by an interrupted run from the journal. A part is kept only if its archive is
+     * complete and none of its files changed since, the other archives of the set are partial and removed.
+     * A new journal starts with the split size, a run can only be resumed with the same one.
+     * @param journal journal of the run
+     * @param source path
+     * @param outputZip path of the unsplit archive
+     * @param maxFileSize threshold for chunks in bytes
+     * @return the completed parts
+     * @throws IOException if the journal or the archives can not be read
+     */
+    private List<JournaledPart> resume(Journal journal, Path source, Path outputZip, long maxFileSize)
+            throws IOException {
+        List<byte[]> records = journal.getRecovered();
+        if (records.isEmpty()) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            new DataOutputStream(header).writeLong(maxFileSize);
+            journal.append(header.toByteArray(), null);
+            return Collections.emptyList();
+        }
+        if (new DataInputStream(new ByteArrayInputStream(records.get(0))).readLong() != maxFileSize) {
+            throw new IllegalArgumentException("Can not resume compressing `" + source
+                    + "` with a different maxFileSize");
+        }
+        List<JournaledPart> parts = new ArrayList<>();
+        Set<Path> complete = new HashSet<>();
+        for (byte[] record : records.subList(1, records.size())) {
+            JournaledPart part = JournaledPart.read(record, source, outputZip.getParent());
+            if (part.isValid()) {
+                parts.add(part);
+                complete.add(part.zipFile);
+            } else {
+                logger.warn("Archive `{}` or its sources changed, compressing it again", part.zipFile);
+            }
+        }
+        List<Path> partial = Files.list(outputZip.getParent())
+                .filter(path -> findBaseNameFromPart(path).equals(outputZip) && !complete.contains(path))
+                .collect(Collectors.toList());
+        for (Path path : partial) {
+            logger.info("Removing partial archive `{}`", path);
+            Files.delete(path);
+        }
+        logger.info("Resuming with {} completed archives", parts.size());
+        return parts;
+    }
 
     /**
      * Decompresses the archive file(s) present inside source directory.
-     * Split zips are read and processed if decompressed files has part suffix it gets merged.
+     * The central directories of all archives are indexed first, which gives the offset of every split part in its
+     * original file. The entries are then extracted concurrently, each written at its own offset of the target file,
+     * so the archives and parts can be processed in any order.
+     * Files deleted since the base of an incremental archive are removed from the destination.
+     * The extracted entries are journaled in the destination, so with the resume option an interrupted run only
+     * extracts the rest.
      * @param source path
      * @param destination path
      * @throws IOException if execution fails
@@ -79,89 +311,560 @@ public class ZipStrategy implements ArchiveStrategy {
         List<Path> compressedFiles = Files.list(source).sorted()
                 .filter(path -> path.toString().endsWith(ZIP_EXTENSION))
                 .collect(Collectors.toList());
+        Path manifest = findManifest(source);
+
+        if (compressedFiles.size() <= 0 && manifest == null) {
+            logger.error("Input directory `{}` is empty", source);
+            throw new IllegalArgumentException("Input directory '" + source + " is empty");
+        }
+
+        Path journalFile = destination.resolve(HIDDEN_FILE_PREFIX + source.getFileName() + JOURNAL_EXTENSION);
+        try (Journal journal = Journal.open(journalFile, options.isResume(), JOURNAL_GROUP_SIZE)) {
+            restore(ZipIndex.of(compressedFiles), destination, journal);
+            if (manifest != null) {
+                applyDeletions(Manifest.read(manifest), destination);
+            }
+            journal.delete();
+        }
+    }
+
+    /**
+     * Decompresses a zip read from the given stream, entry by entry as it arrives. Slices of split files are
+     * appended to their file in order.
+     * @param inputStream stream of the archive
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void decompress(InputStream inputStream, Path destination) throws IOException {
+        Path root = destination.toAbsolutePath().normalize();
+        ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(inputStream));
+        byte[] buffer = BufferPool.ioBuffer();
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            Path name = Path.of(entry.getName());
+            Path target = root.resolve(findBaseNameFromPart(name).toString()).normalize();
+            if (!target.startsWith(root)) {
+                throw new IOException("Entry `" + entry.getName() + "` is outside of the destination");
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            OpenOption[] openOptions = findPartNumber(name) > 0 ? new OpenOption[]{CREATE, WRITE, APPEND}
+                    : new OpenOption[]{CREATE, WRITE, TRUNCATE_EXISTING};
+            JobMetrics.Timing inflating = options.getMetrics().start(Stage.INFLATE);
+            long size = 0;
+            long writing = 0;
+            try (OutputStream outputStream = Files.newOutputStream(target, openOptions)) {
+                int len;
+                while ((len = zipStream.read(buffer)) > 0) {
+                    long start = System.nanoTime();
+                    outputStream.write(buffer, 0, len);
+                    writing += System.nanoTime() - start;
+                    size += len;
+                }
+            }
+            options.getMetrics().add(Stage.REASSEMBLE, 1, size, writing);
+            inflating.exclude(writing).stop(entry.getName(), 1, size);
+            options.getMetrics().getProgress().done(1, size);
+            logger.debug("Extracted `{}`", entry.getName());
+        }
+    }
+
+    /**
+     * Removes the files and directories marked as deleted in the manifest, directories only if they are empty
+     * @param manifest manifest of an incremental archive
+     * @param destination path
+     * @throws IOException if execution fails
+     */
+    static void applyDeletions(Manifest manifest, Path destination) throws IOException {
+        List<ManifestEntry> deleted = manifest.getEntries().stream()
+                .filter(entry -> entry.getState() == ManifestEntry.State.DELETED)
+                .sorted(Comparator.comparing(ManifestEntry::isDirectory)
+                        .thenComparing(ManifestEntry::getName, Comparator.reverseOrder()))
+                .collect(Collectors.toList());
+        Path root = destination.toAbsolutePath().normalize();
+        for (ManifestEntry entry : deleted) {
+            try {
+                Files.deleteIfExists(resolveWithin(root, entry.getName()));
+                logger.debug("Deleted `{}`", entry.getName());
+            } catch (DirectoryNotEmptyException e) {
+                logger.debug("Kept non empty directory `{}`", entry.getName());
+            }
+        }
+    }
+
+    /**
+     * Extracts the files matching the given glob from the archive file(s) present inside source directory.
+     * Only the central directories are read to locate the matching entries, the archives are then read at just
+     * those entries and split files are reassembled from their parts.
+     * @param source path
+     * @param destination path
+     * @param pattern glob matched against the original path of the files inside the archive
+     * @throws IOException if execution fails
+     */
+    @Override
+    public void extract(Path source, Path destination, String pattern) throws IOException {
+        List<Path> compressedFiles = Files.list(source).sorted()
+                .filter(path -> path.toString().endsWith(ZIP_EXTENSION))
+                .collect(Collectors.toList());
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        ZipIndex index = ZipIndex.of(compressedFiles).filter(name -> matcher.matches(Path.of(name)));
+        if (index.getFiles().isEmpty() && index.getDirectories().isEmpty()) {
+            logger.error("No entries matching `{}` in `{}`", pattern, source);
+            throw new IllegalArgumentException("No entries matching '" + pattern + "' in '" + source + "'");
+        }
+        restore(index, destination, null);
+    }
 
+    /**
+     * Lists the contents of the archive present inside source directory.
+     * Only the manifest is read, archives written without one are listed from their central directories.
+     * @param source path
+     * @return manifest of the archive
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Manifest list(Path source) throws IOException {
+        Path manifest = findManifest(source);
+        if (manifest != null) {
+            return Manifest.read(manifest);
+        }
+
+        List<Path> compressedFiles = Files.list(source).sorted()
+                .filter(path -> path.toString().endsWith(ZIP_EXTENSION))
+                .collect(Collectors.toList());
         if (compressedFiles.size() <= 0) {
             logger.error("Input directory `{}` is empty", source);
             throw new IllegalArgumentException("Input directory '" + source + " is empty");
         }
+        ZipIndex index = ZipIndex.of(compressedFiles);
+        List<ManifestEntry> entries = new ArrayList<>();
+        for (String directory : index.getDirectories()) {
+            entries.add(new ManifestEntry(Path.of(directory).toString(), true, 0, 0, Collections.emptyList()));
+        }
+        for (IndexedFile file : index.getFiles()) {
+            List<ManifestEntry.Piece> pieces = new ArrayList<>();
+            long crc = 0;
+            for (Piece piece : file.getPieces()) {
+                pieces.add(new ManifestEntry.Piece(findPartNumber(piece.getArchive()), piece.getOffset(),
+                        piece.getSize(), piece.getCrc(), -1));
+                crc = CrcUtils.combine(crc, piece.getCrc(), piece.getSize());
+            }
+            entries.add(new ManifestEntry(file.getName(), false, file.getSize(), crc, pieces));
+        }
+        return new Manifest(entries);
+    }
+
+    /**
+     * Verifies the archive present inside source directory without writing anything.
+     * Every entry of every archive is inflated in memory on its own task and its CRC-32 and size are compared with
+     * the central directory. The CRCs of the pieces of a split file are then combined in order and the whole file is
+     * compared with the manifest, which must list exactly the files stored in the archives.
+     * @param source path
+     * @return what was checked and the problems found
+     * @throws IOException if execution fails
+     */
+    @Override
+    public Verification verify(Path source) throws IOException {
+        List<Path> compressedFiles = Files.list(source).sorted()
+                .filter(path -> path.toString().endsWith(ZIP_EXTENSION))
+                .collect(Collectors.toList());
+        Path manifest = findManifest(source);
+        if (compressedFiles.size() <= 0 && manifest == null) {
+            logger.error("Input directory `{}` is empty", source);
+            throw new IllegalArgumentException("Input directory '" + source + " is empty");
+        }
 
-        for (Path compressedFile : compressedFiles) {
-            ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(compressedFile));
-            ZipEntry zipEntry = zipInputStream.getNextEntry();
-            while (zipEntry != null) {
-                Path outputFile = destination.resolve(zipEntry.getName());
-                if (zipEntry.isDirectory()) {
-                    Files.createDirectories(outputFile);
-                } else {
-                    byte[] buffer = new byte[1024];
-                    outputFile = findBaseNameFromPart(outputFile);
-                    OutputStream outputStream = Files.newOutputStream(outputFile, CREATE, APPEND);
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        outputStream.write(buffer, 0, len);
+        Verification verification = new Verification();
+        ZipIndex index;
+        try {
+            index = ZipIndex.of(compressedFiles);
+        } catch (IOException e) {
+            verification.fail(e.getMessage());
+            return verification;
+        }
+        Map<Path, ZipFile> zipFiles = new HashMap<>();
+        Map<Piece, Future<Long>> crcs = new HashMap<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            for (IndexedFile file : index.getFiles()) {
+                for (Piece piece : file.getPieces()) {
+                    ZipFile zipFile = zipFiles.get(piece.getArchive());
+                    if (zipFile == null) {
+                        zipFile = new ZipFile(piece.getArchive().toFile());
+                        zipFiles.put(piece.getArchive(), zipFile);
                     }
-                    outputStream.close();
+                    ZipFile archive = zipFile;
+                    crcs.put(piece, scheduler.getWorkers().submit(() -> verifyPiece(archive, piece, verification)));
                 }
-                zipEntry = zipInputStream.getNextEntry();
             }
-            zipInputStream.closeEntry();
-            zipInputStream.close();
+
+            Map<String, ManifestEntry> expected = new HashMap<>();
+            if (manifest != null) {
+                for (ManifestEntry entry : Manifest.read(manifest).getEntries()) {
+                    if (!entry.isDirectory() && entry.getState() == ManifestEntry.State.ARCHIVED) {
+                        expected.put(entry.getName(), entry);
+                    }
+                }
+            }
+            for (IndexedFile file : index.getFiles()) {
+                long crc = 0;
+                for (Piece piece : file.getPieces()) {
+                    crc = CrcUtils.combine(crc, await(crcs.get(piece)), piece.getSize());
+                }
+                if (manifest == null) {
+                    continue;
+                }
+                ManifestEntry entry = expected.remove(file.getName());
+                if (entry == null) {
+                    verification.fail("`" + file.getName() + "` is not in the manifest");
+                } else if (entry.getSize() != file.getSize() || entry.getCrc() != crc) {
+                    verification.fail("`" + file.getName() + "` does not match the manifest, size " + file.getSize()
+                            + " crc " + Long.toHexString(crc) + " instead of " + entry.getSize() + " "
+                            + Long.toHexString(entry.getCrc()));
+                }
+            }
+            for (String name : expected.keySet()) {
+                verification.fail("`" + name + "` is missing from the archives");
+            }
+        } finally {
+            cancel(crcs.values());
+            for (ZipFile zipFile : zipFiles.values()) {
+                zipFile.close();
+            }
         }
+        return verification;
     }
 
     /**
-     * Writes contents into the zip file
-     * @param contents paths of the files and folders
-     * @param zipFile path
+     * Inflates a single entry in memory and checks it against the central directory
+     * @param zipFile archive holding the entry
+     * @param piece the entry
+     * @param verification collects the problems
+     * @return CRC-32 of the inflated data
+     */
+    private static long verifyPiece(ZipFile zipFile, Piece piece, Verification verification) {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(piece.getEntryName()))) {
+            byte[] buffer = BufferPool.ioBuffer();
+            int len;
+            while ((len = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, len);
+                size += len;
+            }
+        } catch (IOException e) {
+            verification.fail("`" + piece.getEntryName() + "` in `" + piece.getArchive().getFileName()
+                    + "` can not be read: " + e.getMessage());
+            return crc.getValue();
+        }
+        if (crc.getValue() != piece.getCrc() || size != piece.getSize()) {
+            verification.fail("`" + piece.getEntryName() + "` in `" + piece.getArchive().getFileName()
+                    + "` is corrupt, crc " + Long.toHexString(crc.getValue()) + " instead of "
+                    + Long.toHexString(piece.getCrc()));
+        }
+        verification.checked(size);
+        logger.debug("Verified `{}`", piece.getEntryName());
+        return crc.getValue();
+    }
+
+    /**
+     * Finds the manifest written next to the archives
      * @param source path
-     * @param tempDir temporary directory used for operation(destination)
+     * @return path of the manifest, null if there is none
+     * @throws IOException if execution fails
+     */
+    static Path findManifest(Path source) throws IOException {
+        return Files.list(source).sorted()
+                .filter(path -> path.toString().endsWith(MANIFEST_EXTENSION))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Writes the indexed directories and files into the destination directory.
+     * Every entry is written at its own offset of the target file, so they are extracted concurrently.
+     * The entries recorded in the journal are skipped and the files they belong to are not truncated.
+     * @param index entries to restore
+     * @param destination path
+     * @param journal records every extracted entry, null to not journal
+     * @throws IOException if execution fails
+     */
+    private void restore(ZipIndex index, Path destination, Journal journal) throws IOException {
+        Set<String> extracted = new HashSet<>();
+        if (journal != null) {
+            for (byte[] record : journal.getRecovered()) {
+                extracted.add(new String(record, StandardCharsets.UTF_8));
+            }
+        }
+        Path root = destination.toAbsolutePath().normalize();
+        JobMetrics metrics = options.getMetrics();
+        JobMetrics.Timing layout = metrics.start(Stage.REASSEMBLE);
+        for (String directory : index.getDirectories()) {
+            Files.createDirectories(resolveWithin(root, directory));
+        }
+        for (IndexedFile file : index.getFiles()) {
+            Path outputFile = resolveWithin(root, file.getName());
+            Files.createDirectories(outputFile.getParent());
+            boolean resumed = file.getPieces().stream().anyMatch(piece -> extracted.contains(journalKey(piece)));
+            Files.newByteChannel(outputFile, resumed ? new OpenOption[]{CREATE, WRITE}
+                    : new OpenOption[]{CREATE, WRITE, TRUNCATE_EXISTING}).close();
+        }
+        // creating the files and directories, their pieces are counted as they are written
+        layout.stop(destination.toString(), 0, 0);
+
+        Map<Path, ZipFile> zipFiles = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            for (IndexedFile file : index.getFiles()) {
+                Path outputFile = resolveWithin(root, file.getName());
+                for (Piece piece : file.getPieces()) {
+                    String key = journalKey(piece);
+                    if (extracted.contains(key)) {
+                        logger.debug("Entry `{}` already extracted", piece.getEntryName());
+                        continue;
+                    }
+                    metrics.getProgress().plan(1, piece.getSize());
+                    ZipFile zipFile = zipFiles.get(piece.getArchive());
+                    if (zipFile == null) {
+                        zipFile = new ZipFile(piece.getArchive().toFile());
+                        zipFiles.put(piece.getArchive(), zipFile);
+                    }
+                    ZipFile archive = zipFile;
+                    futures.add(scheduler.getWorkers().submit(() -> {
+                        extractPiece(archive, piece, outputFile, metrics);
+                        if (journal != null) {
+                            journal.append(key.getBytes(StandardCharsets.UTF_8), outputFile);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            metrics.getProgress().planComplete();
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        } finally {
+            cancel(futures);
+            for (ZipFile zipFile : zipFiles.values()) {
+                zipFile.close();
+            }
+        }
+    }
+
+    private static String journalKey(Piece piece) {
+        return piece.getArchive().getFileName() + "/" + piece.getEntryName();
+    }
+
+    /**
+     * Inflates a single entry into its position in the output file
+     * @param zipFile archive holding the entry
+     * @param piece the entry with the offset it belongs at
+     * @param outputFile path of the original file
+     * @param metrics counts the time spent inflating and writing
      * @throws IOException if operation fails
      */
-    private static void writeToZip(List<Path> contents, Path zipFile, Path source, Path tempDir)
+    private static void extractPiece(ZipFile zipFile, Piece piece, Path outputFile, JobMetrics metrics)
             throws IOException {
-        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(zipFile))) {
-            for (Path path : contents) {
-                Path processedPath;
-                if (path.getFileName().toString().contains(FILE_PART_SUFFIX))
-                    processedPath = tempDir.relativize(path);
-                else {
-                    processedPath = source.relativize(path);
-                }
-                String transformedFile = processedPath.toString();
-                if (Files.isRegularFile(path)) {
-                    try (InputStream inputStream = Files.newInputStream(path)) {
-                        byte[] buffer = new byte[1024];
-                        ZipEntry zipEntry = new ZipEntry(transformedFile);
-                        zipOutputStream.putNextEntry(zipEntry);
-                        int bufferReadLength;
-                        while ((bufferReadLength = inputStream.read(buffer)) >= 0) {
-                            zipOutputStream.write(buffer, 0, bufferReadLength);
-                        }
-                        zipOutputStream.closeEntry();
-                    }
-                    logger.debug("Written file `{}` into archive", transformedFile);
-                } else {
-                    transformedFile += File.separator;
-                    zipOutputStream.putNextEntry(new ZipEntry(transformedFile));
-                    zipOutputStream.closeEntry();
-                    logger.debug("Written directory `{}` into archive", transformedFile);
+        JobMetrics.Timing inflating = metrics.start(Stage.INFLATE);
+        long writing = 0;
+        long position = piece.getOffset();
+        try (InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(piece.getEntryName()));
+             FileChannel outputChannel = FileChannel.open(outputFile, WRITE)) {
+            byte[] buffer = BufferPool.ioBuffer();
+            int len;
+            while ((len = inputStream.read(buffer)) > 0) {
+                long start = System.nanoTime();
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, len);
+                while (byteBuffer.hasRemaining()) {
+                    position += outputChannel.write(byteBuffer, position);
                 }
+                writing += System.nanoTime() - start;
             }
         }
+        long size = position - piece.getOffset();
+        metrics.add(Stage.REASSEMBLE, 1, size, writing);
+        inflating.exclude(writing).stop(piece.getEntryName(), 1, size);
+        metrics.getProgress().done(1, size);
+        logger.debug("Extracted `{}` into `{}`", piece.getEntryName(), outputFile);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
     }
 
     /**
-     * Get paths of the split file chunks
+     * Writes a part and records it in the journal once its archive is on disk
+     * @param source path
+     * @param contents entries of the files, file slices and folders
+     * @param zipFile path
+     * @param scheduler pools and in-flight budget of the run
+     * @param journal journal of the run
+     * @return records of the written entries
+     * @throws IOException if operation fails
+     */
+    private List<ZipRecord> writePart(Path source, List<ChunkEntry> contents, Path zipFile,
+                                      CompressionScheduler scheduler, Journal journal) throws IOException {
+        JobMetrics.PartTiming timing = options.getMetrics().startPart(zipFile);
+        List<ZipRecord> records = writeToZip(contents, zipFile, scheduler);
+        timing.finish(records.size(), records.stream().mapToLong(ZipRecord::getSize).sum(), Files.size(zipFile));
+        journal.append(JournaledPart.write(source, contents, zipFile, records), zipFile);
+        return records;
+    }
+
+    /**
+     * Writes contents into the zip file
+     * Entries are deflated block by block on the scheduler and stitched into the archive in order.
+     * @param contents entries of the files, file slices and folders
+     * @param zipFile path
+     * @param scheduler pools and in-flight budget of the run
+     * @return records of the written entries
+     * @throws IOException if operation fails
+     */
+    private List<ZipRecord> writeToZip(List<ChunkEntry> contents, Path zipFile, CompressionScheduler scheduler)
+            throws IOException {
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(zipFile, scheduler, options)) {
+            zipWriter.write(contents);
+            return zipWriter.getRecords();
+        }
+    }
+
+    /**
+     * Get entries of the split file chunks
+     * The subdirectories are listed concurrently and the sizes come from the attributes read while listing.
      * @param directory source directory
      * @param maxFileSize threshold
-     * @param destination path - will be used to split files that are above the given threshold
-     * @return list of chunk paths
+     * @param filter decides which files are archived
+     * @param archived names of the entries archived by an interrupted run
+     * @param sealed receives the chunks sealed during the walk
+     * @param scheduler pools of the run, the walk runs on its workers
+     * @return chunks of the entries left open when the walk ends
      * @throws IOException if operation fails
      */
-    private static List<List<Path>> getChunks(Path directory, long maxFileSize, Path destination) throws IOException {
-        FileVisitor visitor = new FileVisitor(directory, destination, maxFileSize);
-        Files.walkFileTree(directory, visitor);
+    private List<List<ChunkEntry>> getChunks(Path directory, long maxFileSize, FileFilter filter,
+                                             Set<String> archived, Consumer<List<ChunkEntry>> sealed,
+                                             CompressionScheduler scheduler) throws IOException {
+        FileVisitor visitor = new FileVisitor(directory, maxFileSize, filter, sealed).exclude(archived)
+                .metrics(options.getMetrics());
+        ParallelFileWalker.walk(directory, visitor, scheduler.getWorkers());
         return visitor.getChunks();
     }
 
+    /**
+     * A part archive queued on the writers
+     */
+    private static class Part {
+        private final int number;
+        private final Path zipFile;
+        private final Future<Void> future;
+
+        private Part(int number, Path zipFile, Future<Void> future) {
+            this.number = number;
+            this.zipFile = zipFile;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A part completed by an interrupted run, as recorded in the journal
+     */
+    private static class JournaledPart {
+        private final Path zipFile;
+        private final long zipSize;
+        private final List<ChunkEntry> entries;
+        private final long[] sizes;
+        private final long[] crcs;
+        private final long[] headerOffsets;
+
+        private JournaledPart(Path zipFile, long zipSize, int count) {
+            this.zipFile = zipFile;
+            this.zipSize = zipSize;
+            this.entries = new ChunkPlan();
+            this.sizes = new long[count];
+            this.crcs = new long[count];
+            this.headerOffsets = new long[count];
+        }
+
+        private static byte[] write(Path source, List<ChunkEntry> entries, Path zipFile, List<ZipRecord> records)
+                throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(zipFile.getFileName().toString());
+            out.writeLong(Files.size(zipFile));
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                ChunkEntry entry = entries.get(i);
+                out.writeUTF(source.relativize(entry.getPath()).toString());
+                out.writeUTF(entry.getName());
+                out.writeBoolean(entry.isDirectory());
+                out.writeLong(entry.isDirectory() ? 0 : Files.size(entry.getPath()));
+                out.writeLong(entry.getOffset());
+                out.writeLong(entry.getLength());
+                out.writeLong(entry.getLastModified());
+                out.writeInt((int) records.get(i).getCrc());
+                out.writeLong(records.get(i).getLocalHeaderOffset());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static JournaledPart read(byte[] record, Path source, Path destination) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            Path zipFile = destination.resolve(in.readUTF());
+            long zipSize = in.readLong();
+            int count = in.readInt();
+            JournaledPart part = new JournaledPart(zipFile, zipSize, count);
+            for (int i = 0; i < count; i++) {
+                Path path = source.resolve(in.readUTF());
+                String name = in.readUTF();
+                boolean directory = in.readBoolean();
+                part.sizes[i] = in.readLong();
+                long offset = in.readLong();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                part.crcs[i] = Integer.toUnsignedLong(in.readInt());
+                part.headerOffsets[i] = in.readLong();
+                part.entries.add(directory ? ChunkEntry.ofDirectory(path, name)
+                        : ChunkEntry.ofSlice(path, name, offset, length, lastModified));
+            }
+            return part;
+        }
+
+        /**
+         * @return whether the archive is complete and every source is as it was archived
+         */
+        private boolean isValid() throws IOException {
+            if (!Files.isRegularFile(zipFile) || Files.size(zipFile) != zipSize) {
+                return false;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                ChunkEntry entry = entries.get(i);
+                if (entry.isDirectory()) {
+                    if (!Files.isDirectory(entry.getPath())) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (!Files.isRegularFile(entry.getPath()) || Files.size(entry.getPath()) != sizes[i]
+                        || Files.getLastModifiedTime(entry.getPath()).toMillis() != entry.getLastModified()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
 }
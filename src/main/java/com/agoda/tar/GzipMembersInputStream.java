@@ -0,0 +1,166 @@
+package com.agoda.tar;
+
+import com.agoda.utils.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates every member of a multi-member GZIP stream in turn and checks the CRC-32 and size of each.
+ * Unlike {@link java.util.zip.GZIPInputStream}, which only looks for a following member when bytes are already
+ * available, the next member is always read, so an archive piped from a slow writer is not cut short at a member
+ * boundary.
+ */
+public class GzipMembersInputStream extends InputStream {
+
+    private static final int MAGIC = 0x8b1f;
+    private static final int METHOD_DEFLATE = 8;
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private final PushbackInputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer;
+    private int buffered;
+    private boolean ended;
+    private boolean started;
+
+    /**
+     * @param in the GZIP stream, closed with this stream
+     */
+    public GzipMembersInputStream(InputStream in) {
+        this.buffer = new byte[BufferPool.IO_BUFFER_SIZE];
+        this.in = new PushbackInputStream(in, buffer.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] output, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!started) {
+            started = true;
+            ended = !readHeader();
+        }
+        while (!ended) {
+            try {
+                int inflated = inflater.inflate(output, offset, length);
+                if (inflated > 0) {
+                    crc.update(output, offset, inflated);
+                    return inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt GZIP member: " + e.getMessage());
+            }
+            if (inflater.finished()) {
+                int remaining = inflater.getRemaining();
+                if (remaining > 0) {
+                    in.unread(buffer, buffered - remaining, remaining);
+                }
+                readTrailer();
+                ended = !readHeader();
+            } else if (inflater.needsInput()) {
+                buffered = in.read(buffer);
+                if (buffered < 0) {
+                    throw new EOFException("Unexpected end of GZIP member");
+                }
+                inflater.setInput(buffer, 0, buffered);
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Corrupt GZIP member, preset dictionary");
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Reads the header of the next member and resets the inflater for it
+     *
+     * @return whether there is a next member, false at the end of the stream
+     */
+    private boolean readHeader() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        int magic = first | readByte() << 8;
+        if (magic != MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readByte() != METHOD_DEFLATE) {
+            throw new ZipException("Unsupported GZIP compression method");
+        }
+        int flags = readByte();
+        // modification time, extra flags and operating system
+        skip(6);
+        if ((flags & FLAG_EXTRA) != 0) {
+            skip(readByte() | readByte() << 8);
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            while (readByte() != 0) {
+                continue;
+            }
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            while (readByte() != 0) {
+                continue;
+            }
+        }
+        if ((flags & FLAG_HEADER_CRC) != 0) {
+            skip(2);
+        }
+        inflater.reset();
+        crc.reset();
+        return true;
+    }
+
+    private void readTrailer() throws IOException {
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("Corrupt GZIP trailer, crc " + Long.toHexString(crc.getValue()) + " instead of "
+                    + Long.toHexString(expectedCrc));
+        }
+        if (expectedSize != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt GZIP trailer, size does not match");
+        }
+    }
+
+    private long readInt() throws IOException {
+        return (readByte() | readByte() << 8 | readByte() << 16 | (long) readByte() << 24) & 0xFFFFFFFFL;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of GZIP member");
+        }
+        return b;
+    }
+
+    private void skip(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readByte();
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package com.agoda.tar;
+
+import com.agoda.constants.CompressionPolicy;
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.CrcUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.agoda.tar.TarHeader.BLOCK_SIZE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes a tar archive compressed as a sequence of independent GZIP members, which gunzip and
+ * {@link GzipMembersInputStream} read back as one stream.
+ * The tar stream is cut into members of about {@link #MEMBER_SIZE} bytes: small files are batched into the same
+ * member, so they share its deflate window instead of paying for an entry each, and large files span several
+ * members. Members are read on the readers of the scheduler and compressed on its workers, the writer appends them
+ * in order, so the archive is written front to back and can go to a stream.
+ * The level of every member is chosen by the policy from a trial deflate of its first bytes. The members are laid
+ * out as the writer gets to them, read into buffers recycled by the scheduler and deflated on the deflaters of the
+ * worker threads.
+ */
+public class ParallelTarGzipWriter implements Closeable {
+
+    public static final int MEMBER_SIZE = 1024 * 1024;
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // a member exceeds its size by the header blocks it was started with and the padding of its last entry
+    static final int INPUT_SIZE = MEMBER_SIZE + 64 * 1024;
+    // worst case GZIP member of a full input, incompressible input grows by a few bytes per 16K stored block
+    static final int OUTPUT_SIZE = INPUT_SIZE + (INPUT_SIZE >> 8) + 64;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    // a single deflater per pool thread, its level is changed for every use
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final WritableByteChannel channel;
+    private final FileChannel file;
+    private final CompressionScheduler scheduler;
+    private final ExecutorService readers;
+    private final ExecutorService workers;
+    private final CompressionPolicy policy;
+    private final JobMetrics metrics;
+    private final BufferPool inputs;
+    private final BufferPool outputs;
+    private final List<Long> crcs = new ArrayList<>();
+
+    /**
+     * @param archive   path of the archive to create
+     * @param scheduler pools and in-flight budget of the run
+     * @param options   policy choosing the level of every member
+     * @throws IOException if the archive can not be created
+     */
+    public ParallelTarGzipWriter(Path archive, CompressionScheduler scheduler, CompressionOptions options)
+            throws IOException {
+        this(FileChannel.open(archive, CREATE, TRUNCATE_EXISTING, WRITE), scheduler, options);
+    }
+
+    /**
+     * Writes the archive to a stream, which is left open when the archive is closed
+     *
+     * @param outputStream stream the archive is written to
+     * @param scheduler    pools and in-flight budget of the run
+     * @param options      policy choosing the level of every member
+     */
+    public ParallelTarGzipWriter(OutputStream outputStream, CompressionScheduler scheduler,
+                                 CompressionOptions options) {
+        this(Channels.newChannel(outputStream), scheduler, options);
+    }
+
+    private ParallelTarGzipWriter(WritableByteChannel channel, CompressionScheduler scheduler,
+                                  CompressionOptions options) {
+        this.channel = channel;
+        this.file = channel instanceof FileChannel ? (FileChannel) channel : null;
+        this.scheduler = scheduler;
+        this.readers = scheduler.getReaders();
+        this.workers = scheduler.getWorkers();
+        this.policy = options.getPolicy();
+        this.metrics = scheduler.getMetrics();
+        this.inputs = scheduler.getBuffers(INPUT_SIZE);
+        this.outputs = scheduler.getBuffers(OUTPUT_SIZE);
+    }
+
+    /**
+     * Writes the given entries in order. Members of upcoming entries are read and compressed while earlier ones are
+     * written; a member is only read once its bytes fit the in-flight budget, which is returned when it is written.
+     *
+     * @param entries entries of the files, file slices and folders
+     * @throws IOException if reading a source or writing the archive fails
+     */
+    public void write(List<ChunkEntry> entries) throws IOException {
+        Iterator<Member> members = new Members(entries);
+        // members submitted and not written yet, in order, with their futures
+        Deque<Member> submitted = new ArrayDeque<>();
+        Deque<Future<Compressed>> pending = new ArrayDeque<>();
+        Member next = members.hasNext() ? members.next() : null;
+        int window = scheduler.getReadAhead();
+        long crc = 0;
+        try {
+            while (next != null || !submitted.isEmpty()) {
+                while (next != null && pending.size() < window && reserve(next, pending.isEmpty())) {
+                    pending.add(submit(next));
+                    submitted.add(next);
+                    metrics.getBlocks().add(1);
+                    next = members.hasNext() ? members.next() : null;
+                }
+                Member member = submitted.peek();
+                Compressed compressed = await(pending.poll());
+                metrics.getBlocks().add(-1);
+                JobMetrics.Timing writing = metrics.start(Stage.WRITE);
+                writeFully(ByteBuffer.wrap(compressed.data, 0, compressed.length));
+                outputs.release(compressed.data);
+                int finished = 0;
+                long length = 0;
+                for (int i = 0; i < member.segments.size(); i++) {
+                    Segment segment = member.segments.get(i);
+                    crc = CrcUtils.combine(crc, compressed.crcs[i], segment.length);
+                    length += segment.length;
+                    if (segment.last) {
+                        crcs.add(crc);
+                        crc = 0;
+                        finished++;
+                    }
+                }
+                writing.stop(member.segments.get(0).entry.getName(), finished, compressed.length);
+                metrics.getProgress().done(finished, length);
+                unreserve(submitted.poll());
+            }
+        } finally {
+            metrics.getBlocks().add(-pending.size());
+            for (Future<Compressed> future : pending) {
+                future.cancel(true);
+            }
+            for (Member member : submitted) {
+                unreserve(member);
+            }
+        }
+    }
+
+    /**
+     * @return CRC-32 of the data of every entry written so far, 0 for directories
+     */
+    public List<Long> getCrcs() {
+        return Collections.unmodifiableList(crcs);
+    }
+
+    /**
+     * Writes the end of the archive, two zero blocks in a member of their own, and closes the archive
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            Compressed end = gzip(new byte[BLOCK_SIZE * 2], BLOCK_SIZE * 2, Deflater.BEST_SPEED, new long[0]);
+            writeFully(ByteBuffer.wrap(end.data, 0, end.length));
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a member on the readers, then compresses it on the workers
+     */
+    private Future<Compressed> submit(Member member) {
+        String name = member.segments.get(0).entry.getName();
+        return CompletableFuture.supplyAsync(() -> {
+            JobMetrics.Timing reading = metrics.start(Stage.READ);
+            Read read = read(member);
+            reading.stop(name, 1, read.length);
+            return read;
+        }, readers).thenApplyAsync(read -> {
+            JobMetrics.Timing deflating = metrics.start(Stage.DEFLATE);
+            try {
+                int level = chooseLevel(read.data, read.length);
+                return gzip(read.data, read.length, level, read.crcs);
+            } finally {
+                inputs.release(read.data);
+                deflating.stop(name, 1, read.length);
+            }
+        }, workers);
+    }
+
+    /**
+     * Lays out the tar bytes of a member, checksumming the data of every segment
+     *
+     * @throws UncheckedIOException if a source can not be read or is shorter than expected
+     */
+    private Read read(Member member) {
+        // small members get their own array, pooled buffers are sized for whole members
+        byte[] data = member.bytes < SAMPLE_SIZE || member.bytes > INPUT_SIZE ? new byte[member.bytes]
+                : inputs.acquire();
+        long[] segmentCrcs = new long[member.segments.size()];
+        int length = 0;
+        try {
+            for (int i = 0; i < member.segments.size(); i++) {
+                Segment segment = member.segments.get(i);
+                if (segment.header != null) {
+                    System.arraycopy(segment.header, 0, data, length, segment.header.length);
+                    length += segment.header.length;
+                }
+                if (segment.length > 0) {
+                    readFully(segment.entry.getPath(), segment.offset, data, length, segment.length);
+                    CRC32 crc = new CRC32();
+                    crc.update(data, length, segment.length);
+                    segmentCrcs[i] = crc.getValue();
+                    length += segment.length;
+                }
+                Arrays.fill(data, length, length + segment.padding, (byte) 0);
+                length += segment.padding;
+            }
+        } catch (UncheckedIOException e) {
+            inputs.release(data);
+            throw e;
+        }
+        return new Read(data, length, segmentCrcs);
+    }
+
+    private static void readFully(Path path, long position, byte[] data, int offset, int length) {
+        try (FileChannel source = FileChannel.open(path, READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                int read = source.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file `" + path + "`");
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deflates the first bytes of a member at the fastest level, the achieved ratio picks its level
+     */
+    private int chooseLevel(byte[] data, int length) {
+        if (length < SAMPLE_SIZE) {
+            return policy.getLevel();
+        }
+        Deflater sampler = deflater(Deflater.BEST_SPEED);
+        sampler.setInput(data, 0, SAMPLE_SIZE);
+        sampler.finish();
+        byte[] output = BufferPool.ioBuffer();
+        long compressed = 0;
+        while (!sampler.finished()) {
+            compressed += sampler.deflate(output);
+        }
+        return policy.levelFor((double) compressed / SAMPLE_SIZE);
+    }
+
+    /**
+     * Compresses bytes into a GZIP member of their own, on the deflater of the current thread
+     *
+     * @param crcs CRC-32 of the data of every segment, handed on with the member
+     */
+    private Compressed gzip(byte[] data, int length, int level, long[] crcs) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        Deflater deflater = deflater(level);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] output = length < SAMPLE_SIZE ? new byte[length + (length >> 8) + 64] : outputs.acquire();
+        System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+        int size = GZIP_HEADER.length;
+        while (true) {
+            size += deflater.deflate(output, size, output.length - size);
+            if (deflater.finished()) {
+                break;
+            }
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+        }
+        if (output.length - size < GZIP_TRAILER_SIZE) {
+            output = Arrays.copyOf(output, size + GZIP_TRAILER_SIZE);
+        }
+        ByteBuffer.wrap(output, size, GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) crc.getValue()).putInt(length);
+        return new Compressed(output, size + GZIP_TRAILER_SIZE, crcs);
+    }
+
+    /**
+     * @param level compression level
+     * @return the reset raw deflater of the current thread for the given level
+     */
+    private static Deflater deflater(int level) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        // a new level is only applied by the next deflate call, which then returns without deflating; applied here
+        // on the empty reset stream so it comes before the dictionary and the input
+        deflater.deflate(BufferPool.ioBuffer());
+        return deflater;
+    }
+
+    /**
+     * Reserves the bytes of a member from the budget of the scheduler
+     *
+     * @param member the member about to be read
+     * @param wait   whether to wait for the budget, only when no member of this writer is in flight so the writer
+     *               never waits on budget held by its own members
+     * @return whether the member may be read
+     * @throws IOException if interrupted while waiting
+     */
+    private boolean reserve(Member member, boolean wait) throws IOException {
+        if (!wait) {
+            return scheduler.tryAcquire(member.bytes);
+        }
+        try {
+            scheduler.acquire(member.bytes);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the in-flight budget", e);
+        }
+    }
+
+    private void unreserve(Member member) {
+        scheduler.release(member.bytes);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static Compressed await(Future<Compressed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Cuts the tar stream of the entries into members as the writer gets to them: the header of an entry is encoded
+     * when the entry is reached and kept with the start of its data, the data is split on member boundaries
+     */
+    private static class Members implements Iterator<Member> {
+        private final List<ChunkEntry> entries;
+        private int index;
+        // entry being cut, null between entries
+        private ChunkEntry entry;
+        private byte[] header;
+        private long offset;
+        private long end;
+        private boolean first;
+
+        private Members(List<ChunkEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entry != null || index < entries.size();
+        }
+
+        @Override
+        public Member next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Member member = new Member();
+            while (hasNext()) {
+                if (entry == null) {
+                    start(entries.get(index++));
+                }
+                if (first) {
+                    if (member.bytes > 0 && member.bytes + header.length > MEMBER_SIZE) {
+                        return member;
+                    }
+                    member.bytes += header.length;
+                    if (entry.isDirectory()) {
+                        member.segments.add(new Segment(entry, header, 0, 0, 0, true));
+                        entry = null;
+                        continue;
+                    }
+                } else if (member.bytes >= MEMBER_SIZE) {
+                    // the header stays in the member it was counted in, even if it filled it
+                    return member;
+                }
+                int length = (int) Math.min(Math.max(0, MEMBER_SIZE - member.bytes), end - offset);
+                boolean last = offset + length == end;
+                int padding = last ? TarHeader.padding(entry.getLength()) : 0;
+                member.segments.add(new Segment(entry, first ? header : null, offset, length, padding, last));
+                member.bytes += length + padding;
+                offset += length;
+                first = false;
+                if (last) {
+                    entry = null;
+                }
+            }
+            return member;
+        }
+
+        private void start(ChunkEntry next) {
+            String name = next.getName().replace(File.separatorChar, '/');
+            entry = next;
+            header = new TarHeader(name, next.isDirectory(), next.getLength(), next.getLastModified()).encode();
+            offset = next.getOffset();
+            end = next.getOffset() + next.getLength();
+            first = true;
+        }
+    }
+
+    /**
+     * Consecutive bytes of the tar stream compressed into one GZIP member
+     */
+    private static class Member {
+        private final List<Segment> segments = new ArrayList<>();
+        private int bytes;
+    }
+
+    /**
+     * A range of the data of an entry inside a member, with the header blocks when it starts the entry and the
+     * padding when it ends it
+     */
+    private static class Segment {
+        private final ChunkEntry entry;
+        private final byte[] header;
+        private final long offset;
+        private final int length;
+        private final int padding;
+        private final boolean last;
+
+        private Segment(ChunkEntry entry, byte[] header, long offset, int length, int padding, boolean last) {
+            this.entry = entry;
+            this.header = header;
+            this.offset = offset;
+            this.length = length;
+            this.padding = padding;
+            this.last = last;
+        }
+    }
+
+    private static class Read {
+        private final byte[] data;
+        private final int length;
+        private final long[] crcs;
+
+        private Read(byte[] data, int length, long[] crcs) {
+            this.data = data;
+            this.length = length;
+            this.crcs = crcs;
+        }
+    }
+
+    private static class Compressed {
+        private final byte[] data;
+        private final int length;
+        private final long[] crcs;
+
+        private Compressed(byte[] data, int length, long[] crcs) {
+            this.data = data;
+            this.length = length;
+            this.crcs = crcs;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.agoda.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Header of a tar entry in the POSIX pax format: a ustar header block, preceded by a pax extended header when the
+ * name does not fit the 100 bytes of the ustar name or the size its 11 octal digits.
+ * Names always use `/` as separator, directories end with one.
+ */
+public class TarHeader {
+
+    public static final int BLOCK_SIZE = 512;
+
+    static final byte TYPE_FILE = '0';
+    static final byte TYPE_OLD_FILE = 0;
+    static final byte TYPE_DIRECTORY = '5';
+    static final byte TYPE_PAX = 'x';
+    static final byte TYPE_GLOBAL_PAX = 'g';
+    static final byte TYPE_GNU_LONG_NAME = 'L';
+
+    private static final int NAME_OFFSET = 0;
+    private static final int NAME_LENGTH = 100;
+    private static final int MODE_OFFSET = 100;
+    private static final int UID_OFFSET = 108;
+    private static final int GID_OFFSET = 116;
+    private static final int SIZE_OFFSET = 124;
+    private static final int SIZE_LENGTH = 12;
+    private static final int MTIME_OFFSET = 136;
+    private static final int MTIME_LENGTH = 12;
+    private static final int CHECKSUM_OFFSET = 148;
+    private static final int CHECKSUM_LENGTH = 8;
+    private static final int TYPE_OFFSET = 156;
+    private static final int MAGIC_OFFSET = 257;
+    private static final int PREFIX_OFFSET = 345;
+    private static final int PREFIX_LENGTH = 155;
+    private static final byte[] MAGIC = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int FILE_MODE = 0644;
+    private static final int DIRECTORY_MODE = 0755;
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * @param name         name of the entry inside the archive, with `/` as separator
+     * @param directory    whether the entry is a directory
+     * @param size         bytes of data following the header
+     * @param lastModified last modified time in milliseconds, -1 if unknown
+     */
+    public TarHeader(String name, boolean directory, long size, long lastModified) {
+        this.name = directory && !name.endsWith("/") ? name + "/" : name;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return name of the entry, directories end with `/`
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param size bytes of data of an entry
+     * @return zero bytes following the data up to the next block
+     */
+    public static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * @return the header blocks of the entry, with the pax extended header if one is needed
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(BLOCK_SIZE);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        StringBuilder pax = new StringBuilder();
+        if (nameBytes.length > NAME_LENGTH) {
+            pax.append(paxRecord("path", name));
+        }
+        if (size > MAX_OCTAL_SIZE) {
+            pax.append(paxRecord("size", Long.toString(size)));
+        }
+        if (pax.length() > 0) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            blocks.writeBytes(block("PaxHeaders/" + truncate(name), TYPE_PAX, records.length, FILE_MODE));
+            blocks.writeBytes(records);
+            blocks.writeBytes(new byte[padding(records.length)]);
+        }
+        blocks.writeBytes(block(truncate(name), directory ? TYPE_DIRECTORY : TYPE_FILE,
+                Math.min(size, MAX_OCTAL_SIZE), directory ? DIRECTORY_MODE : FILE_MODE));
+        return blocks.toByteArray();
+    }
+
+    private byte[] block(String blockName, byte type, long blockSize, int mode) {
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] nameBytes = blockName.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, block, NAME_OFFSET, Math.min(NAME_LENGTH, nameBytes.length));
+        octal(block, MODE_OFFSET, 8, mode);
+        octal(block, UID_OFFSET, 8, 0);
+        octal(block, GID_OFFSET, 8, 0);
+        octal(block, SIZE_OFFSET, SIZE_LENGTH, blockSize);
+        octal(block, MTIME_OFFSET, MTIME_LENGTH, Math.max(0, lastModified) / 1000);
+        block[TYPE_OFFSET] = type;
+        System.arraycopy(MAGIC, 0, block, MAGIC_OFFSET, MAGIC.length);
+        octal(block, CHECKSUM_OFFSET, CHECKSUM_LENGTH - 1, checksum(block));
+        block[CHECKSUM_OFFSET + CHECKSUM_LENGTH - 1] = ' ';
+        return block;
+    }
+
+    /**
+     * Parses a header block, the fields of a preceding pax or GNU long name header override those of the block
+     *
+     * @param block    the header block
+     * @param longName name from the preceding extended headers, null if none
+     * @param longSize size from the preceding pax header, -1 if none
+     * @return the header
+     * @throws IOException if the checksum of the block does not match
+     */
+    static TarHeader decode(byte[] block, String longName, long longSize) throws IOException {
+        checkBlock(block);
+        String blockName = string(block, NAME_OFFSET, NAME_LENGTH);
+        if (isUstar(block)) {
+            String prefix = string(block, PREFIX_OFFSET, PREFIX_LENGTH);
+            if (!prefix.isEmpty()) {
+                blockName = prefix + "/" + blockName;
+            }
+        }
+        boolean directory = block[TYPE_OFFSET] == TYPE_DIRECTORY;
+        long size = longSize >= 0 ? longSize : number(block, SIZE_OFFSET, SIZE_LENGTH);
+        long mtime = number(block, MTIME_OFFSET, MTIME_LENGTH);
+        return new TarHeader(longName != null ? longName : blockName, directory, directory ? 0 : size,
+                mtime * 1000);
+    }
+
+    /**
+     * @param block a header block
+     * @return type flag of the block
+     */
+    static byte type(byte[] block) {
+        return block[TYPE_OFFSET];
+    }
+
+    /**
+     * @param block a header block
+     * @return size of the data following the block
+     * @throws IOException if the checksum of the block does not match
+     */
+    static long dataSize(byte[] block) throws IOException {
+        checkBlock(block);
+        return number(block, SIZE_OFFSET, SIZE_LENGTH);
+    }
+
+    /**
+     * @param block a block read where a header is expected
+     * @return whether it is a zero block, which ends the archive
+     */
+    static boolean isEnd(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the records of a pax extended header, `length keyword=value\n` each
+     *
+     * @param data data of the extended header
+     * @param key  keyword to look up
+     * @return value of the last record with the keyword, null if none
+     * @throws IOException if a record is malformed
+     */
+    static String paxValue(byte[] data, String key) throws IOException {
+        String value = null;
+        int position = 0;
+        while (position < data.length && data[position] != 0) {
+            int space = position;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed pax record", e);
+            }
+            if (length <= space - position || position + length > data.length) {
+                throw new IOException("Malformed pax record");
+            }
+            String record = new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            int equals = record.indexOf('=');
+            if (equals > 0 && record.substring(0, equals).equals(key)) {
+                value = record.substring(equals + 1);
+            }
+            position += length;
+        }
+        return value;
+    }
+
+    private static String paxRecord(String key, String value) {
+        String record = " " + key + "=" + value + "\n";
+        int length = record.getBytes(StandardCharsets.UTF_8).length;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() > Integer.toString(length).length()) {
+            total++;
+        }
+        return total + record;
+    }
+
+    private static String truncate(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= NAME_LENGTH) {
+            return name;
+        }
+        // cut on a character boundary, the pax path carries the full name
+        int end = NAME_LENGTH;
+        while ((bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static void checkBlock(byte[] block) throws IOException {
+        long expected = number(block, CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+        if (checksum(block) != expected) {
+            throw new IOException("Corrupt tar header, checksum " + Long.toOctalString(checksum(block))
+                    + " instead of " + Long.toOctalString(expected));
+        }
+    }
+
+    private static boolean isUstar(byte[] block) {
+        return Arrays.equals(block, MAGIC_OFFSET, MAGIC_OFFSET + 5, MAGIC, 0, 5);
+    }
+
+    private static long checksum(byte[] block) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            boolean field = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH;
+            sum += field ? ' ' : block[i] & 0xFF;
+        }
+        return sum;
+    }
+
+    private static void octal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        Arrays.fill(block, offset, start, (byte) '0');
+        for (int i = 0; i < digits.length(); i++) {
+            block[start + i] = (byte) digits.charAt(i);
+        }
+        block[offset + length - 1] = 0;
+    }
+
+    /**
+     * Reads an octal field, or a base-256 one (high bit of the first byte set) as written by GNU tar for large values
+     */
+    private static long number(byte[] block, int offset, int length) {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7F;
+            for (int i = 1; i < length; i++) {
+                value = value << 8 | (block[offset + i] & 0xFF);
+            }
+            return value;
+        }
+        int i = offset;
+        int end = offset + length;
+        while (i < end && block[i] == ' ') {
+            i++;
+        }
+        long value = 0;
+        for (; i < end && block[i] >= '0' && block[i] <= '7'; i++) {
+            value = value * 8 + (block[i] - '0');
+        }
+        return value;
+    }
+
+    private static String string(byte[] block, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) {
+            end++;
+        }
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
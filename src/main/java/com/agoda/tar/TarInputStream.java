@@ -0,0 +1,157 @@
+package com.agoda.tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.agoda.service.ArchiveService.logger;
+import static com.agoda.tar.TarHeader.BLOCK_SIZE;
+
+/**
+ * Reads the entries of a tar stream in order, like {@link java.util.zip.ZipInputStream}: {@link #getNextEntry()}
+ * moves to the next file or directory and the read methods return its data.
+ * Pax and GNU long name headers are applied to the entry they precede, links and special files are skipped.
+ * Wrap the stream in a {@link GzipMembersInputStream} to read a .tar.gz.
+ */
+public class TarInputStream extends InputStream {
+
+    private final InputStream in;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private TarHeader entry;
+    private long remaining;
+    private int padding;
+    private boolean ended;
+
+    /**
+     * @param in the tar stream, closed with this stream
+     */
+    public TarInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Skips the rest of the current entry and reads the header of the next one
+     *
+     * @return the next entry, null at the end of the archive
+     * @throws IOException if the stream is truncated or a header is corrupt
+     */
+    public TarHeader getNextEntry() throws IOException {
+        skipEntry();
+        String longName = null;
+        long longSize = -1;
+        while (!ended) {
+            if (!readBlock()) {
+                ended = true;
+                break;
+            }
+            if (TarHeader.isEnd(block)) {
+                ended = true;
+                break;
+            }
+            byte type = TarHeader.type(block);
+            long size = TarHeader.dataSize(block);
+            if (type == TarHeader.TYPE_PAX) {
+                byte[] data = readData(size);
+                String path = TarHeader.paxValue(data, "path");
+                String paxSize = TarHeader.paxValue(data, "size");
+                longName = path != null ? path : longName;
+                longSize = paxSize != null ? Long.parseLong(paxSize) : longSize;
+            } else if (type == TarHeader.TYPE_GNU_LONG_NAME) {
+                byte[] data = readData(size);
+                int end = 0;
+                while (end < data.length && data[end] != 0) {
+                    end++;
+                }
+                longName = new String(data, 0, end, StandardCharsets.UTF_8);
+            } else if (type == TarHeader.TYPE_GLOBAL_PAX) {
+                readData(size);
+            } else if (type == TarHeader.TYPE_FILE || type == TarHeader.TYPE_OLD_FILE
+                    || type == TarHeader.TYPE_DIRECTORY) {
+                entry = TarHeader.decode(block, longName, longSize);
+                remaining = entry.getSize();
+                padding = TarHeader.padding(remaining);
+                return entry;
+            } else {
+                logger.debug("Skipping tar entry of type `{}`", (char) type);
+                remaining = longSize >= 0 ? longSize : size;
+                padding = TarHeader.padding(remaining);
+                skipEntry();
+                longName = null;
+                longSize = -1;
+            }
+        }
+        entry = null;
+        return null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (entry == null || remaining == 0) {
+            return -1;
+        }
+        int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read < 0) {
+            throw new EOFException("Unexpected end of tar entry `" + entry.getName() + "`");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void skipEntry() throws IOException {
+        long skip = remaining + padding;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Unexpected end of tar stream");
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+        remaining = 0;
+        padding = 0;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - BLOCK_SIZE) {
+            throw new IOException("Tar extended header of " + size + " bytes");
+        }
+        byte[] data = in.readNBytes((int) size);
+        if (data.length < size) {
+            throw new EOFException("Unexpected end of tar stream");
+        }
+        remaining = 0;
+        padding = TarHeader.padding(size);
+        skipEntry();
+        return data;
+    }
+
+    /**
+     * Reads the next header block, the stream may end there without the end of archive blocks
+     *
+     * @return whether a block was read
+     */
+    private boolean readBlock() throws IOException {
+        int read = in.readNBytes(block, 0, BLOCK_SIZE);
+        if (read == 0) {
+            return false;
+        }
+        if (read < BLOCK_SIZE) {
+            throw new EOFException("Unexpected end of tar stream");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,166 @@
+package com.agoda.utils;
+
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.ChunkPlan;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Packs archive entries into as few chunks as possible without exceeding the chunk size, and spreads the bytes
+ * evenly over those chunks so the parallel writers finish together.
+ */
+public class BinPacker {
+
+    private static final Comparator<ChunkEntry> BY_PATH =
+            Comparator.comparing(ChunkEntry::getPath).thenComparingLong(ChunkEntry::getOffset);
+
+    /**
+     * Packs the entries with first-fit decreasing, which gives the number of chunks, then repacks them into that many
+     * chunks with longest processing time first (each entry to the least loaded chunk) to balance the bytes per chunk.
+     * The balanced packing is kept when every entry fits, the first-fit packing otherwise. Entries keep their given
+     * order inside a chunk, the chunks are compact {@link ChunkPlan}s.
+     *
+     * @param entries  entries to pack, an entry longer than the capacity gets a chunk of its own
+     * @param capacity maximum bytes per chunk, 0 or less for a single chunk
+     * @return the chunks
+     */
+    public static List<List<ChunkEntry>> pack(List<ChunkEntry> entries, long capacity) {
+        List<List<ChunkEntry>> chunks = new ArrayList<>();
+        if (entries.isEmpty()) {
+            return chunks;
+        }
+        if (capacity <= 0) {
+            chunks.add(new ChunkPlan(entries));
+            return chunks;
+        }
+        long[] lengths = new long[entries.size()];
+        List<Integer> order = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            lengths[i] = entries instanceof ChunkPlan
+                    ? ((ChunkPlan) entries).getLength(i) : entries.get(i).getLength();
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong((Integer i) -> lengths[i]).reversed().thenComparing(i -> i));
+
+        int[] firstFit = firstFitDecreasing(lengths, order, capacity);
+        int count = 0;
+        for (int bin : firstFit) {
+            count = Math.max(count, bin + 1);
+        }
+        int[] balanced = longestFirst(lengths, order, capacity, count);
+        int[] bins = balanced != null ? balanced : firstFit;
+
+        for (int i = 0; i < count; i++) {
+            chunks.add(new ChunkPlan());
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            chunks.get(bins[i]).add(entries.get(i));
+        }
+        chunks.removeIf(List::isEmpty);
+        return chunks;
+    }
+
+    private static int[] firstFitDecreasing(long[] lengths, List<Integer> order, long capacity) {
+        int[] bins = new int[lengths.length];
+        List<Long> loads = new ArrayList<>();
+        for (int index : order) {
+            long length = lengths[index];
+            int bin = 0;
+            while (bin < loads.size() && loads.get(bin) + length > capacity) {
+                bin++;
+            }
+            if (bin == loads.size()) {
+                loads.add(0L);
+            }
+            loads.set(bin, loads.get(bin) + length);
+            bins[index] = bin;
+        }
+        return bins;
+    }
+
+    private static int[] longestFirst(long[] lengths, List<Integer> order, long capacity, int count) {
+        int[] bins = new int[lengths.length];
+        long[] loads = new long[count];
+        for (int index : order) {
+            int bin = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[bin]) {
+                    bin = i;
+                }
+            }
+            long length = lengths[index];
+            if (loads[bin] + length > capacity) {
+                return null;
+            }
+            loads[bin] += length;
+            bins[index] = bin;
+        }
+        return bins;
+    }
+
+    /**
+     * Packs entries as they arrive, a batch at a time: once the entries collected fill the given number of chunks
+     * they are sorted by path and packed with {@link BinPacker#pack(List, long)}, and the chunks are handed on at
+     * once, so they can be compressed while the walk goes on. Every batch gets the balanced packing, and since it is
+     * sorted first the chunks of a batch do not depend on the order the walking threads added its entries in. Which
+     * entries share a batch still follows the order of the walk, the entries left when the walk ends are packed by
+     * {@link #finish()}.
+     * Thread safe, the entries may be added from several threads.
+     */
+    public static class Streaming {
+
+        private final long capacity;
+        private final long batchSize;
+        private final Consumer<List<ChunkEntry>> sealed;
+        private ChunkPlan batch = new ChunkPlan();
+        private long load;
+
+        /**
+         * @param capacity maximum bytes per chunk, 0 or less to keep everything in a single chunk
+         * @param chunks   number of chunks filled by a batch
+         * @param sealed   receives every chunk once it is sealed
+         */
+        public Streaming(long capacity, int chunks, Consumer<List<ChunkEntry>> sealed) {
+            this.capacity = capacity;
+            this.batchSize = capacity * Math.max(1, chunks);
+            this.sealed = sealed;
+        }
+
+        /**
+         * @param entry entry to pack, see {@link BinPacker#pack(List, long)}
+         */
+        public void add(ChunkEntry entry) {
+            ChunkPlan full = null;
+            synchronized (this) {
+                batch.add(entry);
+                load += entry.getLength();
+                if (capacity > 0 && load >= batchSize) {
+                    full = batch;
+                    batch = new ChunkPlan();
+                    load = 0;
+                }
+            }
+            if (full != null) {
+                seal(full).forEach(sealed);
+            }
+        }
+
+        /**
+         * @return the entries still open packed into chunks
+         */
+        public synchronized List<List<ChunkEntry>> finish() {
+            ChunkPlan rest = batch;
+            batch = new ChunkPlan();
+            load = 0;
+            return seal(rest);
+        }
+
+        private List<List<ChunkEntry>> seal(ChunkPlan entries) {
+            entries.sort(BY_PATH);
+            return pack(entries, capacity);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.agoda.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles large buffers so the copy and deflate loops do not allocate per call.
+ * Buffers only used within a single call come from a per-thread buffer, buffers handed over between threads are
+ * taken from and returned to a bounded pool.
+ */
+public class BufferPool {
+
+    public static final int IO_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> IO_BUFFER = ThreadLocal.withInitial(() -> new byte[IO_BUFFER_SIZE]);
+
+    private final int bufferSize;
+    private final Queue<byte[]> free;
+
+    /**
+     * @param bufferSize size of the pooled buffers
+     * @param capacity   maximum number of idle buffers kept
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * The buffer is shared by every caller on the thread, it must not be held across calls
+     *
+     * @return the copy buffer of the current thread
+     */
+    public static byte[] ioBuffer() {
+        return IO_BUFFER.get();
+    }
+
+    /**
+     * @return an idle buffer of the pool, or a new one if there is none
+     */
+    public byte[] acquire() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool, buffers of another size or beyond the capacity are left to the GC
+     *
+     * @param buffer buffer taken by {@link #acquire()}
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
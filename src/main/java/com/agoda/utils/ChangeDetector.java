@@ -0,0 +1,94 @@
+package com.agoda.utils;
+
+import com.agoda.model.Manifest;
+import com.agoda.model.ManifestEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compares the visited files against the manifest of a previous archive so only new or changed files get archived.
+ * A file is unchanged if its size and modification time match the manifest, or if only the modification time differs
+ * and the content still has the same CRC-32. Files of the manifest that are not visited anymore are deleted.
+ */
+public class ChangeDetector implements FileUtils.FileFilter {
+
+    private final Path source;
+    private final Map<String, ManifestEntry> base = new HashMap<>();
+    private final Set<String> visited = ConcurrentHashMap.newKeySet();
+    private final Map<String, ManifestEntry> unchanged = new ConcurrentHashMap<>();
+
+    /**
+     * @param source directory being archived
+     * @param base   manifest of the previous archive
+     */
+    public ChangeDetector(Path source, Manifest base) {
+        this.source = source;
+        for (ManifestEntry entry : base.getEntries()) {
+            if (entry.getState() != ManifestEntry.State.DELETED) {
+                this.base.put(entry.getName(), entry);
+            }
+        }
+    }
+
+    @Override
+    public boolean accept(Path file, BasicFileAttributes attrs) throws IOException {
+        String name = source.relativize(file).toString();
+        visited.add(name);
+        ManifestEntry previous = base.get(name);
+        if (attrs.isDirectory() || previous == null || previous.isDirectory() || previous.getSize() != attrs.size()) {
+            return true;
+        }
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (previous.getLastModified() != lastModified && previous.getCrc() != crcOf(file)) {
+            return true;
+        }
+        unchanged.put(name, new ManifestEntry(name, false, previous.getSize(), lastModified, previous.getCrc(),
+                ManifestEntry.State.UNCHANGED, Collections.emptyList()));
+        return false;
+    }
+
+    /**
+     * @return entries of the files left out as unchanged
+     */
+    public List<ManifestEntry> getUnchanged() {
+        return new ArrayList<>(unchanged.values());
+    }
+
+    /**
+     * @return tombstones of the files and directories of the base manifest which were not visited
+     */
+    public List<ManifestEntry> getDeleted() {
+        List<ManifestEntry> deleted = new ArrayList<>();
+        for (ManifestEntry entry : base.values()) {
+            if (!visited.contains(entry.getName())) {
+                deleted.add(new ManifestEntry(entry.getName(), entry.isDirectory(), 0, -1, 0,
+                        ManifestEntry.State.DELETED, Collections.emptyList()));
+            }
+        }
+        return deleted;
+    }
+
+    private static long crcOf(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            byte[] buffer = BufferPool.ioBuffer();
+            int len;
+            while ((len = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,155 @@
+package com.agoda.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Cuts files into variable sized chunks at content defined boundaries using a Gear rolling hash (as in FastCDC).
+ * A boundary only depends on the last 64 bytes before it, so an insertion or deletion only changes the chunks around
+ * it and identical content produces identical chunks wherever it appears.
+ */
+public class ContentDefinedChunker {
+
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // 16 bits of the hash must be zero, so chunks average 64K past the minimum size
+    private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed seed, boundaries must not change between runs
+        Random random = new Random(0x5EED_CDC0L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Reads the file once and cuts it into chunks, hashing every chunk on the way
+     *
+     * @param file path of the file
+     * @return the chunks of the file, in order
+     * @throws IOException if the file can not be read
+     */
+    public static ChunkedFile chunk(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        CRC32 crc = new CRC32();
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = BufferPool.ioBuffer();
+        long chunkStart = 0;
+        long position = 0;
+        int chunkLength = 0;
+        long hash = 0;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                int segmentStart = 0;
+                for (int i = 0; i < read; i++) {
+                    chunkLength++;
+                    if (chunkLength < MIN_CHUNK_SIZE) {
+                        continue;
+                    }
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    if ((hash & BOUNDARY_MASK) == 0 || chunkLength >= MAX_CHUNK_SIZE) {
+                        digest.update(buffer, segmentStart, i + 1 - segmentStart);
+                        chunks.add(new Chunk(chunkStart, chunkLength, digest.digest()));
+                        segmentStart = i + 1;
+                        chunkStart += chunkLength;
+                        chunkLength = 0;
+                        hash = 0;
+                    }
+                }
+                digest.update(buffer, segmentStart, read - segmentStart);
+                position += read;
+            }
+        }
+        if (chunkLength > 0) {
+            chunks.add(new Chunk(chunkStart, chunkLength, digest.digest()));
+        }
+        return new ChunkedFile(position, crc.getValue(), chunks);
+    }
+
+    /**
+     * @param hash digest of a chunk
+     * @return hex representation of the digest
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Size, CRC-32 and chunks of a file
+     */
+    public static class ChunkedFile {
+        private final long size;
+        private final long crc;
+        private final List<Chunk> chunks;
+
+        ChunkedFile(long size, long crc, List<Chunk> chunks) {
+            this.size = size;
+            this.crc = crc;
+            this.chunks = chunks;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public List<Chunk> getChunks() {
+            return chunks;
+        }
+    }
+
+    /**
+     * Byte range of a file with the SHA-256 digest of its content
+     */
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final String hash;
+
+        Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = toHex(hash);
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+}
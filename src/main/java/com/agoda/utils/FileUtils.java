@@ -1,9 +1,11 @@
 package com.agoda.utils;
 
 
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -12,6 +14,12 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.agoda.constants.Constants.FILE_PART_SUFFIX;
 import static com.agoda.service.ArchiveService.logger;
@@ -21,6 +29,7 @@ import static com.agoda.service.ArchiveService.logger;
  */
 public class FileUtils {
 
+    private static final Pattern PART_PATTERN = Pattern.compile("(.*)" + FILE_PART_SUFFIX + "([0-9]+)(\\.[^.]*)?");
 
     /**
      * Adds part suffix to the given filename
@@ -48,17 +57,25 @@ public class FileUtils {
      */
     public static Path findBaseNameFromPart(Path path) {
         String fileName = path.getFileName().toString();
-        if (fileName.matches(".*part.[0-9]+.*")) {
-            String baseName = fileName.substring(0, fileName.indexOf(FILE_PART_SUFFIX));
-            String extension = "";
-            if (fileName.contains(".")) {
-                extension = fileName.substring(fileName.lastIndexOf("."));
-            }
-            return path.getParent().resolve(baseName + extension);
+        Matcher matcher = PART_PATTERN.matcher(fileName);
+        if (matcher.matches()) {
+            String extension = matcher.group(3) == null ? "" : matcher.group(3);
+            return path.resolveSibling(matcher.group(1) + extension);
         }
         return path;
     }
 
+    /**
+     * Finds the split part number of the given file
+     *
+     * @param path filepath
+     * @return part number or -1 if its not a splitted file
+     */
+    public static int findPartNumber(Path path) {
+        Matcher matcher = PART_PATTERN.matcher(path.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(2)) : -1;
+    }
+
     /**
      * Checks given path is valid or not
      *
@@ -69,6 +86,23 @@ public class FileUtils {
         return Files.isDirectory(path);
     }
 
+    /**
+     * Resolves a name read from an archive against the destination, refusing names that lead out of it such as
+     * `../file` or absolute paths
+     *
+     * @param root destination, absolute and normalized
+     * @param name path of the entry inside the archive
+     * @return path of the entry inside the destination
+     * @throws IOException if the entry is outside of the destination
+     */
+    public static Path resolveWithin(Path root, String name) throws IOException {
+        Path target = root.resolve(name).normalize();
+        if (!target.startsWith(root)) {
+            throw new IOException("Entry `" + name + "` is outside of the destination");
+        }
+        return target;
+    }
+
     /**
      * Deletes a given folder
      *
@@ -92,136 +126,207 @@ public class FileUtils {
     }
 
 
+    /**
+     * Decides whether a visited file or directory is archived
+     */
+    @FunctionalInterface
+    public interface FileFilter {
+        boolean accept(Path file, BasicFileAttributes attrs) throws IOException;
+    }
+
     /**
      * Provides file and folder operations and makes sure each chunk output generated does not exceed given maxFilesize.
+     * Files bigger than maxFileSize are not copied anywhere, they are planned as slices which are read straight from
+     * the source file while writing the archive.
+     * The entries are packed into chunks while walking, see {@link BinPacker.Streaming}. Chunks sealed during the
+     * walk are handed to the given consumer at once, so they can be compressed before the walk ends; the entries left
+     * open are packed by {@link #getChunks()}.
+     * The visitor is thread safe, so it can be driven by a {@link ParallelFileWalker}.
      */
     public static class FileVisitor extends SimpleFileVisitor<Path> {
 
-        private final List<List<Path>> chunks = new ArrayList<>();
+        // chunks packed together while walking, see BinPacker.Streaming
+        private static final int BATCH_CHUNKS = 16;
 
-        private List<Path> currentChunk = new ArrayList<>();
+        private final List<List<ChunkEntry>> sealed = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger entries = new AtomicInteger();
+        private final LongAdder bytes = new LongAdder();
+        private Set<String> excluded = Collections.emptySet();
+        private JobMetrics metrics;
+        private JobMetrics.Timing walk;
+        private final BinPacker.Streaming packer;
 
-        private long currentChunkSize = 0;
         private final long maxFileSize;
+        private boolean split = true;
 
-        private final Path destination;
         private final Path source;
+        private final FileFilter filter;
+
+
+        public FileVisitor(Path source, long maxFileSize) {
+            this(source, maxFileSize, (file, attrs) -> true);
+        }
+
+        /**
+         * @param source      directory to walk
+         * @param maxFileSize threshold for chunks
+         * @param filter      decides which files and directories are added to the chunks
+         */
+        public FileVisitor(Path source, long maxFileSize, FileFilter filter) {
+            this(source, maxFileSize, filter, null);
+        }
 
+        /**
+         * @param source      directory to walk
+         * @param maxFileSize threshold for chunks
+         * @param filter      decides which files and directories are added to the chunks
+         * @param onSealed    receives the chunks sealed during the walk, from the walking threads; null to return
+         *                    them from {@link #getChunks()}
+         */
+        public FileVisitor(Path source, long maxFileSize, FileFilter filter, Consumer<List<ChunkEntry>> onSealed) {
+            this(source, maxFileSize, filter, onSealed, BATCH_CHUNKS);
+        }
 
-        public FileVisitor(Path source, Path destination, long maxFileSize) {
-            this.destination = destination;
+        /**
+         * @param source      directory to walk
+         * @param maxFileSize threshold for chunks
+         * @param filter      decides which files and directories are added to the chunks
+         * @param onSealed    receives the chunks sealed during the walk, from the walking threads; null to return
+         *                    them from {@link #getChunks()}
+         * @param batchChunks number of chunks packed together, 1 to seal every chunk as soon as it is full
+         */
+        public FileVisitor(Path source, long maxFileSize, FileFilter filter, Consumer<List<ChunkEntry>> onSealed,
+                           int batchChunks) {
             this.source = source;
             this.maxFileSize = maxFileSize;
+            this.filter = filter;
+            this.packer = new BinPacker.Streaming(maxFileSize, batchChunks, onSealed != null ? onSealed : sealed::add);
         }
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
 
             super.visitFile(file, attrs);
-            long fileSize = Files.size(file);
-
-            if (maxFileSize > 0 && fileSize + currentChunkSize > maxFileSize) {
-                if (fileSize > maxFileSize) {
-                    List<Path> splitParts = splitFile(file, fileSize, destination);
-                    for (Path part : splitParts) {
-                        visitFile(part, attrs);
-                    }
-                    return FileVisitResult.CONTINUE;
+            if (attrs.isSymbolicLink() && Files.isDirectory(file)) {
+                // the walk does not follow links to directories, they are archived as empty directories
+                return preVisitDirectory(file, Files.readAttributes(file, BasicFileAttributes.class));
+            }
+            if (!filter.accept(file, attrs)) {
+                logger.trace("File `{}` skipped", file);
+                return FileVisitResult.CONTINUE;
+            }
+            long fileSize = attrs.size();
+            long lastModified = attrs.lastModifiedTime().toMillis();
+
+            if (split && maxFileSize > 0 && fileSize > maxFileSize) {
+                JobMetrics.Timing split = metrics == null ? null : metrics.start(Stage.SPLIT);
+                List<ChunkEntry> slices = splitFile(file, fileSize, lastModified);
+                if (split != null) {
+                    split.stop(file.toString(), 1, fileSize);
                 }
-                chunks.add(currentChunk);
-                currentChunk = new ArrayList<>();
-                currentChunkSize = 0;
-            } else {
-                logger.trace("File `{}` added on chunk `{}`", file, chunks.size());
+                slices.forEach(this::add);
+                return FileVisitResult.CONTINUE;
             }
-            addToChunk(file, fileSize);
+            add(ChunkEntry.ofFile(file, source.relativize(file).toString(), fileSize, lastModified));
             return FileVisitResult.CONTINUE;
         }
 
-        private void addToChunk(Path file, long size) {
-            currentChunk.add(file);
-            currentChunkSize += size;
-            logger.trace("File '{}' added on chunk `{}`", file, chunks.size());
-        }
-
         @Override
         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
             if (dir.equals(source))
                 return FileVisitResult.CONTINUE;
 
             super.preVisitDirectory(dir, attrs);
-            addToChunk(dir, 0);
+            if (!filter.accept(dir, attrs)) {
+                return FileVisitResult.CONTINUE;
+            }
+            add(ChunkEntry.ofDirectory(dir, source.relativize(dir).toString()));
             return FileVisitResult.CONTINUE;
         }
 
-        public List<List<Path>> getChunks() {
-            if (currentChunk.size() > 0) {
-                chunks.add(currentChunk);
-                currentChunk = Collections.emptyList();
-            }
-            return chunks;
+        /**
+         * Keeps every file whole instead of splitting the larger ones into slices, for archives whose entries have no
+         * size limit. A file larger than maxFileSize gets a chunk of its own.
+         *
+         * @return this visitor
+         */
+        public FileVisitor keepWhole() {
+            this.split = false;
+            return this;
         }
 
+        /**
+         * Leaves out the entries already archived by an interrupted run
+         *
+         * @param names names of the entries inside the archive
+         * @return this visitor
+         */
+        public FileVisitor exclude(Set<String> names) {
+            this.excluded = names;
+            return this;
+        }
 
-        static void bufferedWrite(InputStream inputStream, OutputStream outputStream, long numBytes) throws IOException {
-            byte[] buffer = new byte[(int) numBytes];
-            int val = inputStream.read(buffer);
-            if (val != -1) {
-                outputStream.write(buffer);
+        /**
+         * Records the walk, from now until {@link #getChunks()}, and the files split into slices. Every entry
+         * listed is added to the planned progress of the job.
+         *
+         * @param metrics metrics of the job
+         * @return this visitor
+         */
+        public FileVisitor metrics(JobMetrics metrics) {
+            this.metrics = metrics;
+            this.walk = metrics.start(Stage.WALK);
+            return this;
+        }
+
+        private void add(ChunkEntry entry) {
+            if (excluded.contains(entry.getName())) {
+                logger.trace("Entry `{}` already archived", entry.getName());
+                return;
+            }
+            entries.incrementAndGet();
+            bytes.add(entry.getLength());
+            if (metrics != null) {
+                metrics.getProgress().plan(1, entry.getLength());
             }
+            packer.add(entry);
         }
 
         /**
-         * Splits a file into multiple chunks such that it does not exceed maxFileSize
+         * Called once the walk is done
          *
-         * @param path    path of the file
-         * @param size    maxFileSize
-         * @param tempDir destination directory
-         * @return list of paths of the chunks
-         * @throws IOException if operation fails
+         * @return the chunks not handed to the consumer yet, see {@link BinPacker.Streaming#finish()}
          */
-        private List<Path> splitFile(Path path, long size, Path tempDir) throws IOException {
-            List<Path> fileParts = new ArrayList<>();
-            long parts = size / maxFileSize;
-            long sizePerPart = maxFileSize;
-            long remainingSize = size % maxFileSize;
-            int bufferSize = 1024;
-
-            try (InputStream inputStream = Files.newInputStream(path)) {
-                for (int i = 0; i < parts; i++) {
-                    Path part = tempDir.resolve(source.relativize(
-                            resolvePartFilePath(path, "" + i)).toString());
-                    Files.createDirectories(part.getParent());
-                    OutputStream outputStream = Files.newOutputStream(part);
-                    if (sizePerPart > bufferSize) {
-                        long readsRequired = sizePerPart / bufferSize;
-                        long remainingBufferToRead = sizePerPart % bufferSize;
-                        for (int j = 0; j < readsRequired; j++) {
-                            bufferedWrite(inputStream, outputStream, bufferSize);
-                        }
-                        if (remainingBufferToRead > 0) {
-                            bufferedWrite(inputStream, outputStream, remainingBufferToRead);
-                        }
-                    } else {
-                        bufferedWrite(inputStream, outputStream, sizePerPart);
-                    }
-                    fileParts.add(part);
-                    outputStream.close();
-                }
-                if (remainingSize > 0) {
-                    Path part = tempDir.resolve(source.relativize(
-                            resolvePartFilePath(path, "" + parts)).toString()
-                    );
-                    try (OutputStream bw = Files.newOutputStream(part)) {
-                        bufferedWrite(inputStream, bw, remainingSize);
-                        fileParts.add(part);
-                    }
-                }
-            } catch (Exception e) {
-                logger.error(e.getMessage());
-                throw e;
+        public List<List<ChunkEntry>> getChunks() {
+            List<List<ChunkEntry>> chunks = new ArrayList<>(sealed);
+            chunks.addAll(packer.finish());
+            logger.debug("Packed {} entries, {} chunks left after the walk", entries.get(), chunks.size());
+            if (walk != null) {
+                walk.stop(source.toString(), entries.get(), bytes.sum());
+                metrics.getProgress().planComplete();
+            }
+            return chunks;
+        }
+
+        /**
+         * Splits a file into slices such that none of them exceed maxFileSize.
+         * Nothing is written to disk, every slice names the byte range of the file it covers.
+         *
+         * @param path path of the file
+         * @param size size of the file
+         * @param lastModified last modified time of the file
+         * @return slices of the file, in order
+         */
+        private List<ChunkEntry> splitFile(Path path, long size, long lastModified) {
+            List<ChunkEntry> slices = new ArrayList<>();
+            long parts = (size + maxFileSize - 1) / maxFileSize;
+            for (long i = 0; i < parts; i++) {
+                long offset = i * maxFileSize;
+                String name = source.relativize(resolvePartFilePath(path, "" + i)).toString();
+                slices.add(ChunkEntry.ofSlice(path, name, offset, Math.min(maxFileSize, size - offset),
+                        lastModified));
             }
-            return fileParts;
+            return slices;
         }
 
     }
@@ -0,0 +1,196 @@
+package com.agoda.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static com.agoda.service.ArchiveService.logger;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only checkpoint file of a long running job, recording the work already done so an interrupted job can be
+ * resumed. Every record is framed with its length and CRC-32; a record torn by a crash is dropped when the journal is
+ * reopened.
+ * Records are committed in groups: the files they describe are forced to disk first, then the records, so a committed
+ * record never points at data lost by the crash. Thread safe.
+ */
+public class Journal implements Closeable {
+
+    private static final int FRAME_SIZE = Integer.BYTES * 2;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int groupSize;
+    private final List<byte[]> recovered;
+    private final List<byte[]> pending = new ArrayList<>();
+    private final Set<Path> written = new LinkedHashSet<>();
+
+    private Journal(Path path, FileChannel channel, int groupSize, List<byte[]> recovered) {
+        this.path = path;
+        this.channel = channel;
+        this.groupSize = Math.max(1, groupSize);
+        this.recovered = recovered;
+    }
+
+    /**
+     * Opens the journal at the given path
+     *
+     * @param path      journal file
+     * @param resume    whether the records of an earlier run are kept, otherwise the journal starts empty
+     * @param groupSize number of records committed together
+     * @return the journal
+     * @throws IOException if the journal can not be read or created
+     */
+    public static Journal open(Path path, boolean resume, int groupSize) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(path);
+        }
+        FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+        try {
+            List<byte[]> records = new ArrayList<>();
+            long valid = recover(channel, records);
+            if (valid < channel.size()) {
+                logger.warn("Dropped {} bytes of a torn record from `{}`", channel.size() - valid, path);
+                channel.truncate(valid);
+            }
+            channel.position(valid);
+            if (!records.isEmpty()) {
+                logger.info("Resuming from {} records of `{}`", records.size(), path);
+            }
+            return new Journal(path, channel, groupSize, records);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return records committed by earlier runs, in order
+     */
+    public List<byte[]> getRecovered() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * Adds a record, committed with its group
+     *
+     * @param record  the record
+     * @param written file holding the work the record describes, forced to disk before the record; null if none
+     * @throws IOException if the group can not be committed
+     */
+    public synchronized void append(byte[] record, Path written) throws IOException {
+        pending.add(record);
+        if (written != null) {
+            this.written.add(written);
+        }
+        if (pending.size() >= groupSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the pending records
+     *
+     * @throws IOException if the records or the files they describe can not be forced to disk
+     */
+    public synchronized void commit() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (Path file : written) {
+            try (FileChannel data = FileChannel.open(file, WRITE)) {
+                data.force(false);
+            }
+        }
+        for (byte[] record : pending) {
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer buffer = ByteBuffer.allocate(FRAME_SIZE + record.length);
+            buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        channel.force(false);
+        pending.clear();
+        written.clear();
+    }
+
+    /**
+     * Removes the journal once the job is complete
+     *
+     * @throws IOException if the journal can not be deleted
+     */
+    public synchronized void delete() throws IOException {
+        pending.clear();
+        written.clear();
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Commits the pending records and closes the journal, which is kept for a later resume
+     *
+     * @throws IOException if the records can not be committed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static long recover(FileChannel channel, List<byte[]> records) throws IOException {
+        long position = 0;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        while (true) {
+            frame.clear();
+            if (readFully(channel, frame, position) < FRAME_SIZE) {
+                return position;
+            }
+            frame.flip();
+            int length = frame.getInt();
+            int expected = frame.getInt();
+            if (length < 0 || position + FRAME_SIZE + length > channel.size()) {
+                return position;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(channel, record, position + FRAME_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(record.array());
+            if ((int) crc.getValue() != expected) {
+                return position;
+            }
+            records.add(record.array());
+            position += FRAME_SIZE + length;
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
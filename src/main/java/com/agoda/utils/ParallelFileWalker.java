@@ -0,0 +1,95 @@
+package com.agoda.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a file tree like {@link Files#walkFileTree(Path, FileVisitor)} but lists the subdirectories concurrently on a
+ * fork-join pool. Every file is reported with the attributes read while listing its directory, so its size needs no
+ * further call. The visitor is called from several threads at once and must be thread safe; a directory is always
+ * pre-visited before its entries and post-visited after all of them. Symbolic links are not followed into
+ * directories, links to files are reported with the attributes of their target.
+ * A visitor waiting on work of the same pool must block through {@link ForkJoinPool#managedBlock}, see
+ * {@link Utils#acquire(java.util.concurrent.Semaphore)}.
+ */
+public class ParallelFileWalker {
+
+    /**
+     * Walks the tree of the given directory
+     *
+     * @param start   directory to walk
+     * @param visitor thread safe visitor receiving the directories and files
+     * @param pool    pool listing the directories, usually the workers of the run
+     * @throws IOException if a directory can not be listed or the visitor fails
+     */
+    public static void walk(Path start, FileVisitor<Path> visitor, ForkJoinPool pool) throws IOException {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class);
+            pool.invoke(new DirectoryTask(start, attrs, visitor));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final BasicFileAttributes attrs;
+        private final FileVisitor<Path> visitor;
+
+        private DirectoryTask(Path directory, BasicFileAttributes attrs, FileVisitor<Path> visitor) {
+            this.directory = directory;
+            this.attrs = attrs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (visitor.preVisitDirectory(directory, attrs) != FileVisitResult.CONTINUE) {
+                    return;
+                }
+                List<DirectoryTask> subdirectories = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        if (entryAttrs.isDirectory()) {
+                            subdirectories.add(new DirectoryTask(entry, entryAttrs, visitor));
+                        } else {
+                            visitor.visitFile(entry, target(entry, entryAttrs));
+                        }
+                    }
+                }
+                invokeAll(subdirectories);
+                visitor.postVisitDirectory(directory, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static BasicFileAttributes target(Path link, BasicFileAttributes attrs) {
+            if (!attrs.isSymbolicLink()) {
+                return attrs;
+            }
+            try {
+                BasicFileAttributes target = Files.readAttributes(link, BasicFileAttributes.class);
+                return target.isRegularFile() ? target : attrs;
+            } catch (IOException e) {
+                return attrs;
+            }
+        }
+    }
+}
@@ -1,7 +1,98 @@
 package com.agoda.utils;
 
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static com.agoda.service.ArchiveService.logger;
+
 public class Utils {
     public static long getMaxMemory() {
         return Runtime.getRuntime().maxMemory() / (1024L * 1024L);
     }
+
+    public static int getParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task. The build targets a JDK without virtual threads, so the
+     * factory is looked up at runtime.
+     *
+     * @return executor running every task on its own virtual thread, null when the JVM has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("Using virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Takes a permit of the semaphore. On a fork-join worker the pool is told the thread blocks, so it can start a
+     * spare thread and the tasks which return the permit still run on it.
+     *
+     * @param permits semaphore to take a permit of
+     * @throws UncheckedIOException if interrupted while waiting
+     */
+    public static void acquire(Semaphore permits) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean acquired;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    permits.acquire();
+                    acquired = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return acquired || (acquired = permits.tryAcquire());
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for a permit"));
+        }
+    }
+
+    /**
+     * Cancels the tasks of a stage not started yet, the pools are shared by the jobs and outlive the stage
+     *
+     * @param futures tasks of the stage
+     */
+    public static void cancel(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * @param value text to embed in a JSON document
+     * @return the text as a JSON string, quoted and escaped
+     */
+    public static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
 }
@@ -0,0 +1,764 @@
+package com.agoda.zip;
+
+import com.agoda.constants.CompressionPolicy;
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.CrcUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.agoda.service.ArchiveService.logger;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes a single zip archive whose entries are deflated in parallel.
+ * Every file is cut into blocks that are deflated independently on the given executor, pigz style: each block is
+ * primed with the preceding 32K of input as dictionary and ends on a sync flush, so the compressed blocks can be
+ * concatenated in order into one valid deflate stream. Local and central headers are written by hand, with ZIP64
+ * records when sizes or offsets need them.
+ * With a {@link CompressionPolicy} the level of every entry is picked from a trial deflate of its first bytes, and
+ * incompressible entries are stored, the blocks read for their crc are written as they are.
+ * Written to a stream the archive is never seeked: the crc and sizes of every entry follow its data in a data
+ * descriptor, and incompressible entries are deflated at level 0 since streaming readers can not find the end of a
+ * stored entry.
+ */
+public class ParallelZipWriter implements Closeable {
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int VERSION = 20;
+    static final int VERSION_ZIP64 = 45;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    // deflate may expand incompressible input slightly, so entries approaching 4GB already get ZIP64 sizes
+    static final long ZIP64_THRESHOLD = 0xF0000000L;
+    // worst case deflate output of a block, incompressible input grows by a few bytes per 16K stored block
+    static final int OUTPUT_SIZE = BLOCK_SIZE + (BLOCK_SIZE >> 8) + 64;
+    // bytes of an entry deflated in trial to pick its level, smaller entries get the level of the policy
+    static final int SAMPLE_SIZE = 64 * 1024;
+    static final int MIN_SAMPLE_SIZE = 4 * 1024;
+
+    // a single deflater per pool thread, its level is changed for every use
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final WritableByteChannel channel;
+    // null when writing to a stream
+    private final FileChannel file;
+    private final ExecutorService readers;
+    private final ExecutorService workers;
+    private final CompressionScheduler scheduler;
+    private final int window;
+    private final int level;
+    private final CompressionPolicy policy;
+    private final boolean memoryMapped;
+    private final int dosTime;
+    private final BufferPool inputs;
+    private final BufferPool outputs;
+    private final JobMetrics metrics;
+    private final List<ZipRecord> records = new ArrayList<>();
+    private long position;
+
+    /**
+     * @param zipFile     path of the archive to create
+     * @param executor    pool the blocks are deflated on
+     * @param parallelism number of workers of the pool, bounds the blocks held in memory
+     * @throws IOException if the archive can not be created
+     */
+    public ParallelZipWriter(Path zipFile, ExecutorService executor, int parallelism) throws IOException {
+        this(zipFile, executor, parallelism, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param zipFile     path of the archive to create
+     * @param executor    pool the blocks are deflated on
+     * @param parallelism number of workers of the pool, bounds the blocks held in memory
+     * @param level       compression level of every entry, {@link Deflater#NO_COMPRESSION} to store them
+     * @throws IOException if the archive can not be created
+     */
+    public ParallelZipWriter(Path zipFile, ExecutorService executor, int parallelism, int level) throws IOException {
+        this(FileChannel.open(zipFile, CREATE, TRUNCATE_EXISTING, WRITE), executor, executor, null, parallelism * 2,
+                level, null, false, new JobMetrics());
+    }
+
+    /**
+     * Reads the sources on the readers of the scheduler, deflates on its workers and keeps the bytes in flight within
+     * its budget
+     *
+     * @param zipFile   path of the archive to create
+     * @param scheduler pools and in-flight budget of the run
+     * @param options   policy choosing the level of every entry and how the sources are read
+     * @throws IOException if the archive can not be created
+     */
+    public ParallelZipWriter(Path zipFile, CompressionScheduler scheduler, CompressionOptions options)
+            throws IOException {
+        this(FileChannel.open(zipFile, CREATE, TRUNCATE_EXISTING, WRITE), scheduler, options);
+    }
+
+    /**
+     * Writes the archive to a stream, see {@link #ParallelZipWriter(Path, CompressionScheduler, CompressionOptions)}.
+     * The stream is left open when the archive is closed.
+     *
+     * @param outputStream stream the archive is written to
+     * @param scheduler    pools and in-flight budget of the run
+     * @param options      policy choosing the level of every entry and how the sources are read
+     */
+    public ParallelZipWriter(OutputStream outputStream, CompressionScheduler scheduler, CompressionOptions options) {
+        this(Channels.newChannel(outputStream), scheduler, options);
+    }
+
+    private ParallelZipWriter(WritableByteChannel channel, CompressionScheduler scheduler,
+                              CompressionOptions options) {
+        this(channel, scheduler.getReaders(), scheduler.getWorkers(), scheduler, scheduler.getReadAhead(),
+                options.getPolicy().getLevel(), options.getPolicy(), options.isMemoryMapped(),
+                scheduler.getMetrics());
+    }
+
+    private ParallelZipWriter(WritableByteChannel channel, ExecutorService readers, ExecutorService workers,
+                              CompressionScheduler scheduler, int window, int level, CompressionPolicy policy,
+                              boolean memoryMapped, JobMetrics metrics) {
+        this.channel = channel;
+        this.file = channel instanceof FileChannel ? (FileChannel) channel : null;
+        this.readers = readers;
+        this.workers = workers;
+        this.scheduler = scheduler;
+        this.window = Math.max(2, window);
+        this.inputs = scheduler != null ? scheduler.getBuffers(DICTIONARY_SIZE + BLOCK_SIZE)
+                : new BufferPool(DICTIONARY_SIZE + BLOCK_SIZE, window);
+        this.outputs = scheduler != null ? scheduler.getBuffers(OUTPUT_SIZE) : new BufferPool(OUTPUT_SIZE, window);
+        this.level = level;
+        this.policy = policy;
+        this.memoryMapped = memoryMapped;
+        this.metrics = metrics;
+        this.dosTime = toDosTime(LocalDateTime.now());
+    }
+
+    /**
+     * Writes the given entries in order. Blocks of upcoming entries are read and deflated while earlier ones are
+     * written, so small files keep the whole pool busy as well. With a scheduler a block is only read once its bytes
+     * fit the in-flight budget, and the budget is returned when the block is written.
+     *
+     * @param entries entries of the files, file slices and folders
+     * @throws IOException if reading a source or writing the archive fails
+     */
+    public void write(List<ChunkEntry> entries) throws IOException {
+        Iterator<Block> blocks = new Blocks(entries);
+        // blocks submitted and not written yet, in order, with their futures
+        Deque<Block> submitted = new ArrayDeque<>();
+        Deque<Future<DeflatedBlock>> pending = new ArrayDeque<>();
+        Block next = blocks.hasNext() ? blocks.next() : null;
+        CompletableFuture<Integer> entryLevel = null;
+        ZipRecord record = null;
+        long crc = 0;
+        long compressedSize = 0;
+        try {
+            while (next != null || !submitted.isEmpty()) {
+                while (next != null && pending.size() < window && reserve(next, pending.isEmpty())) {
+                    if (next.first) {
+                        entryLevel = chooseLevel(next.entry);
+                    }
+                    pending.add(submit(next, entryLevel));
+                    submitted.add(next);
+                    metrics.getBlocks().add(1);
+                    next = blocks.hasNext() ? blocks.next() : null;
+                }
+                Block block = submitted.peek();
+                DeflatedBlock deflated = await(pending.poll());
+                metrics.getBlocks().add(-1);
+                JobMetrics.Timing writing = metrics.start(Stage.WRITE);
+                long start = position;
+                if (block.first) {
+                    record = beginEntry(block.entry, deflated.stored ? 0 : Deflater.DEFLATED);
+                    crc = 0;
+                    compressedSize = 0;
+                }
+                if (deflated.stored) {
+                    if (deflated.input != null) {
+                        writeFully(deflated.input);
+                        release(deflated.input);
+                    }
+                } else {
+                    writeFully(ByteBuffer.wrap(deflated.data, 0, deflated.length));
+                    outputs.release(deflated.data);
+                }
+                crc = CrcUtils.combine(crc, deflated.crc, block.length);
+                compressedSize += deflated.length;
+                if (block.last) {
+                    finishEntry(record, crc, compressedSize, block.entry.getLength());
+                }
+                writing.stop(block.entry.getName(), block.last ? 1 : 0, position - start);
+                metrics.getProgress().done(block.last ? 1 : 0, block.length);
+                unreserve(submitted.poll());
+            }
+        } finally {
+            metrics.getBlocks().add(-pending.size());
+            for (Future<DeflatedBlock> future : pending) {
+                future.cancel(true);
+            }
+            for (Block block : submitted) {
+                unreserve(block);
+            }
+        }
+    }
+
+    /**
+     * Reserves the bytes of a block from the budget of the scheduler
+     *
+     * @param block the block about to be read
+     * @param wait  whether to wait for the budget, only when no block of this writer is in flight so the writer never
+     *              waits on budget held by its own blocks
+     * @return whether the block may be read
+     * @throws IOException if interrupted while waiting
+     */
+    private boolean reserve(Block block, boolean wait) throws IOException {
+        if (scheduler == null || block.length == 0) {
+            return true;
+        }
+        if (!wait) {
+            return scheduler.tryAcquire(block.length + DICTIONARY_SIZE);
+        }
+        try {
+            scheduler.acquire(block.length + DICTIONARY_SIZE);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the in-flight budget", e);
+        }
+    }
+
+    private void unreserve(Block block) {
+        if (scheduler != null && block.length > 0) {
+            scheduler.release(block.length + DICTIONARY_SIZE);
+        }
+    }
+
+    /**
+     * @return records of the entries written so far
+     */
+    public List<ZipRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Writes the central directory and closes the archive
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            JobMetrics.Timing writing = metrics.start(Stage.WRITE);
+            long start = position;
+            writeCentralDirectory();
+            writing.stop("central directory", 0, position - start);
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Picks the level of an entry. With a policy the first bytes of the entry are deflated at the fastest level on
+     * the pool and the achieved ratio decides, the blocks of the entry wait for the choice.
+     *
+     * @param entry the entry
+     * @return future level of the entry, {@link Deflater#NO_COMPRESSION} to store it
+     */
+    private CompletableFuture<Integer> chooseLevel(ChunkEntry entry) {
+        if (policy == null || entry.isDirectory() || entry.getLength() < MIN_SAMPLE_SIZE) {
+            return CompletableFuture.completedFuture(level);
+        }
+        int length = (int) Math.min(SAMPLE_SIZE, entry.getLength());
+        return CompletableFuture.supplyAsync(() -> read(entry.getPath(), entry.getOffset(), length), readers)
+                .thenApplyAsync(sample -> {
+                    // the trial is counted in the time of the stage, not in its blocks and bytes
+                    JobMetrics.Timing trial = metrics.start(Stage.DEFLATE);
+                    Deflater deflater = deflater(Deflater.BEST_SPEED);
+                    deflater.setInput(sample);
+                    deflater.finish();
+                    byte[] output = BufferPool.ioBuffer();
+                    long compressed = 0;
+                    while (!deflater.finished()) {
+                        compressed += deflater.deflate(output);
+                    }
+                    release(sample);
+                    trial.stop(entry.getName(), 0, 0);
+                    int chosen = policy.levelFor((double) compressed / length);
+                    logger.debug("`{}` deflates to {}% in trial, using level {}", entry.getName(),
+                            compressed * 100 / length, chosen);
+                    return chosen;
+                }, workers);
+    }
+
+    /**
+     * Chains the stages of a block: once the level of its entry is known the block is read on the readers, then
+     * deflated (or only checksummed when stored) on the workers
+     */
+    private Future<DeflatedBlock> submit(Block block, CompletableFuture<Integer> entryLevel) {
+        if (block.entry.isDirectory()) {
+            return CompletableFuture.completedFuture(DeflatedBlock.EMPTY);
+        }
+        boolean store = file != null;
+        return entryLevel.thenApplyAsync(blockLevel -> {
+            int dictionaryLength = blockLevel == Deflater.NO_COMPRESSION ? 0
+                    : (int) Math.min(DICTIONARY_SIZE, block.offset - block.entry.getOffset());
+            ByteBuffer window = read(block.entry.getPath(), block.offset - dictionaryLength,
+                    dictionaryLength + block.length);
+            return new ReadBlock(block, blockLevel, window, dictionaryLength);
+        }, readers).thenApplyAsync(read -> {
+            JobMetrics.Timing deflating = metrics.start(Stage.DEFLATE);
+            if (read.level == Deflater.NO_COMPRESSION && store) {
+                DeflatedBlock stored = checksum(read);
+                deflating.stop(block.entry.getName(), 1, block.length);
+                return stored;
+            }
+            try {
+                return deflate(read);
+            } finally {
+                release(read.window);
+                deflating.stop(block.entry.getName(), 1, block.length);
+            }
+        }, workers);
+    }
+
+    /**
+     * Only computes the crc of a stored block, the writer writes the same bytes into the archive and releases them
+     */
+    private DeflatedBlock checksum(ReadBlock read) {
+        CRC32 crc = new CRC32();
+        crc.update(read.window.duplicate());
+        return new DeflatedBlock(read.window, crc.getValue());
+    }
+
+    private DeflatedBlock deflate(ReadBlock read) {
+        Block block = read.block;
+        ByteBuffer input = read.window.duplicate().position(read.dictionaryLength);
+        CRC32 crc = new CRC32();
+        crc.update(input.duplicate());
+
+        Deflater deflater = deflater(read.level);
+        if (read.dictionaryLength > 0) {
+            deflater.setDictionary(read.window.duplicate().limit(read.dictionaryLength));
+        }
+        deflater.setInput(input);
+        if (block.last) {
+            deflater.finish();
+        }
+        byte[] output = block.length < SAMPLE_SIZE ? new byte[block.length + (block.length >> 8) + 64]
+                : outputs.acquire();
+        int size = 0;
+        while (true) {
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            if (block.last) {
+                size += deflater.deflate(output, size, output.length - size);
+                if (deflater.finished()) {
+                    break;
+                }
+            } else {
+                size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                if (size < output.length) {
+                    break;
+                }
+            }
+        }
+        return new DeflatedBlock(output, size, crc.getValue(), false);
+    }
+
+    /**
+     * Reads a range of the source file. When memory mapped the range is mapped from the page cache and handed to the
+     * deflater without a copy into the heap, otherwise it is read into a pooled buffer, see {@link #release}.
+     *
+     * @param path     source file
+     * @param position start of the range
+     * @param length   length of the range
+     * @return buffer holding the range
+     * @throws UncheckedIOException if the file can not be read or is shorter than expected
+     */
+    private ByteBuffer read(Path path, long position, int length) {
+        JobMetrics.Timing reading = metrics.start(Stage.READ);
+        try (FileChannel source = FileChannel.open(path, READ)) {
+            if (memoryMapped) {
+                if (source.size() < position + length) {
+                    throw new IOException("Unexpected end of file `" + path + "`");
+                }
+                MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, position, length);
+                reading.stop(path.toString(), 1, length);
+                return mapped;
+            }
+            // small ranges get their own array, pooled buffers are sized for whole blocks
+            byte[] array = length < SAMPLE_SIZE ? new byte[length] : inputs.acquire();
+            ByteBuffer buffer = ByteBuffer.wrap(array, 0, length);
+            try {
+                while (buffer.hasRemaining()) {
+                    int read = source.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of file `" + path + "`");
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                release(buffer);
+                throw e;
+            }
+            reading.stop(path.toString(), 1, length);
+            return buffer.flip();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the buffer of a range read into the heap to the pool, mapped ranges are left to the GC
+     */
+    private void release(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            inputs.release(buffer.array());
+        }
+    }
+
+    /**
+     * @param level compression level
+     * @return the reset deflater of the current thread for the given level
+     */
+    private static Deflater deflater(int level) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        // a new level is only applied by the next deflate call, which then returns without deflating; applied here
+        // on the empty reset stream so it comes before the dictionary and the input
+        deflater.deflate(BufferPool.ioBuffer());
+        return deflater;
+    }
+
+    private static DeflatedBlock await(Future<DeflatedBlock> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private ZipRecord beginEntry(ChunkEntry entry, int method) throws IOException {
+        String name = entry.isDirectory() ? entry.getName() + File.separator : entry.getName();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = entry.getLength() >= ZIP64_THRESHOLD;
+        boolean dataDescriptor = file == null && !entry.isDirectory();
+        ZipRecord record = new ZipRecord(name, nameBytes, method, position, zip64, dataDescriptor);
+
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length + (zip64 ? 20 : 0))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                .putShort((short) flags(record))
+                .putShort((short) method)
+                .putInt(dosTime)
+                .putInt(0)
+                .putInt(zip64 ? (int) ZIP64_MAGIC : 0)
+                .putInt(zip64 ? (int) ZIP64_MAGIC : 0)
+                .putShort((short) nameBytes.length)
+                .putShort((short) (zip64 ? 20 : 0))
+                .put(nameBytes);
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+        }
+        header.flip();
+        writeFully(header);
+        records.add(record);
+        return record;
+    }
+
+    private static int flags(ZipRecord record) {
+        return FLAG_UTF8 | (record.hasDataDescriptor() ? FLAG_DATA_DESCRIPTOR : 0);
+    }
+
+    private void finishEntry(ZipRecord record, long crc, long compressedSize, long size) throws IOException {
+        record.update(crc, compressedSize, size);
+        if (record.hasDataDescriptor()) {
+            ByteBuffer descriptor = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE).putInt((int) crc);
+            if (record.isZip64()) {
+                descriptor.putLong(compressedSize).putLong(size);
+            } else {
+                descriptor.putInt((int) compressedSize).putInt((int) size);
+            }
+            descriptor.flip();
+            writeFully(descriptor);
+        }
+        if (file == null) {
+            // streamed entries carry a data descriptor, directories have nothing to patch
+            logger.debug("Written `{}` into archive", record.getName());
+            return;
+        }
+        ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt((int) crc);
+        if (record.isZip64()) {
+            sizes.putInt((int) ZIP64_MAGIC).putInt((int) ZIP64_MAGIC).flip();
+            patch(sizes, record.getLocalHeaderOffset() + 14);
+            ByteBuffer extra = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            extra.putLong(size).putLong(compressedSize).flip();
+            patch(extra, record.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + record.getNameBytes().length + 4);
+        } else {
+            sizes.putInt((int) compressedSize).putInt((int) size).flip();
+            patch(sizes, record.getLocalHeaderOffset() + 14);
+        }
+        logger.debug("Written `{}` into archive", record.getName());
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = position;
+        for (ZipRecord record : records) {
+            boolean zip64 = record.isZip64() || record.getLocalHeaderOffset() >= ZIP64_MAGIC;
+            byte[] nameBytes = record.getNameBytes();
+            ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + nameBytes.length + (zip64 ? 28 : 0))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                    .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                    .putShort((short) flags(record))
+                    .putShort((short) record.getMethod())
+                    .putInt(dosTime)
+                    .putInt((int) record.getCrc())
+                    .putInt(zip64 ? (int) ZIP64_MAGIC : (int) record.getCompressedSize())
+                    .putInt(zip64 ? (int) ZIP64_MAGIC : (int) record.getSize())
+                    .putShort((short) nameBytes.length)
+                    .putShort((short) (zip64 ? 28 : 0))
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt(zip64 ? (int) ZIP64_MAGIC : (int) record.getLocalHeaderOffset())
+                    .put(nameBytes);
+            if (zip64) {
+                header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 24)
+                        .putLong(record.getSize())
+                        .putLong(record.getCompressedSize())
+                        .putLong(record.getLocalHeaderOffset());
+            }
+            header.flip();
+            writeFully(header);
+        }
+        long centralDirectorySize = position - centralDirectoryOffset;
+
+        boolean zip64 = records.size() >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            ByteBuffer end = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                    .putLong(44)
+                    .putShort((short) VERSION_ZIP64)
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(records.size())
+                    .putLong(records.size())
+                    .putLong(centralDirectorySize)
+                    .putLong(centralDirectoryOffset);
+            end.putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1);
+            end.flip();
+            writeFully(end);
+        }
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(records.size(), ZIP64_MAGIC_COUNT))
+                .putShort((short) Math.min(records.size(), ZIP64_MAGIC_COUNT))
+                .putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectorySize)
+                .putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectoryOffset)
+                .putShort((short) 0);
+        end.flip();
+        writeFully(end);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private void patch(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += file.write(buffer, offset);
+        }
+    }
+
+    private static int toDosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * Cuts the entries into blocks as the writer gets to them, so only the blocks in flight exist at once
+     */
+    private static class Blocks implements Iterator<Block> {
+        private final List<ChunkEntry> entries;
+        private int index;
+        private ChunkEntry entry;
+        private long offset;
+        private long end;
+
+        private Blocks(List<ChunkEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entry != null || index < entries.size();
+        }
+
+        @Override
+        public Block next() {
+            if (entry == null) {
+                if (index == entries.size()) {
+                    throw new NoSuchElementException();
+                }
+                entry = entries.get(index++);
+                if (entry.isDirectory()) {
+                    Block block = new Block(entry, 0, 0, true, true);
+                    entry = null;
+                    return block;
+                }
+                offset = entry.getOffset();
+                end = entry.getOffset() + entry.getLength();
+            }
+            int length = (int) Math.min(BLOCK_SIZE, end - offset);
+            Block block = new Block(entry, offset, length, offset == entry.getOffset(), offset + length == end);
+            offset += length;
+            if (block.last) {
+                entry = null;
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Range of an entry deflated as one unit of work
+     */
+    private static class Block {
+        private final ChunkEntry entry;
+        private final long offset;
+        private final int length;
+        private final boolean first;
+        private final boolean last;
+
+        private Block(ChunkEntry entry, long offset, int length, boolean first, boolean last) {
+            this.entry = entry;
+            this.offset = offset;
+            this.length = length;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Input of a block as read from the source, preceded by its dictionary
+     */
+    private static class ReadBlock {
+        private final Block block;
+        private final int level;
+        private final ByteBuffer window;
+        private final int dictionaryLength;
+
+        private ReadBlock(Block block, int level, ByteBuffer window, int dictionaryLength) {
+            this.block = block;
+            this.level = level;
+            this.window = window;
+            this.dictionaryLength = dictionaryLength;
+        }
+    }
+
+    /**
+     * Compressed output of a block along with the crc of its input
+     */
+    private static class DeflatedBlock {
+        private static final DeflatedBlock EMPTY = new DeflatedBlock(new byte[0], 0, 0, true);
+
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final boolean stored;
+        // input of a stored block, written as it was read for the crc
+        private final ByteBuffer input;
+
+        private DeflatedBlock(byte[] data, int length, long crc, boolean stored) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.stored = stored;
+            this.input = null;
+        }
+
+        private DeflatedBlock(ByteBuffer input, long crc) {
+            this.data = null;
+            this.length = input.remaining();
+            this.crc = crc;
+            this.stored = true;
+            this.input = input;
+        }
+    }
+}
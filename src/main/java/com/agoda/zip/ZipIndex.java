@@ -0,0 +1,172 @@
+package com.agoda.zip;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.agoda.utils.FileUtils.findBaseNameFromPart;
+import static com.agoda.utils.FileUtils.findPartNumber;
+
+/**
+ * Index of an archive set built from the central directories of its zip files only.
+ * Maps every original file to the pieces it was split into, with the archive holding each piece and the offset the
+ * piece starts at in the original file.
+ */
+public class ZipIndex {
+
+    private final List<String> directories;
+    private final List<IndexedFile> files;
+
+    private ZipIndex(List<String> directories, List<IndexedFile> files) {
+        this.directories = directories;
+        this.files = files;
+    }
+
+    /**
+     * Reads the central directory of every archive and builds the index
+     *
+     * @param archives zip files of the archive set
+     * @return index of the archive set
+     * @throws IOException if an archive can not be read or pieces of a split file are missing
+     */
+    public static ZipIndex of(List<Path> archives) throws IOException {
+        TreeSet<String> directories = new TreeSet<>();
+        Map<String, List<Piece>> pieces = new TreeMap<>();
+        for (Path archive : archives) {
+            try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        directories.add(entry.getName());
+                        continue;
+                    }
+                    Path name = Path.of(entry.getName());
+                    String baseName = findBaseNameFromPart(name).toString();
+                    pieces.computeIfAbsent(baseName, key -> new ArrayList<>())
+                            .add(new Piece(archive, entry.getName(), findPartNumber(name), entry.getSize(),
+                                    entry.getCrc()));
+                }
+            }
+        }
+        List<IndexedFile> files = new ArrayList<>();
+        for (Map.Entry<String, List<Piece>> file : pieces.entrySet()) {
+            files.add(new IndexedFile(file.getKey(), file.getValue()));
+        }
+        return new ZipIndex(new ArrayList<>(directories), files);
+    }
+
+    /**
+     * Narrows the index down to the directories and files whose original name matches the filter
+     *
+     * @param filter predicate on the original name
+     * @return the narrowed index
+     */
+    public ZipIndex filter(Predicate<String> filter) {
+        return new ZipIndex(directories.stream().filter(filter).collect(Collectors.toList()),
+                files.stream().filter(file -> filter.test(file.getName())).collect(Collectors.toList()));
+    }
+
+    public List<String> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    public List<IndexedFile> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * An original file and the pieces it is stored as
+     */
+    public static class IndexedFile {
+        private final String name;
+        private final List<Piece> pieces;
+        private final long size;
+
+        IndexedFile(String name, List<Piece> pieces) throws IOException {
+            pieces.sort(Comparator.comparingInt(Piece::getPartNumber));
+            long offset = 0;
+            for (int i = 0; i < pieces.size(); i++) {
+                Piece piece = pieces.get(i);
+                if (pieces.size() > 1 && piece.getPartNumber() != i) {
+                    throw new IOException("Part " + i + " of file `" + name + "` is missing");
+                }
+                piece.offset = offset;
+                offset += piece.getSize();
+            }
+            this.name = name;
+            this.pieces = pieces;
+            this.size = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Piece> getPieces() {
+            return Collections.unmodifiableList(pieces);
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * A zip entry holding the whole file or one split part of it
+     */
+    public static class Piece {
+        private final Path archive;
+        private final String entryName;
+        private final int partNumber;
+        private final long size;
+        private final long crc;
+        private long offset;
+
+        Piece(Path archive, String entryName, int partNumber, long size, long crc) {
+            this.archive = archive;
+            this.entryName = entryName;
+            this.partNumber = partNumber;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        public Path getArchive() {
+            return archive;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public int getPartNumber() {
+            return partNumber;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return position of the piece in the original file
+         */
+        public long getOffset() {
+            return offset;
+        }
+    }
+}
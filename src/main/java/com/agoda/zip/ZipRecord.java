@@ -0,0 +1,72 @@
+package com.agoda.zip;
+
+/**
+ * Bookkeeping of an entry written by {@link ParallelZipWriter}, used to build the central directory
+ */
+public class ZipRecord {
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final int method;
+    private final long localHeaderOffset;
+    private final boolean zip64;
+    private final boolean dataDescriptor;
+    private long crc;
+    private long compressedSize;
+    private long size;
+
+    ZipRecord(String name, byte[] nameBytes, int method, long localHeaderOffset, boolean zip64,
+              boolean dataDescriptor) {
+        this.name = name;
+        this.nameBytes = nameBytes;
+        this.method = method;
+        this.localHeaderOffset = localHeaderOffset;
+        this.zip64 = zip64;
+        this.dataDescriptor = dataDescriptor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getLocalHeaderOffset() {
+        return localHeaderOffset;
+    }
+
+    boolean isZip64() {
+        return zip64;
+    }
+
+    /**
+     * @return whether the crc and sizes follow the data instead of being in the local header
+     */
+    boolean hasDataDescriptor() {
+        return dataDescriptor;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    void update(long crc, long compressedSize, long size) {
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.size = size;
+    }
+}
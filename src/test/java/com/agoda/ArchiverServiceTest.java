@@ -2,19 +2,55 @@ package com.agoda;
 
 import com.agoda.constants.CompressionType;
 import com.agoda.constants.Constants;
+import com.agoda.metrics.JobMetrics;
+import com.agoda.metrics.Progress;
+import com.agoda.metrics.Stage;
+import com.agoda.model.ChunkEntry;
+import com.agoda.model.CompressionOptions;
+import com.agoda.model.Manifest;
+import com.agoda.model.ManifestEntry;
+import com.agoda.model.Recipe;
+import com.agoda.model.Recipes;
+import com.agoda.model.Verification;
 import com.agoda.service.ArchiveService;
+import com.agoda.strategy.CompressionScheduler;
+import com.agoda.utils.BinPacker;
+import com.agoda.utils.BufferPool;
+import com.agoda.utils.ParallelFileWalker;
 import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.Environment;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static com.agoda.utils.FileUtils.deleteFolder;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ArchiverServiceTest {
@@ -87,6 +123,995 @@ public class ArchiverServiceTest {
 
     }
 
+    @Test
+    public void testCompressAndDecompressSplitFileIdentical() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(3, getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testCompressMemoryMappedSplitFileIdentical() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.getOptions().setMemoryMapped(true);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(3, getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testIncompressibleEntriesAreStored() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        byte[] random = new byte[3 * 1024 * 1024];
+        new Random().nextBytes(random);
+        Files.write(tempSrcDir.resolve("random.bin"), random);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 100);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+
+            Path archive = getFilePaths(tempCompressedDir).get(0);
+            try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+                assertEquals(ZipEntry.STORED, zipFile.getEntry("random.bin").getMethod());
+                assertEquals(ZipEntry.DEFLATED, zipFile.getEntry(DUMMY_FILE).getMethod());
+            }
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve("random.bin"), tempDecompressedDir.resolve("random.bin")));
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testFilesArePackedIntoFewestParts() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, "a.dat", 600);
+        createDummyFile(tempSrcDir, "b.dat", 400);
+        createDummyFile(tempSrcDir, "c.dat", 600);
+        createDummyFile(tempSrcDir, "d.dat", 400);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(2, getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            List<Path> decompressedPaths = getFilePaths(tempDecompressedDir);
+            assertEquals(4, decompressedPaths.size());
+            for (Path path : decompressedPaths) {
+                Path sourceFile = tempSrcDir.resolve(tempDecompressedDir.toAbsolutePath().relativize(path));
+                assertTrue(fileHasSameContent(sourceFile, path));
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testChunksSealedDuringWalkAreWritten() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, "a.dat", 1000);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            // a nearly full chunk is sealed while walking, alone it is still named like an unsplit archive
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            List<Path> paths = getFilePaths(tempCompressedDir);
+            assertEquals(1, paths.size());
+            assertEquals(tempSrcDir.getFileName() + Constants.ZIP_EXTENSION, paths.get(0).getFileName().toString());
+            assertEquals(-1, archiveService.list(tempCompressedDir).getEntries().get(0).getPieces().get(0).getArchive());
+
+            createDummyFile(tempSrcDir, "b.dat", 1000);
+            createDummyFile(tempSrcDir, "c.dat", 1000);
+            deleteFolder(tempCompressedDir);
+            Files.createDirectory(tempCompressedDir);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(3, getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            for (String name : List.of("a.dat", "b.dat", "c.dat")) {
+                assertTrue(fileHasSameContent(tempSrcDir.resolve(name), tempDecompressedDir.resolve(name)));
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testNestedTreeWithSlicesRoundTrips() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path nested = Files.createDirectories(tempSrcDir.resolve("a").resolve("b"));
+        Files.createDirectories(tempSrcDir.resolve("empty"));
+        createDummyFile(nested, DUMMY_FILE, 1500);
+        createDummyFile(nested.getParent(), "small.dat", 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(Files.isDirectory(tempDecompressedDir.resolve("empty")));
+            assertTrue(fileHasSameContent(nested.resolve(DUMMY_FILE),
+                    tempDecompressedDir.resolve("a").resolve("b").resolve(DUMMY_FILE)));
+            assertTrue(fileHasSameContent(nested.getParent().resolve("small.dat"),
+                    tempDecompressedDir.resolve("a").resolve("small.dat")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testLinkToDirectoryRoundTripsAsDirectory() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path directory = Files.createDirectories(tempSrcDir.resolve("d"));
+        createDummyFile(directory, "a.txt", 10);
+        Files.createSymbolicLink(tempSrcDir.resolve("linkdir"), directory);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            for (String mode : List.of(CompressionType.ZIP, CompressionType.TGZ)) {
+                ArchiveService archiveService = new ArchiveService();
+                archiveService.selectCompressionType(mode);
+                archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+
+                archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+                // the link is not followed, it comes back as an empty directory
+                assertTrue(Files.isDirectory(tempDecompressedDir.resolve("linkdir")), mode);
+                assertFalse(Files.exists(tempDecompressedDir.resolve("linkdir").resolve("a.txt")), mode);
+                assertTrue(fileHasSameContent(directory.resolve("a.txt"),
+                        tempDecompressedDir.resolve("d").resolve("a.txt")), mode);
+                deleteFolder(tempCompressedDir);
+                deleteFolder(tempDecompressedDir);
+                Files.createDirectories(tempCompressedDir);
+                Files.createDirectories(tempDecompressedDir);
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testResumeInterruptedCompress() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, "a.dat", 1024);
+        createDummyFile(tempSrcDir, "b.dat", 1024);
+        // the dangling link can not be read and fails its own part, the full ones are written and journaled
+        Path broken = Files.createSymbolicLink(tempSrcDir.resolve("z.dat"), tempSrcDir.resolve("missing"));
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            assertThrows(IOException.class, () -> archiveService.compress(tempSrcDir, tempCompressedDir, 1));
+            Path journal = tempCompressedDir.resolve("." + tempSrcDir.getFileName() + ".journal");
+            assertTrue(Files.exists(journal));
+
+            List<Path> completed = getFilePaths(tempCompressedDir);
+            List<FileTime> times = new ArrayList<>();
+            for (Path path : completed) {
+                times.add(Files.getLastModifiedTime(path));
+            }
+            Files.delete(broken);
+            archiveService.getOptions().setResume(true);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertTrue(Files.notExists(journal));
+            assertEquals(2, getFilePaths(tempCompressedDir).size());
+            for (int i = 0; i < completed.size(); i++) {
+                if (Files.exists(completed.get(i))) {
+                    assertEquals(times.get(i), Files.getLastModifiedTime(completed.get(i)));
+                }
+            }
+            assertEquals(2, archiveService.list(tempCompressedDir).getEntries().size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve("a.dat"), tempDecompressedDir.resolve("a.dat")));
+            assertTrue(fileHasSameContent(tempSrcDir.resolve("b.dat"), tempDecompressedDir.resolve("b.dat")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testCompressToStreamAndDecompressFromStream() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path nested = Files.createDirectories(tempSrcDir.resolve(DUMMY_DIR));
+        createDummyFile(tempSrcDir, DUMMY_FILE, 1500);
+        Files.write(nested.resolve("text.txt"), "streamed ".repeat(10000).getBytes());
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            ByteArrayOutputStream archive = new ByteArrayOutputStream();
+            archiveService.compress(tempSrcDir, archive);
+
+            try (ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+                ZipEntry entry;
+                while ((entry = zipStream.getNextEntry()) != null) {
+                    if (!entry.isDirectory()) {
+                        // streamed entries are deflated, streaming readers can not find the end of stored ones
+                        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                    }
+                }
+            }
+
+            archiveService.decompress(new ByteArrayInputStream(archive.toByteArray()), tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+            assertTrue(fileHasSameContent(nested.resolve("text.txt"),
+                    tempDecompressedDir.resolve(DUMMY_DIR).resolve("text.txt")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testVerifyDetectsCorruptPart() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 1500);
+        createDummyFile(tempSrcDir, "small.dat", 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+
+            Verification verification = archiveService.verify(tempCompressedDir);
+            assertTrue(verification.isValid());
+            assertEquals(3, verification.getEntries());
+            assertEquals(1510 * 1024, verification.getBytes());
+
+            Path part = getFilePaths(tempCompressedDir).get(0);
+            try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+                file.seek(file.length() / 2);
+                int value = file.read();
+                file.seek(file.length() / 2);
+                file.write(value ^ 0xFF);
+            }
+            verification = archiveService.verify(tempCompressedDir);
+            assertFalse(verification.isValid());
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+        }
+    }
+
+    @Test
+    public void testTgzSplitRoundTripsAndVerifies() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path nested = Files.createDirectories(tempSrcDir.resolve("a").resolve("b"));
+        Files.createDirectories(tempSrcDir.resolve("empty"));
+        createDummyFile(nested, DUMMY_FILE, 1500);
+        for (int i = 0; i < 50; i++) {
+            Files.writeString(nested.getParent().resolve("small" + i + ".txt"), "small file " + i);
+        }
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.TGZ);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            List<Path> archives = getFilePaths(tempCompressedDir);
+            assertTrue(archives.size() > 1);
+            assertTrue(archives.stream().allMatch(path -> path.toString().endsWith(".tar.gz")));
+
+            Verification verification = archiveService.verify(tempCompressedDir);
+            assertTrue(verification.isValid());
+            assertEquals(52, verification.getEntries());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(Files.isDirectory(tempDecompressedDir.resolve("empty")));
+            assertTrue(fileHasSameContent(nested.resolve(DUMMY_FILE),
+                    tempDecompressedDir.resolve("a").resolve("b").resolve(DUMMY_FILE)));
+            assertEquals("small file 7", Files.readString(tempDecompressedDir.resolve("a").resolve("small7.txt")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testMetricsCountEveryStage() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 1500);
+        for (int i = 0; i < 20; i++) {
+            Files.writeString(tempSrcDir.resolve("small" + i + ".txt"), "small file " + i);
+        }
+        long sourceBytes = 0;
+        for (Path path : getFilePaths(tempSrcDir)) {
+            sourceBytes += Files.size(path);
+        }
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            JobMetrics metrics = archiveService.getMetrics();
+            assertEquals("compress", metrics.getOperation());
+            assertEquals(1, metrics.getCount(Stage.SPLIT));
+            assertEquals(22, metrics.getCount(Stage.WALK));
+            assertEquals(sourceBytes, metrics.getBytes(Stage.DEFLATE));
+            assertEquals(22, metrics.getCount(Stage.WRITE));
+            assertEquals(getFilePaths(tempCompressedDir).size(), metrics.getPartTimings().size());
+            assertEquals(22, metrics.getPartTimings().stream().mapToLong(JobMetrics.PartTiming::getEntries).sum());
+            assertEquals(0, metrics.getInFlight().get());
+            assertEquals(0, metrics.getBlocks().get());
+            assertTrue(metrics.getCompressionRatio() > 0);
+
+            Path summary = tempDecompressedDir.resolve("summary.json");
+            metrics.writeSummary(summary);
+            String json = Files.readString(summary);
+            assertTrue(json.contains("\"operation\": \"compress\""));
+            assertTrue(json.contains("\"split\": {\"count\": 1, \"bytes\": " + 1500 * 1024));
+            Files.delete(summary);
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertEquals("decompress", metrics.getOperation());
+            assertEquals(22, metrics.getCount(Stage.INFLATE));
+            assertEquals(sourceBytes, metrics.getBytes(Stage.INFLATE));
+            assertEquals(sourceBytes, metrics.getBytes(Stage.REASSEMBLE));
+            assertEquals(0, metrics.getCount(Stage.WRITE));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testProgressReachesPlan() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path progressFile = Files.createTempFile("progress", ".json");
+        createDummyFile(tempSrcDir, DUMMY_FILE, 1500);
+        for (int i = 0; i < 10; i++) {
+            Files.writeString(tempSrcDir.resolve("small" + i + ".txt"), "small file " + i);
+        }
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.getOptions().setProgressFile(progressFile);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            Progress progress = archiveService.getMetrics().getProgress();
+            assertTrue(progress.isPlanComplete());
+            // the file larger than a part is planned as its two slices
+            assertEquals(12, progress.getPlannedEntries());
+            assertEquals(progress.getPlannedBytes(), progress.getDoneBytes());
+            assertEquals(progress.getPlannedEntries(), progress.getDoneEntries());
+            assertEquals(1.0, progress.getFraction());
+            String json = Files.readString(progressFile);
+            assertTrue(json.contains("\"operation\": \"compress\""));
+            assertTrue(json.contains("\"state\": \"finished\""));
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(progress.isPlanComplete());
+            assertEquals(12, progress.getDoneEntries());
+            assertEquals(progress.getPlannedBytes(), progress.getDoneBytes());
+            assertTrue(Files.readString(progressFile).contains("\"operation\": \"decompress\""));
+        }
+        finally {
+            Files.deleteIfExists(progressFile);
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testNativeImageConfigListsProviders() throws Exception {
+
+        String config;
+        try (InputStream inputStream = ArchiveService.class.getResourceAsStream(
+                "/META-INF/native-image/com.agoda/archiver-cli/reflect-config.json")) {
+            config = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        List<String> providers;
+        try (InputStream inputStream = ArchiveService.class.getResourceAsStream(
+                "/META-INF/services/com.agoda.strategy.ArchiveStrategyProvider")) {
+            providers = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).lines()
+                    .map(String::trim).filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .collect(Collectors.toList());
+        }
+        assertFalse(providers.isEmpty());
+        // a provider missing from the configuration can not be created by the native image
+        for (String provider : providers) {
+            assertTrue(config.contains("\"" + provider + "\""), provider);
+        }
+    }
+
+    @Test
+    public void testCompressWithinInFlightBudget() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+        createDummyFile(tempSrcDir, "small.dat", 300);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.getOptions().setWorkers(2).setReaders(1).setInFlightBytes(1024 * 1024);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+            assertTrue(fileHasSameContent(tempSrcDir.resolve("small.dat"), tempDecompressedDir.resolve("small.dat")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testCompressManySmallFilesOnVirtualThreads() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        for (int i = 0; i < 300; i++) {
+            createDummyFile(i % 2 == 0 ? tempSrcDir : tempSrcDir.resolve(DUMMY_DIR), i + ".dat", 1);
+        }
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.getOptions().setVirtualThreads(true);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            List<Path> decompressedPaths = getFilePaths(tempDecompressedDir);
+            assertEquals(300, decompressedPaths.size());
+            for (Path path : decompressedPaths) {
+                Path sourceFile = tempSrcDir.resolve(tempDecompressedDir.toAbsolutePath().relativize(path));
+                assertTrue(fileHasSameContent(sourceFile, path));
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsFallBackToBoundedReaders() {
+        CompressionOptions options = new CompressionOptions().setWorkers(2).setReaders(3).setVirtualThreads(true);
+        try (CompressionScheduler scheduler = CompressionScheduler.of(options)) {
+            if (Runtime.version().feature() >= 21) {
+                assertEquals(256, scheduler.getReadAhead());
+            } else {
+                // no virtual threads, the usual readers and read-ahead instead of a thread per block
+                assertEquals(4, scheduler.getReadAhead());
+                assertEquals(3, ((ThreadPoolExecutor) scheduler.getReaders()).getMaximumPoolSize());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelFileWalkerVisitsTheTreeConcurrently() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path outside = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Path directory = Files.createDirectories(tempSrcDir.resolve("dir" + i).resolve("nested"));
+                for (int j = 0; j < 10; j++) {
+                    Files.writeString(directory.resolve("file" + j), "content " + i + j);
+                    files.add(tempSrcDir.relativize(directory.resolve("file" + j)).toString());
+                }
+            }
+            Files.writeString(outside.resolve("target.txt"), "target of the link");
+            Files.writeString(outside.resolve("hidden.txt"), "behind a directory link");
+            Files.createSymbolicLink(tempSrcDir.resolve("file-link"), outside.resolve("target.txt"));
+            Files.createSymbolicLink(tempSrcDir.resolve("dir-link"), outside);
+
+            Map<String, BasicFileAttributes> visited = new ConcurrentHashMap<>();
+            Set<Path> open = ConcurrentHashMap.newKeySet();
+            AtomicInteger closed = new AtomicInteger();
+            ParallelFileWalker.walk(tempSrcDir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    assertTrue(dir.equals(tempSrcDir) || open.contains(dir.getParent()));
+                    open.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    assertTrue(open.contains(file.getParent()));
+                    visited.put(tempSrcDir.relativize(file).toString(), attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    closed.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+            }, pool);
+
+            List<String> expected = new ArrayList<>(files);
+            expected.add("file-link");
+            expected.add("dir-link");
+            assertEquals(new HashSet<>(expected), visited.keySet());
+            assertEquals(17, closed.get());
+            // links to files carry the attributes of their target, links to directories are not followed
+            assertTrue(visited.get("file-link").isRegularFile());
+            assertEquals(Files.size(outside.resolve("target.txt")), visited.get("file-link").size());
+            assertTrue(visited.get("dir-link").isSymbolicLink());
+            assertFalse(visited.containsKey("dir-link" + File.separator + "hidden.txt"));
+
+            IOException failing = assertThrows(IOException.class,
+                    () -> ParallelFileWalker.walk(tempSrcDir, new SimpleFileVisitor<>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            if (file.getFileName().toString().equals("file7")) {
+                                throw new IOException("can not visit " + file.getFileName());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }, pool));
+            assertEquals("can not visit file7", failing.getMessage());
+        }
+        finally {
+            pool.shutdownNow();
+            deleteFolder(tempSrcDir);
+            deleteFolder(outside);
+        }
+    }
+
+    @Test
+    public void testDecompressMoreThanTenParts() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 11500);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(12, getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_FILE), tempDecompressedDir.resolve(DUMMY_FILE)));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testExtractMatchingFiles() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        createDummyFile(tempSrcDir.resolve(DUMMY_DIR), DUMMY_FILE, 2500);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+
+            archiveService.extract(tempCompressedDir, tempDecompressedDir, DUMMY_DIR + "/*.dat");
+            Path extracted = tempDecompressedDir.resolve(DUMMY_DIR).resolve(DUMMY_FILE);
+            assertTrue(fileHasSameContent(tempSrcDir.resolve(DUMMY_DIR).resolve(DUMMY_FILE), extracted));
+            assertEquals(1, getFilePaths(tempDecompressedDir).size());
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testDecompressRefusesEntriesOutsideDestination() throws Exception {
+
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path destination = Files.createDirectory(tempDecompressedDir.resolve("inner"));
+        try (ZipOutputStream zipStream = new ZipOutputStream(
+                Files.newOutputStream(tempCompressedDir.resolve("evil" + Constants.ZIP_EXTENSION)))) {
+            zipStream.putNextEntry(new ZipEntry("../escaped.txt"));
+            zipStream.write("escaped".getBytes(StandardCharsets.UTF_8));
+            zipStream.closeEntry();
+        }
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            IOException decompressing = assertThrows(IOException.class,
+                    () -> archiveService.decompress(tempCompressedDir, destination));
+            assertTrue(decompressing.getMessage().contains("outside of the destination"));
+            IOException extracting = assertThrows(IOException.class,
+                    () -> archiveService.extract(tempCompressedDir, destination, "**"));
+            assertTrue(extracting.getMessage().contains("outside of the destination"));
+            assertFalse(Files.exists(tempDecompressedDir.resolve("escaped.txt")));
+        }
+        finally {
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testDeletionsStayInsideDestination() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path destination = Files.createDirectory(tempDecompressedDir.resolve("inner"));
+        Path victim = Files.writeString(tempDecompressedDir.resolve("victim.txt"), "keep me");
+        createDummyFile(tempSrcDir, DUMMY_FILE, 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            Path manifestFile;
+            try (Stream<Path> files = Files.list(tempCompressedDir)) {
+                manifestFile = files.filter(path -> path.toString().endsWith(Constants.MANIFEST_EXTENSION))
+                        .findFirst().orElseThrow();
+            }
+            List<ManifestEntry> entries = new ArrayList<>(Manifest.read(manifestFile).getEntries());
+            entries.add(new ManifestEntry("../victim.txt", false, 0, 0, 0, ManifestEntry.State.DELETED,
+                    List.of()));
+            new Manifest(entries).write(manifestFile);
+
+            IOException expected = assertThrows(IOException.class,
+                    () -> archiveService.decompress(tempCompressedDir, destination));
+            assertTrue(expected.getMessage().contains("outside of the destination"));
+            assertTrue(Files.exists(victim));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testExtractNoMatchingFiles() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        createDummyFile(tempSrcDir, DUMMY_FILE, 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            archiveService.extract(tempCompressedDir, tempSrcDir, "*.txt");
+        }
+
+        catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("No entries matching"));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+        }
+    }
+
+    @Test
+    public void testListFromManifestAndCentralDirectory() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            CRC32 crc = new CRC32();
+            crc.update(Files.readAllBytes(tempSrcDir.resolve(DUMMY_FILE)));
+
+            Manifest manifest = archiveService.list(tempCompressedDir);
+            assertManifestEntries(manifest, crc.getValue(), Files.size(tempSrcDir.resolve(DUMMY_FILE)));
+
+            Files.delete(tempCompressedDir.resolve("." + tempSrcDir.getFileName() + Constants.MANIFEST_EXTENSION));
+            manifest = archiveService.list(tempCompressedDir);
+            assertManifestEntries(manifest, crc.getValue(), Files.size(tempSrcDir.resolve(DUMMY_FILE)));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+        }
+    }
+
+    @Test
+    public void testIncrementalCompressAndDecompress() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempIncrementDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+        createDummyFile(tempSrcDir, "changed.dat", 10);
+        createDummyFile(tempSrcDir.resolve(DUMMY_DIR), "deleted.dat", 10);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+
+            Files.write(tempSrcDir.resolve("changed.dat"), new byte[]{1, 2, 3});
+            Files.delete(tempSrcDir.resolve(DUMMY_DIR).resolve("deleted.dat"));
+            createDummyFile(tempSrcDir, "added.dat", 10);
+            archiveService.compress(tempSrcDir, tempIncrementDir, 1, tempCompressedDir);
+
+            Manifest increment = archiveService.list(tempIncrementDir);
+            for (ManifestEntry entry : increment.getEntries()) {
+                if (entry.getName().equals(DUMMY_FILE)) {
+                    assertEquals(ManifestEntry.State.UNCHANGED, entry.getState());
+                } else if (entry.getName().endsWith("deleted.dat")) {
+                    assertEquals(ManifestEntry.State.DELETED, entry.getState());
+                } else {
+                    assertEquals(ManifestEntry.State.ARCHIVED, entry.getState());
+                }
+            }
+            assertEquals(1, getFilePaths(tempIncrementDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir, List.of(tempIncrementDir));
+            List<Path> decompressedPaths = getFilePaths(tempDecompressedDir);
+            assertEquals(3, decompressedPaths.size());
+            for (Path path : decompressedPaths) {
+                Path sourceFile = tempSrcDir.resolve(tempDecompressedDir.toAbsolutePath().relativize(path));
+                assertTrue(fileHasSameContent(sourceFile, path));
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempIncrementDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testDedupStoresDuplicateChunksOnce() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        File dummyFile = createDummyFile(tempSrcDir, DUMMY_FILE, 2500);
+        Files.copy(dummyFile.toPath(), tempSrcDir.resolve(DUMMY_DIR).resolve(DUMMY_FILE));
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.DEDUP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+
+            List<Path> packs = getFilePaths(tempCompressedDir);
+            long storedSize = 0;
+            for (Path pack : packs) {
+                try (ZipFile zipFile = new ZipFile(pack.toFile())) {
+                    storedSize += zipFile.stream().mapToLong(ZipEntry::getSize).sum();
+                }
+            }
+            assertTrue(storedSize <= dummyFile.length());
+
+            archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+            assertEquals(packs.size(), getFilePaths(tempCompressedDir).size());
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            List<Path> decompressedPaths = getFilePaths(tempDecompressedDir);
+            assertEquals(2, decompressedPaths.size());
+            for (Path path : decompressedPaths) {
+                Path sourceFile = tempSrcDir.resolve(tempDecompressedDir.toAbsolutePath().relativize(path));
+                assertTrue(fileHasSameContent(sourceFile, path));
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testDedupPrunesChunksOfEarlierRuns() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Random random = new Random(7);
+        byte[] kept = new byte[2 * 1024 * 1024];
+        byte[] removed = new byte[2 * 1024 * 1024];
+        random.nextBytes(kept);
+        random.nextBytes(removed);
+        Files.write(tempSrcDir.resolve("kept.dat"), kept);
+        Files.write(tempSrcDir.resolve("removed.dat"), removed);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.DEDUP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(kept.length + removed.length, storedChunkSize(tempCompressedDir));
+
+            // the packs holding only chunks of the removed file are deleted
+            Files.delete(tempSrcDir.resolve("removed.dat"));
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertEquals(kept.length, storedChunkSize(tempCompressedDir));
+
+            // the packs mostly holding chunks of the cut off tail are replaced
+            Files.write(tempSrcDir.resolve("kept.dat"), Arrays.copyOf(kept, 300 * 1024));
+            archiveService.compress(tempSrcDir, tempCompressedDir, 1);
+            assertTrue(storedChunkSize(tempCompressedDir) < 1024 * 1024);
+
+            archiveService.decompress(tempCompressedDir, tempDecompressedDir);
+            assertEquals(1, getFilePaths(tempDecompressedDir).size());
+            assertTrue(fileHasSameContent(tempSrcDir.resolve("kept.dat"), tempDecompressedDir.resolve("kept.dat")));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testDedupRefusesRecipesLeavingTheDestination() throws Exception {
+
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        Path destination = Files.createDirectory(tempDecompressedDir.resolve("inner"));
+        new Recipes(List.of(new Recipe("../escaped", true, 0, -1, 0, List.of())))
+                .write(tempCompressedDir.resolve(".evil" + Constants.RECIPES_EXTENSION));
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.DEDUP);
+            IOException decompressing = assertThrows(IOException.class,
+                    () -> archiveService.decompress(tempCompressedDir, destination));
+            assertTrue(decompressing.getMessage().contains("outside of the destination"));
+            assertFalse(Files.exists(tempDecompressedDir.resolve("escaped")));
+        }
+        finally {
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testCompressedArchiveHasValidCentralDirectory() throws Exception {
+
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Files.createDirectory(Path.of(tempSrcDir + File.separator + DUMMY_DIR));
+        createDummyFile(tempSrcDir, DUMMY_FILE, 3500);
+
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            ArchiveService archiveService = new ArchiveService();
+            archiveService.selectCompressionType(CompressionType.ZIP);
+            archiveService.compress(tempSrcDir, tempCompressedDir, 100);
+            List<Path> paths = getFilePaths(tempCompressedDir);
+            assertEquals(1, paths.size());
+
+            try (ZipFile zipFile = new ZipFile(paths.get(0).toFile())) {
+                ZipEntry zipEntry = zipFile.getEntry(DUMMY_FILE);
+                assertEquals(Files.size(tempSrcDir.resolve(DUMMY_FILE)), zipEntry.getSize());
+                CRC32 crc = new CRC32();
+                try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+                    crc.update(inputStream.readAllBytes());
+                }
+                assertEquals(zipEntry.getCrc(), crc.getValue());
+                assertTrue(zipFile.getEntry(DUMMY_DIR + File.separator).isDirectory());
+            }
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+        }
+    }
+
     @Test
     public void testUnsupportedCompressMode() throws Exception {
 
@@ -129,6 +1154,107 @@ public class ArchiverServiceTest {
         }
     }
 
+    @Test
+    public void testManifestBuilderMergesSpilledRuns() throws Exception {
+        Path source = Path.of("source").toAbsolutePath();
+        Path manifestFile = Files.createTempFile("archiver-test-manifest-", ".manifest");
+        int files = 70_000;
+        try (Manifest.Builder builder = new Manifest.Builder(source)) {
+            // more entries than a run holds, added out of order from several parts
+            for (int i = files - 1; i >= 0; i--) {
+                String name = String.format("file%06d.txt", i);
+                builder.add(i % 3, ChunkEntry.ofFile(source.resolve(name), name, 10, 1000L), i, 0);
+            }
+            builder.add(2, ChunkEntry.ofDirectory(source.resolve("folder"), "folder"), 0, 0);
+            Path split = source.resolve("split.dat");
+            builder.add(1, ChunkEntry.ofSlice(split, "split.dat.part1", 10, 5, 2000L), 0, 0);
+            builder.add(0, ChunkEntry.ofSlice(split, "split.dat.part0", 0, 10, 2000L), 0, 0);
+            builder.add(new ManifestEntry("deleted.txt", false, 0, -1, 0, ManifestEntry.State.DELETED,
+                    new ArrayList<>()));
+            builder.unsplit(2);
+            builder.write(manifestFile);
+
+            List<ManifestEntry> entries = Manifest.read(manifestFile).getEntries();
+            assertEquals(files + 3, entries.size());
+            assertEquals("folder", entries.get(0).getName());
+            assertTrue(entries.get(0).isDirectory());
+            assertEquals("file000000.txt", entries.get(1).getName());
+            assertEquals(String.format("file%06d.txt", files - 1), entries.get(files).getName());
+            assertEquals(-1, entries.get(3).getPieces().get(0).getArchive());
+            assertEquals(1, entries.get(2).getPieces().get(0).getArchive());
+            ManifestEntry splitEntry = entries.get(files + 1);
+            assertEquals("split.dat", splitEntry.getName());
+            assertEquals(15, splitEntry.getSize());
+            assertEquals(0, splitEntry.getPieces().get(0).getOffset());
+            assertEquals(ManifestEntry.State.DELETED, entries.get(files + 2).getState());
+        }
+        finally {
+            Files.deleteIfExists(manifestFile);
+        }
+    }
+
+    @Test
+    public void testStreamingPackerBalancesEveryBatch() {
+        List<ChunkEntry> entries = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < 39; i++) {
+            entries.add(ChunkEntry.ofFile(Path.of("source", "file" + i), "file" + i, i % 7 + 6, 0));
+            total += i % 7 + 6;
+        }
+        // the entries fill exactly one batch of 4 chunks of 100 bytes
+        entries.add(ChunkEntry.ofFile(Path.of("source", "file39"), "file39", 400 - total, 0));
+
+        List<List<String>> forward = new ArrayList<>();
+        List<List<String>> backward = new ArrayList<>();
+        List<Long> loads = new ArrayList<>();
+        BinPacker.Streaming first = new BinPacker.Streaming(100, 4, chunk -> {
+            forward.add(chunk.stream().map(ChunkEntry::getName).collect(Collectors.toList()));
+            loads.add(chunk.stream().mapToLong(ChunkEntry::getLength).sum());
+        });
+        BinPacker.Streaming second = new BinPacker.Streaming(100, 4, chunk ->
+                backward.add(chunk.stream().map(ChunkEntry::getName).collect(Collectors.toList())));
+        for (int i = 0; i < entries.size(); i++) {
+            first.add(entries.get(i));
+            second.add(entries.get(entries.size() - 1 - i));
+        }
+        assertTrue(first.finish().isEmpty());
+        assertTrue(second.finish().isEmpty());
+
+        // the batch is packed the same whatever order the walk added its entries in
+        assertEquals(forward, backward);
+        assertEquals(40, forward.stream().mapToInt(List::size).sum());
+        long lightest = loads.stream().mapToLong(Long::longValue).min().orElse(0);
+        long heaviest = loads.stream().mapToLong(Long::longValue).max().orElse(0);
+        assertTrue(heaviest <= 100, "chunk of " + heaviest + " bytes");
+        assertTrue(heaviest - lightest <= 400 - total, "loads " + loads);
+    }
+
+    @Test
+    public void testBufferPoolReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1024, 2);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        assertEquals(1024, first.length);
+        assertNotSame(first, second);
+
+        pool.release(first);
+        assertSame(first, pool.acquire());
+
+        // buffers of another size are left to the GC, as are the ones beyond the capacity
+        pool.release(new byte[512]);
+        byte[] fresh = pool.acquire();
+        assertEquals(1024, fresh.length);
+        assertNotSame(first, fresh);
+        pool.release(first);
+        pool.release(second);
+        pool.release(fresh);
+        Set<byte[]> idle = new HashSet<>(Arrays.asList(pool.acquire(), pool.acquire()));
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), idle);
+        byte[] extra = pool.acquire();
+        assertNotSame(fresh, extra);
+        assertEquals(1024, extra.length);
+    }
+
     @Test
     public void testNotImplementedMode() throws Exception {
 
@@ -224,10 +1350,32 @@ public class ArchiverServiceTest {
     }
 
 
+    private static void assertManifestEntries(Manifest manifest, long crc, long size) {
+        assertEquals(2, manifest.getEntries().size());
+        ManifestEntry directory = manifest.getEntries().get(0);
+        assertEquals(DUMMY_DIR, directory.getName());
+        assertTrue(directory.isDirectory());
+        ManifestEntry file = manifest.getEntries().get(1);
+        assertEquals(DUMMY_FILE, file.getName());
+        assertEquals(size, file.getSize());
+        assertEquals(crc, file.getCrc());
+        assertEquals(3, file.getPieces().size());
+    }
+
     private static boolean fileHasSameContent(Path file1, Path file2) throws IOException {
         return Files.mismatch(file1, file2) == -1;
     }
 
+    private static long storedChunkSize(Path directory) throws IOException {
+        long size = 0;
+        for (Path pack : getFilePaths(directory)) {
+            try (ZipFile zipFile = new ZipFile(pack.toFile())) {
+                size += zipFile.stream().mapToLong(ZipEntry::getSize).sum();
+            }
+        }
+        return size;
+    }
+
     private static List<Path> getFilePaths(Path directory) throws IOException {
         List<Path> pathList = new ArrayList<>();
         Files.walk(directory).forEach(f -> {
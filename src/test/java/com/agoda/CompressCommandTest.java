@@ -6,6 +6,8 @@ import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.Environment;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,6 +15,8 @@ import java.nio.file.Path;
 import org.junit.jupiter.api.Test;
 
 import static com.agoda.utils.FileUtils.deleteFolder;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CompressCommandTest {
@@ -34,4 +38,38 @@ public class CompressCommandTest {
             deleteFolder(tempCompressedDir);
         }
     }
+
+    @Test
+    public void testDedupToStdoutRejected() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(baos));
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            String[] args = new String[] {String.valueOf(tempSrcDir), "-", "2", "DEDUP"};
+            PicocliRunner.run(CompressCommand.class, ctx, args);
+            assertTrue(baos.toString().contains("The DEDUP mode cannot write to stdout"));
+            assertFalse(baos.toString().contains("UnsupportedOperationException"));
+        }
+        finally {
+            System.setErr(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+            deleteFolder(tempSrcDir);
+        }
+    }
+
+    @Test
+    public void testRedirectLogsOnlyForStdout() {
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        System.setOut(out);
+        try {
+            // a source or an option named `-` keeps the logs on stdout
+            CompressCommand.redirectLogs(new String[] {"-", "dst", "2"});
+            CompressCommand.redirectLogs(new String[] {"src", "dst", "2", "--progress-file", "-"});
+            assertSame(out, System.out);
+            CompressCommand.redirectLogs(new String[] {"src", "-", "2"});
+            assertSame(System.err, System.out);
+        }
+        finally {
+            System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.out), true));
+        }
+    }
 }
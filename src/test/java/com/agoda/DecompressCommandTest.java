@@ -6,6 +6,8 @@ import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.Environment;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,6 +15,7 @@ import java.nio.file.Path;
 import org.junit.jupiter.api.Test;
 
 import static com.agoda.utils.FileUtils.deleteFolder;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DecompressCommandTest {
@@ -34,4 +37,21 @@ public class DecompressCommandTest {
             deleteFolder(tempCompressedDir);
         }
     }
+
+    @Test
+    public void testDedupFromStdinRejected() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(baos));
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            String[] args = new String[] {"-", String.valueOf(tempDecompressedDir), "DEDUP"};
+            PicocliRunner.run(DecompressCommand.class, ctx, args);
+            assertTrue(baos.toString().contains("The DEDUP mode cannot read from stdin"));
+            assertFalse(baos.toString().contains("UnsupportedOperationException"));
+        }
+        finally {
+            System.setErr(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+            deleteFolder(tempDecompressedDir);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package com.agoda;
+
+import com.agoda.commands.ServeCommand;
+import com.agoda.model.ArchiveJob;
+import com.agoda.model.CompressionOptions;
+import com.agoda.service.ArchiveServer;
+import com.agoda.service.JobQueue;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.Environment;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static com.agoda.utils.FileUtils.deleteFolder;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ServeCommandTest {
+    public static String TEMP_DIRECTORY_SRC = "archiver-cmd-test-src-";
+    public static String TEMP_DIRECTORY_DST = "archiver-cmd-test-dst-";
+    public static String TEMP_DIRECTORY_DECOMPRESSED = "archiver-cmd-test-decomp-";
+
+    @Test
+    public void testServeRunsQueuedJobs() throws Exception {
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        Path tempCompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DST);
+        Path tempDecompressedDir = Files.createTempDirectory(TEMP_DIRECTORY_DECOMPRESSED);
+        byte[] content = new byte[1500 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        Files.write(tempSrcDir.resolve("dummy.dat"), content);
+        Files.writeString(tempSrcDir.resolve("small.txt"), "small file");
+
+        JobQueue queue = new JobQueue(new CompressionOptions().setWorkers(2), 1, 10);
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST);
+             ArchiveServer server = new ArchiveServer(new InetSocketAddress("127.0.0.1", 0), queue)) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+            String jobs = "http://127.0.0.1:" + server.getPort() + "/jobs";
+
+            String compress = "operation=compress&size=1&source=" + encode(tempSrcDir)
+                    + "&destination=" + encode(tempCompressedDir);
+            HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(URI.create(jobs))
+                    .POST(HttpRequest.BodyPublishers.ofString(compress)).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(202, submitted.statusCode());
+            String job = awaitJob(client, jobs + "/1");
+            assertTrue(job.contains("\"state\": \"finished\""), job);
+            assertTrue(job.contains("\"operation\": \"compress\""), job);
+
+            HttpResponse<String> decompressed = client.send(HttpRequest.newBuilder(URI.create(jobs
+                    + "?operation=decompress&priority=5&source=" + encode(tempCompressedDir)
+                    + "&destination=" + encode(tempDecompressedDir)))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(202, decompressed.statusCode());
+            assertEquals("/jobs/2", decompressed.headers().firstValue("Location").orElse(null));
+            job = awaitJob(client, jobs + "/2");
+            assertTrue(job.contains("\"state\": \"finished\""), job);
+            assertArrayEquals(content, Files.readAllBytes(tempDecompressedDir.resolve("dummy.dat")));
+            assertEquals("small file", Files.readString(tempDecompressedDir.resolve("small.txt")));
+
+            assertEquals(400, client.send(HttpRequest.newBuilder(URI.create(jobs + "?operation=shrink&source=a"
+                    + "&destination=b")).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(jobs + "/42")).build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(409, client.send(HttpRequest.newBuilder(URI.create(jobs + "/1")).DELETE().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+
+            // the port is taken, the command gives up
+            String[] args = new String[] {"--port", String.valueOf(server.getPort())};
+            assertEquals(1, PicocliRunner.call(ServeCommand.class, ctx, args));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+            deleteFolder(tempCompressedDir);
+            deleteFolder(tempDecompressedDir);
+        }
+    }
+
+    @Test
+    public void testJobsRunByPriority() {
+        Path path = Path.of(".");
+        ArchiveJob first = new ArchiveJob(1, ArchiveJob.COMPRESS, path, path, 1, "zip", 0);
+        ArchiveJob urgent = new ArchiveJob(2, ArchiveJob.COMPRESS, path, path, 1, "zip", 5);
+        ArchiveJob second = new ArchiveJob(3, ArchiveJob.DECOMPRESS, path, path, 0, "zip", 0);
+        List<ArchiveJob> jobs = new ArrayList<>(List.of(second, first, urgent));
+        Collections.sort(jobs);
+        assertEquals(List.of(urgent, first, second), jobs);
+    }
+
+    private static String awaitJob(HttpClient client, String job) throws Exception {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (true) {
+            String status = client.send(HttpRequest.newBuilder(URI.create(job)).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            if (status.contains("\"state\": \"finished\"") || status.contains("\"state\": \"failed\"")
+                    || System.currentTimeMillis() > deadline) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static String encode(Path path) {
+        return URLEncoder.encode(path.toString(), StandardCharsets.UTF_8);
+    }
+}
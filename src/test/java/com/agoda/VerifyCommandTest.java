@@ -0,0 +1,34 @@
+package com.agoda;
+
+import com.agoda.commands.VerifyCommand;
+import io.micronaut.configuration.picocli.PicocliRunner;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.Environment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import static com.agoda.utils.FileUtils.deleteFolder;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VerifyCommandTest {
+    public static String TEMP_DIRECTORY_SRC = "archiver-cmd-test-src-";
+    @Test
+    public void testWithCommandLineOption() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(baos));
+        Path tempSrcDir = Files.createTempDirectory(TEMP_DIRECTORY_SRC);
+        try (ApplicationContext ctx = ApplicationContext.run(Environment.CLI, Environment.TEST)) {
+            String[] args = new String[] {String.valueOf(tempSrcDir)};
+            PicocliRunner.call(VerifyCommand.class, ctx, args);
+            assertTrue(baos.toString().contains("Verifying archive in directory"));
+        }
+        finally {
+            deleteFolder(tempSrcDir);
+        }
+    }
+}